@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl;
+
+import org.ronsdev.bluectrl.bench.Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the Keymap lookup, the text compilation of the HidKeyboard and the IntArrayList.
+ */
+public class AppBenchmarks {
+
+    private static final String KEYMAP = "en_US";
+
+    /** A text that only contains characters of the benchmarked Keymap. */
+    private static final String SAMPLE_TEXT =
+            "The quick brown fox jumps over the lazy dog. THE QUICK BROWN FOX, 1234567890!\n" +
+            "user@example.com\t(a + b) * c = \"d\"; [e] {f} <g> ~h` ^i | j \\ k / l ? m";
+
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public static List<Benchmark> create(File assetsDir) throws IOException {
+        final byte[] keyMapData = readFile(new File(assetsDir, "keymaps/" + KEYMAP));
+        final CharKeyReportMap keyMap =
+                CharKeyReportMap.compileKeyMap(new ByteArrayInputStream(keyMapData));
+
+        // The daemon is never used by the text compilation
+        final HidKeyboard keyboard = new HidKeyboard(null);
+        keyboard.setCharKeyMap(KEYMAP, keyMap);
+
+        List<Benchmark> result = new ArrayList<Benchmark>();
+
+        result.add(new Benchmark("CharKeyReportMap.compileKeyMap " + KEYMAP) {
+            @Override
+            public long run(int count) {
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    try {
+                        sum += CharKeyReportMap.compileKeyMap(
+                                new ByteArrayInputStream(keyMapData)).getReportCount(0);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return sum;
+            }
+        });
+
+        result.add(new Benchmark("CharKeyReportMap lookup per char") {
+            @Override
+            public long run(int count) {
+                final int length = SAMPLE_TEXT.length();
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    final int sequenceIndex = keyMap.indexOf(SAMPLE_TEXT.charAt(i % length));
+                    final int reportCount = keyMap.getReportCount(sequenceIndex);
+                    for (int j = 0; j < reportCount; j++) {
+                        sum += keyMap.getModifier(sequenceIndex, j) +
+                                keyMap.getKeyCode(sequenceIndex, j);
+                    }
+                }
+                return sum;
+            }
+        });
+
+        result.add(new Benchmark("HidKeyboard.compileText " + SAMPLE_TEXT.length() + " chars") {
+            @Override
+            public long run(int count) {
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    sum += keyboard.compileText(SAMPLE_TEXT).length;
+                }
+                return sum;
+            }
+        });
+
+        result.add(new Benchmark("IntArrayList pointer id gesture") {
+            private final IntArrayList mList = new IntArrayList();
+
+            @Override
+            public long run(int count) {
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    // The pointer ids of a three finger touch like in the MouseTouchListener
+                    for (int id = 0; id < 3; id++) {
+                        if (!mList.containsValue(id)) {
+                            mList.addValue(id);
+                        }
+                    }
+                    sum += mList.getValue(0) + mList.indexOfValue(2);
+                    mList.remove(mList.indexOfValue(1));
+                    mList.removeValue(0);
+                    mList.clear();
+                }
+                return sum;
+            }
+        });
+
+        return result;
+    }
+}
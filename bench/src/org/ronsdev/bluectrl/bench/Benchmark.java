@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.bench;
+
+/**
+ * An operation that is measured by the BenchmarkRunner.
+ */
+public abstract class Benchmark {
+
+    private final String mName;
+
+
+    public Benchmark(String name) {
+        mName = name;
+    }
+
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Runs the operation the given number of times.
+     *
+     * @return a value that depends on the results of the operation, so the JIT can't remove it.
+     */
+    public abstract long run(int count);
+}
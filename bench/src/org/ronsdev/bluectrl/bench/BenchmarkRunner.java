@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.bench;
+
+import org.ronsdev.bluectrl.AppBenchmarks;
+import org.ronsdev.bluectrl.daemon.DaemonBenchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the off-device benchmarks of the pure Java code paths on a desktop JVM.
+ *
+ * Every benchmark is warmed up first and then measured in several rounds of a fixed duration.
+ * The median and the best round are printed in nanoseconds per operation.
+ *
+ * Usage: BenchmarkRunner [assets directory] [name filter]
+ */
+public class BenchmarkRunner {
+
+    /** The time in milliseconds that a benchmark runs before it is measured. */
+    private static final long WARMUP_TIME = 1000;
+
+    /** The approximate duration of a measured round in milliseconds. */
+    private static final long ROUND_TIME = 200;
+
+    /** The number of measured rounds. */
+    private static final int ROUNDS = 10;
+
+
+    /* Keeps the results of the benchmarks alive. */
+    private static long sResultSink = 0;
+
+
+    /** Finds the number of operations that run for about the given time. */
+    private static int calibrate(Benchmark benchmark, long time) {
+        int count = 1;
+        while (true) {
+            final long start = System.nanoTime();
+            sResultSink += benchmark.run(count);
+            final long elapsed = System.nanoTime() - start;
+
+            if ((elapsed >= time * 1000000L) || (count >= (Integer.MAX_VALUE / 2))) {
+                return count;
+            } else if (elapsed < time * 100000L) {
+                count *= 10;
+            } else {
+                count *= 2;
+            }
+        }
+    }
+
+    private static void measure(Benchmark benchmark) {
+        final long warmupEnd = System.nanoTime() + WARMUP_TIME * 1000000L;
+        int count = calibrate(benchmark, ROUND_TIME);
+        while (System.nanoTime() < warmupEnd) {
+            sResultSink += benchmark.run(count);
+        }
+
+        final double[] results = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            sResultSink += benchmark.run(count);
+            results[i] = (double)(System.nanoTime() - start) / count;
+        }
+        Arrays.sort(results);
+
+        System.out.println(String.format("%-44s %12.1f ns/op  (best %.1f, %d ops per round)",
+                benchmark.getName(), results[ROUNDS / 2], results[0], count));
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File assetsDir = new File((args.length > 0) ? args[0] : "../assets");
+        final String filter = (args.length > 1) ? args[1] : "";
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(AppBenchmarks.create(assetsDir));
+        benchmarks.addAll(DaemonBenchmarks.create());
+        benchmarks.addAll(WidgetBenchmarks.create());
+
+        for (Benchmark benchmark : benchmarks) {
+            if (benchmark.getName().contains(filter)) {
+                measure(benchmark);
+            }
+        }
+
+        if (sResultSink == 42) {
+            System.out.println();
+        }
+    }
+}
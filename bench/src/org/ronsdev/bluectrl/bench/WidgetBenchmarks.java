@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.bench;
+
+import org.ronsdev.bluectrl.DeviceSettings;
+import org.ronsdev.bluectrl.widget.PointerAcceleration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the conversion from touch movements to Mouse pointer movements.
+ */
+public class WidgetBenchmarks {
+
+    /** The display density of a typical phone. */
+    private static final float DISPLAY_DENSITY = 2.0f;
+
+    /** The time between two touch samples in ms. */
+    private static final int SAMPLE_TIME = 8;
+
+
+    private static Benchmark createPointerAcceleration(final String profile) {
+        return new Benchmark("PointerAcceleration " + profile) {
+            private final PointerAcceleration mAcceleration =
+                    new PointerAcceleration(DISPLAY_DENSITY);
+
+            @Override
+            public long run(int count) {
+                mAcceleration.setProfile(profile);
+                mAcceleration.reset();
+
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    // A movement that speeds up and slows down again
+                    final float delta = (float)((i & 63) < 32 ? (i & 31) : (32 - (i & 31))) * 0.7f;
+                    mAcceleration.addMovement(delta, -delta * 0.5f, (long)i * SAMPLE_TIME);
+                    sum += mAcceleration.takeMoveX() + mAcceleration.takeMoveY();
+                }
+                return sum;
+            }
+        };
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> result = new ArrayList<Benchmark>();
+        result.add(createPointerAcceleration(DeviceSettings.POINTER_ACCELERATION_LINEAR));
+        result.add(createPointerAcceleration(DeviceSettings.POINTER_ACCELERATION_WINDOWS));
+        result.add(createPointerAcceleration(DeviceSettings.POINTER_ACCELERATION_ADAPTIVE));
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.daemon;
+
+import org.ronsdev.bluectrl.bench.Benchmark;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the HID Report encoding and the IPC writer with a byte sink instead of the daemon
+ * socket.
+ */
+public class DaemonBenchmarks {
+
+    /** The maximum time in milliseconds to wait until the writer has sent all commands. */
+    private static final int WRITER_STOP_TIMEOUT = 10000;
+
+    /** The number of Keyboard Reports in a batch like a short typed text. */
+    private static final int KEYBOARD_BATCH_SIZE = 16;
+
+
+    /** Counts the written bytes instead of sending them to the daemon. */
+    private static class ByteSink extends OutputStream {
+        private long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+
+    public static List<Benchmark> create() {
+        List<Benchmark> result = new ArrayList<Benchmark>();
+
+        result.add(new Benchmark("DaemonIpcWriter mouse reports") {
+            @Override
+            public long run(int count) {
+                final ByteSink sink = new ByteSink();
+                final DaemonIpcWriter writer = new DaemonIpcWriter(sink, null);
+                writer.start();
+
+                for (int i = 0; i < count; i++) {
+                    final long sequence = writer.claimSlot();
+                    final int length = DaemonService.putMouseReport(writer.getSlotBuffer(),
+                            writer.getSlotOffset(sequence), 0, (i & 7) - 4, 3 - (i & 7), 0, 0);
+                    writer.publishSlot(sequence, length, true);
+                }
+
+                writer.stopWriting(WRITER_STOP_TIMEOUT);
+                return sink.getCount();
+            }
+        });
+
+        result.add(new Benchmark("DaemonIpcWriter batched keyboard reports") {
+            private final byte[] mReports = new byte[KEYBOARD_BATCH_SIZE * 8];
+
+            @Override
+            public long run(int count) {
+                final ByteSink sink = new ByteSink();
+                final DaemonIpcWriter writer = new DaemonIpcWriter(sink, null);
+                writer.start();
+
+                int i = 0;
+                while (i < count) {
+                    writer.beginBatch();
+                    for (int j = 0; (j < KEYBOARD_BATCH_SIZE) && (i < count); j++, i++) {
+                        final long sequence = writer.claimSlot();
+                        final int length = DaemonService.putKeyboardReport(
+                                writer.getSlotBuffer(), writer.getSlotOffset(sequence),
+                                mReports, j * 8);
+                        writer.publishSlot(sequence, length, true);
+                    }
+                    writer.endBatch();
+                }
+
+                writer.stopWriting(WRITER_STOP_TIMEOUT);
+                return sink.getCount();
+            }
+        });
+
+        return result;
+    }
+}
@@ -7,10 +7,12 @@ LOCAL_MODULE := bluectrld
 LOCAL_SRC_FILES := \
     bluectrld.c \
     error.c \
+    eventloop.c \
     hidhci.c \
     hidipc.c \
     hidl2cap.c \
     hidsdp.c \
+    hidseq.c \
     log.c \
 
 LOCAL_LDLIBS := -lbluetooth -llog
@@ -28,11 +28,11 @@
 #include <time.h>
 #include <unistd.h>
 #include <sys/ioctl.h>
-#include <sys/poll.h>
 #include <bluetooth/bluetooth.h>
 
 #include "error.h"
 #include "log.h"
+#include "eventloop.h"
 #include "hidhci.h"
 #include "hidipc.h"
 #include "hidl2cap.h"
@@ -87,6 +87,14 @@ static void sig_term(int sig)
 }
 
 
+/*
+ * Wake up the event loop regularly so that the IPC timeout is checked.
+ */
+static void on_ipc_timeout_timer_event(int fd, uint32_t events)
+{
+	hidc_eventloop_set_timer(fd, IPC_TIMEOUT_SEC * 1000);
+}
+
 static int check_should_shutdown()
 {
 	if (__io_canceled)
@@ -129,11 +137,11 @@ int main(int argc, char **argv)
 	int errsv;  /* saved errno */
 	int opt;
 	int longIndex;
+	int timer;
 	int detach = 1;
 	int hiddevcls = 0;
 	int debug = 0;
 	struct sigaction sa;
-	struct pollfd ufds[6];
 
 	while ((opt = getopt_long(argc,
 				argv,
@@ -187,6 +195,19 @@ int main(int argc, char **argv)
 	if ((result = hidc_get_device_bdaddr(app_dev_id, papp_dev_bdaddr)) < 0)
 		goto done;
 
+	if ((result = hidc_eventloop_init()) < 0) {
+		log_e("Can't create event loop");
+		goto done;
+	}
+
+	if ((timer = hidc_eventloop_create_timer(
+				on_ipc_timeout_timer_event)) < 0) {
+		result = timer;
+		log_e("Can't create IPC timeout timer");
+		goto done;
+	}
+	hidc_eventloop_set_timer(timer, IPC_TIMEOUT_SEC * 1000);
+
 	if (hidc_start_hid_server() < 0) {
 		log_i("Can't start HID server -> HID hosts won't be able to "
 			"initiate a connection");
@@ -219,16 +240,7 @@ int main(int argc, char **argv)
 	}
 
 	while (!check_should_shutdown()) {
-		hidc_init_ipc_pollfds(&ufds[0], &ufds[1]);
-		hidc_init_l2cap_pollfds(&ufds[2], &ufds[3], &ufds[4],
-					&ufds[5]);
-
-		if (poll(ufds, 6, IPC_TIMEOUT_SEC * 1000) < 1)
-			continue;
-
-		hidc_handle_ipc_poll(&ufds[0], &ufds[1]);
-		hidc_handle_l2cap_poll(&ufds[2], &ufds[3], &ufds[4],
-					&ufds[5]);
+		hidc_eventloop_run_once(-1);
 	}
 
 done:
@@ -263,6 +275,8 @@ done:
 			result = ec;
 	}
 
+	hidc_eventloop_close();
+
 	log_i("BlueCtrl daemon stopped");
 
 	exit(-result);
@@ -0,0 +1,324 @@
+/*
+ *  Event loop functions
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/epoll.h>
+#include <sys/syscall.h>
+
+#include "error.h"
+#include "log.h"
+#include "eventloop.h"
+
+
+/*
+ * A registered file descriptor.
+ */
+typedef struct EventSource {
+	int fd;
+	int is_timer;
+	uint32_t generation;
+	HidcEventHandler handler;
+} EventSource;
+
+
+static int epoll_fd = -1;
+
+static EventSource sources[HIDC_EVENTLOOP_MAX_SOURCES];
+
+
+/*
+ * The C library of older Android versions doesn't provide the timerfd
+ * functions, so the system calls are used directly.
+ */
+static int timerfd_create_syscall(int clockid, int flags)
+{
+	return syscall(__NR_timerfd_create, clockid, flags);
+}
+
+static int timerfd_settime_syscall(int fd, int flags,
+				const struct itimerspec *new_value)
+{
+	return syscall(__NR_timerfd_settime, fd, flags, new_value, NULL);
+}
+
+/*
+ * Find the registered source of a file descriptor.
+ *
+ * Parameters:
+ *     fd: The file descriptor.
+ *
+ * Returns:
+ *     The source or NULL if the file descriptor isn't registered.
+ */
+static EventSource *find_source(int fd)
+{
+	int i;
+
+	for (i = 0; i < HIDC_EVENTLOOP_MAX_SOURCES; i++) {
+		if (sources[i].fd == fd)
+			return &sources[i];
+	}
+
+	return NULL;
+}
+
+/*
+ * Build the epoll event data of a source. The generation counter makes sure
+ * that pending events of a removed file descriptor are never dispatched to a
+ * new file descriptor in the same slot.
+ */
+static uint64_t get_event_data(EventSource *source)
+{
+	return ((uint64_t)source->generation << 32) | (source - sources);
+}
+
+int hidc_eventloop_init()
+{
+	int errsv;  /* saved errno */
+	int i;
+
+	if (epoll_fd > -1)
+		return 0;
+
+	for (i = 0; i < HIDC_EVENTLOOP_MAX_SOURCES; i++) {
+		sources[i].fd = -1;
+		sources[i].is_timer = 0;
+		sources[i].generation = 0;
+		sources[i].handler = NULL;
+	}
+
+	epoll_fd = epoll_create(HIDC_EVENTLOOP_MAX_SOURCES);
+	if (epoll_fd < 0) {
+		errsv = errno;
+		log_ec(errsv, "Can't create epoll instance");
+		return hidc_convert_errno(errsv);
+	}
+
+	return 0;
+}
+
+void hidc_eventloop_close()
+{
+	int i;
+	int fd;
+
+	if (epoll_fd < 0)
+		return;
+
+	for (i = 0; i < HIDC_EVENTLOOP_MAX_SOURCES; i++) {
+		if (sources[i].fd > -1 && sources[i].is_timer) {
+			fd = sources[i].fd;
+			hidc_eventloop_remove(fd);
+			close(fd);
+		}
+	}
+
+	close(epoll_fd);
+	epoll_fd = -1;
+}
+
+int hidc_eventloop_add(int fd, uint32_t events, HidcEventHandler handler)
+{
+	int errsv;  /* saved errno */
+	struct epoll_event ev;
+	EventSource *source;
+
+	if (epoll_fd < 0 || fd < 0)
+		return HIDC_EC_UNKNOWN;
+
+	source = find_source(-1);
+	if (source == NULL) {
+		log_e("Too many event loop sources");
+		return HIDC_EC_UNKNOWN;
+	}
+
+	source->fd = fd;
+	source->is_timer = 0;
+	source->generation++;
+	source->handler = handler;
+
+	memset(&ev, 0, sizeof(ev));
+	ev.events = events;
+	ev.data.u64 = get_event_data(source);
+
+	if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fd, &ev) < 0) {
+		errsv = errno;
+		log_ec(errsv, "Can't add event loop source");
+		source->fd = -1;
+		source->handler = NULL;
+		return hidc_convert_errno(errsv);
+	}
+
+	return 0;
+}
+
+int hidc_eventloop_modify(int fd, uint32_t events)
+{
+	int errsv;  /* saved errno */
+	struct epoll_event ev;
+	EventSource *source;
+
+	if (epoll_fd < 0 || fd < 0)
+		return HIDC_EC_UNKNOWN;
+
+	source = find_source(fd);
+	if (source == NULL)
+		return HIDC_EC_UNKNOWN;
+
+	memset(&ev, 0, sizeof(ev));
+	ev.events = events;
+	ev.data.u64 = get_event_data(source);
+
+	if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, fd, &ev) < 0) {
+		errsv = errno;
+		log_ec(errsv, "Can't modify event loop source");
+		return hidc_convert_errno(errsv);
+	}
+
+	return 0;
+}
+
+void hidc_eventloop_remove(int fd)
+{
+	struct epoll_event ev;
+	EventSource *source;
+
+	if (epoll_fd < 0 || fd < 0)
+		return;
+
+	source = find_source(fd);
+	if (source == NULL)
+		return;
+
+	/* older kernels require a non-NULL event for EPOLL_CTL_DEL */
+	memset(&ev, 0, sizeof(ev));
+	epoll_ctl(epoll_fd, EPOLL_CTL_DEL, fd, &ev);
+
+	source->fd = -1;
+	source->is_timer = 0;
+	source->handler = NULL;
+}
+
+int hidc_eventloop_create_timer(HidcEventHandler handler)
+{
+	int errsv;  /* saved errno */
+	int timer;
+	int ec;  /* error code */
+
+	/*
+	 * The timer must be non-blocking because a handler can stop or
+	 * restart it after epoll reported it ready (TFD_NONBLOCK has the
+	 * value of O_NONBLOCK).
+	 */
+	timer = timerfd_create_syscall(CLOCK_MONOTONIC, O_NONBLOCK);
+	if (timer < 0 && errno == EINVAL) {
+		/* kernels before 2.6.27 don't support the flags */
+		timer = timerfd_create_syscall(CLOCK_MONOTONIC, 0);
+		if (timer >= 0 && fcntl(timer, F_SETFL, O_NONBLOCK) < 0) {
+			errsv = errno;
+			close(timer);
+			log_ec(errsv, "Can't create timer");
+			return hidc_convert_errno(errsv);
+		}
+	}
+	if (timer < 0) {
+		errsv = errno;
+		log_ec(errsv, "Can't create timer");
+		return hidc_convert_errno(errsv);
+	}
+
+	if ((ec = hidc_eventloop_add(timer, EPOLLIN, handler)) < 0) {
+		close(timer);
+		return ec;
+	}
+
+	find_source(timer)->is_timer = 1;
+
+	return timer;
+}
+
+void hidc_eventloop_set_timer(int timer, int delay)
+{
+	struct itimerspec value;
+
+	if (timer < 0)
+		return;
+
+	memset(&value, 0, sizeof(value));
+
+	if (delay > 0) {
+		value.it_value.tv_sec = delay / 1000;
+		value.it_value.tv_nsec = (long)(delay % 1000) * 1000000;
+	}
+	else if (delay == 0) {
+		/* a zero value would stop the timer */
+		value.it_value.tv_nsec = 1;
+	}
+
+	if (timerfd_settime_syscall(timer, 0, &value) < 0)
+		log_ec(errno, "Can't set timer");
+}
+
+void hidc_eventloop_run_once(int timeout)
+{
+	struct epoll_event events[HIDC_EVENTLOOP_MAX_SOURCES];
+	int count;
+	int i;
+	uint64_t expirations;
+	EventSource *source;
+
+	if (epoll_fd < 0)
+		return;
+
+	count = epoll_wait(epoll_fd, events, HIDC_EVENTLOOP_MAX_SOURCES,
+			timeout);
+	if (count < 0) {
+		if (errno != EINTR)
+			log_ec(errno, "Can't wait for events");
+		return;
+	}
+
+	for (i = 0; i < count; i++) {
+		source = &sources[(uint32_t)events[i].data.u64];
+
+		/* the source was removed by a previous handler */
+		if (source->fd < 0 || source->generation !=
+				(uint32_t)(events[i].data.u64 >> 32))
+			continue;
+
+		/*
+		 * Reset the timer so that it doesn't fire again. There is
+		 * nothing to read if a previous handler of this batch has
+		 * stopped or restarted the timer, so the expiration is void.
+		 */
+		if (source->is_timer &&
+				read(source->fd, &expirations,
+					sizeof(expirations)) < 0 &&
+				errno == EAGAIN)
+			continue;
+
+		source->handler(source->fd, events[i].events);
+	}
+}
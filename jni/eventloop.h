@@ -0,0 +1,126 @@
+/*
+ *  Event loop functions
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef __EVENTLOOP_H
+#define __EVENTLOOP_H
+
+#include <stdint.h>
+#include <sys/epoll.h>
+
+
+/*
+ * The maximum number of file descriptors that can be registered at the same
+ * time.
+ */
+#define HIDC_EVENTLOOP_MAX_SOURCES	16
+
+
+/*
+ * Called when an event occurs on a registered file descriptor.
+ *
+ * Parameters:
+ *     fd: The file descriptor.
+ *     events: The occurred epoll events (EPOLLIN, EPOLLERR, EPOLLHUP, ...).
+ */
+typedef void (*HidcEventHandler)(int fd, uint32_t events);
+
+
+/*
+ * Create the event loop.
+ *
+ * Returns:
+ *     0 on success or a negative error code (defined in error.h) on failure.
+ */
+int hidc_eventloop_init();
+
+/*
+ * Close the event loop and all timers. Registered file descriptors that
+ * aren't timers are not closed.
+ */
+void hidc_eventloop_close();
+
+/*
+ * Register a file descriptor. The registration persists until the file
+ * descriptor is removed. EPOLLERR and EPOLLHUP are always reported.
+ *
+ * Parameters:
+ *     fd: The file descriptor.
+ *     events: The epoll events that should be reported.
+ *     handler: The function that is called when an event occurs.
+ *
+ * Returns:
+ *     0 on success or a negative error code (defined in error.h) on failure.
+ */
+int hidc_eventloop_add(int fd, uint32_t events, HidcEventHandler handler);
+
+/*
+ * Change the reported events of a registered file descriptor.
+ *
+ * Parameters:
+ *     fd: The file descriptor.
+ *     events: The epoll events that should be reported.
+ *
+ * Returns:
+ *     0 on success or a negative error code (defined in error.h) on failure.
+ */
+int hidc_eventloop_modify(int fd, uint32_t events);
+
+/*
+ * Unregister a file descriptor. Has to be called before the file descriptor
+ * is closed. Pending events of the file descriptor are dropped.
+ *
+ * Parameters:
+ *     fd: The file descriptor.
+ */
+void hidc_eventloop_remove(int fd);
+
+/*
+ * Create a registered one-shot timer.
+ *
+ * Parameters:
+ *     handler: The function that is called when the timer expires.
+ *
+ * Returns:
+ *     The timer file descriptor on success or a negative error code (defined
+ *     in error.h) on failure.
+ */
+int hidc_eventloop_create_timer(HidcEventHandler handler);
+
+/*
+ * Start or stop a timer.
+ *
+ * Parameters:
+ *     timer: The timer file descriptor.
+ *     delay: The time in milliseconds until the timer expires (0 means as
+ *            soon as possible) or a negative value to stop the timer.
+ */
+void hidc_eventloop_set_timer(int timer, int delay);
+
+/*
+ * Wait for events and call the handlers of the occurred events.
+ *
+ * Parameters:
+ *     timeout: The maximum time in milliseconds to wait or -1 to wait until
+ *              an event occurs or a signal is received.
+ */
+void hidc_eventloop_run_once(int timeout);
+
+#endif
@@ -23,25 +23,81 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <time.h>
 #include <unistd.h>
-#include <sys/poll.h>
+#include <sys/mman.h>
 #include <sys/socket.h>
 #include <sys/un.h>
 
 #include "error.h"
 #include "log.h"
+#include "eventloop.h"
 #include "hidhci.h"
 #include "hidl2cap.h"
+#include "hidsdp.h"
+#include "hidseq.h"
 #include "bluectrld.h"
 #include "hidipc.h"
 
 
+/*
+ * The maximum number of report ring slots that are executed in one event
+ * loop wakeup. This keeps the event loop responsive if the client fills the
+ * ring as fast as the daemon drains it.
+ */
+static const int RING_DRAIN_BURST = 64;
+
+
 /*
  * Server/client IPC sockets.
  */
 static int server_ipc_sock = -1;
 static int client_ipc_sock = -1;
 
+/*
+ * The command data of the currently executed batch command.
+ */
+static unsigned char batch_data[HIDC_IPC_MAX_BATCH_SIZE];
+static int batch_size = -1;
+static int batch_pos = 0;
+
+/*
+ * The Keyboard Reports of the currently received key sequence command.
+ */
+static unsigned char key_sequence_data[HIDC_IPC_MAX_KEY_SEQUENCE_SIZE *
+				HIDC_KEY_SEQUENCE_REPORT_SIZE];
+
+/*
+ * A file descriptor that was received with the current command or -1.
+ */
+static int received_fd = -1;
+
+/*
+ * The attached shared memory ring buffer.
+ */
+static unsigned char *report_ring = NULL;
+static size_t report_ring_size = 0;
+static uint32_t report_ring_slots = 0;
+static uint32_t report_ring_sequence = 0;
+
+/*
+ * The event loop timer that continues draining the report ring after a
+ * burst.
+ */
+static int ring_drain_timer = -1;
+
+/*
+ * True if no client commands are read because the interrupt channel queue of
+ * the HID connection is full. A paused batch command keeps its position in
+ * the batch data.
+ */
+static int is_input_paused = 0;
+
+/*
+ * The event loop timer that continues the paused client commands.
+ */
+static int resume_input_timer = -1;
+
 
 /*
  * Send IPC data to the client.
@@ -81,6 +137,19 @@ static int receive_ipc_data(void *buffer, int len)
 {
 	int rsize;  /* received size */
 
+	/* read from the batch data if a batch command is executed */
+	if (batch_size > -1) {
+		if (batch_pos + len > batch_size) {
+			log_e("Incomplete command in IPC batch");
+			hidc_close_client_ipc();
+			return -1;
+		}
+
+		memcpy(buffer, batch_data + batch_pos, len);
+		batch_pos += len;
+		return 0;
+	}
+
 	rsize = recv(client_ipc_sock, buffer, len, MSG_WAITALL);
 	if (rsize == len) {
 		return 0;
@@ -406,44 +475,468 @@ static void do_ipc_cmd_hid_send_mouse_abs()
 }
 
 /*
- * Handle a poll input event on the server IPC socket.
+ * Called when a "Send traced Mouse HID Report" command is received.
  */
-static void pollin_server_ipc_sock()
+static void do_ipc_cmd_hid_send_mouse_traced()
 {
-	struct timeval tv;
-	bdaddr_t bdaddr;
+	unsigned char buttons;
+	int16_t x;
+	int16_t y;
+	signed char scrollY;
+	signed char scrollX;
+	uint32_t times[3];
+	HidcInputTrace trace;
 
-	client_ipc_sock = accept(server_ipc_sock, NULL, NULL);
-	if (client_ipc_sock < 0) {
-		log_ec(errno, "Can't accept IPC socket");
+	if (receive_ipc_data(&buttons, sizeof(buttons)) < 0)
+		return;
+
+	if (receive_ipc_data(&x, sizeof(x)) < 0)
+		return;
+
+	x = ntohs(x);
+
+	if (receive_ipc_data(&y, sizeof(y)) < 0)
+		return;
+
+	y = ntohs(y);
+
+	if (receive_ipc_data(&scrollY, sizeof(scrollY)) < 0)
+		return;
+
+	if (receive_ipc_data(&scrollX, sizeof(scrollX)) < 0)
+		return;
+
+	if (receive_ipc_data(times, sizeof(times)) < 0)
+		return;
+
+	trace.event_time = ntohl(times[0]);
+	trace.enqueue_time = ntohl(times[1]);
+	trace.ipc_write_time = ntohl(times[2]);
+	trace.receive_time = hidc_get_trace_time();
+	trace.send_time = 0;
+
+	if (hidc_is_hid_connected())
+		hidc_send_hid_report_mouse_traced(buttons, x, y, scrollY,
+						scrollX, &trace);
+}
+
+/*
+ * Execute a HID command that is allowed in a batch command.
+ *
+ * Parameters:
+ *     cmd: The command that should be executed.
+ *
+ * Returns:
+ *     True if the command was executed; False if the command isn't a HID
+ *     command.
+ */
+static int handle_hid_ipc_cmd(int32_t cmd)
+{
+	switch ((HidcIpcCommand)cmd) {
+	case HIDC_IPC_CMD_HID_SEND_KEYS:
+		do_ipc_cmd_hid_send_keys();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_MOUSE:
+		do_ipc_cmd_hid_send_mouse();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_SYSTEM_KEYS:
+		do_ipc_cmd_hid_send_system_keys();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_HW_KEYS:
+		do_ipc_cmd_hid_send_hw_keys();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_MEDIA_KEYS:
+		do_ipc_cmd_hid_send_media_keys();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_AC_KEYS:
+		do_ipc_cmd_hid_send_ac_keys();
+		break;
+	case HIDC_IPC_CMD_HID_CHANGE_MOUSE_FEATURE:
+		do_ipc_cmd_hid_change_mouse_feature();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_MOUSE_ABSOLUTE:
+		do_ipc_cmd_hid_send_mouse_abs();
+		break;
+	case HIDC_IPC_CMD_HID_SEND_MOUSE_TRACED:
+		do_ipc_cmd_hid_send_mouse_traced();
+		break;
+	default:
+		return 0;
+	}
+
+	return 1;
+}
+
+/*
+ * Stop reading client commands if the interrupt channel queue of the HID
+ * connection is full. The commands are continued after the queue was drained.
+ *
+ * Returns:
+ *     True if the client input is paused; False if not.
+ */
+static int pause_input_if_busy()
+{
+	if (!is_input_paused && hidc_is_hid_queue_full()) {
+		is_input_paused = 1;
+		hidc_eventloop_modify(client_ipc_sock, 0);
+		log_d("IPC input paused");
+	}
+
+	return is_input_paused;
+}
+
+/*
+ * Execute the remaining HID commands in the batch data.
+ *
+ * Parameters:
+ *     can_pause: True if the batch may stop at a full interrupt channel
+ *                queue and continue later.
+ */
+static void run_batch_data(int can_pause)
+{
+	int32_t cmd;
+
+	while ((batch_pos < batch_size) && (client_ipc_sock > -1)) {
+		if (can_pause && pause_input_if_busy())
+			return;
+
+		if (receive_ipc_data(&cmd, sizeof(cmd)) < 0)
+			break;
+
+		cmd = ntohl(cmd);
+
+		if (!handle_hid_ipc_cmd(cmd)) {
+			log_e("Invalid command in IPC batch: %d", cmd);
+			hidc_close_client_ipc();
+			break;
+		}
+	}
+
+	batch_size = -1;
+	batch_pos = 0;
+}
+
+/*
+ * Execute the HID commands in the batch data.
+ *
+ * Parameters:
+ *     size: The size of the commands in the batch data.
+ *     can_pause: Like in run_batch_data.
+ */
+static void execute_batch_data(int size, int can_pause)
+{
+	batch_size = size;
+	batch_pos = 0;
+
+	run_batch_data(can_pause);
+}
+
+/*
+ * Called when a "Send Batch" command is received.
+ */
+static void do_ipc_cmd_hid_send_batch()
+{
+	int32_t size;
+
+	if (receive_ipc_data(&size, sizeof(size)) < 0)
+		return;
+
+	size = ntohl(size);
+	if (size < 0 || size > HIDC_IPC_MAX_BATCH_SIZE) {
+		log_e("Invalid IPC batch size: %d", size);
+		hidc_close_client_ipc();
 		return;
 	}
 
-	tv.tv_sec  = 5;  
-	tv.tv_usec = 0;
-	setsockopt(client_ipc_sock, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv));
+	if (receive_ipc_data(batch_data, size) < 0)
+		return;
 
-	log_d("IPC client connected");
+	execute_batch_data(size, 1);
+}
 
-	/* send current connection state */
-	if (hidc_is_hid_connected()) {
-		get_last_connected_bdaddr(&bdaddr);
-		hidc_send_ipc_cb_connected(&bdaddr);
+/*
+ * Called when a "Send Key Sequence" command is received.
+ */
+static void do_ipc_cmd_hid_send_key_sequence()
+{
+	uint16_t count;
+	uint16_t interval;
+
+	if (receive_ipc_data(&count, sizeof(count)) < 0)
+		return;
+
+	count = ntohs(count);
+	if (count < 1 || count > HIDC_IPC_MAX_KEY_SEQUENCE_SIZE) {
+		log_e("Invalid IPC key sequence size: %d", count);
+		hidc_close_client_ipc();
+		return;
 	}
 
-	if (!hidc_is_hid_server_running()) {
-		send_simple_ipc_cb(HIDC_IPC_CB_INFO_NO_SERVER);
+	if (receive_ipc_data(&interval, sizeof(interval)) < 0)
+		return;
+
+	interval = ntohs(interval);
+
+	if (receive_ipc_data(key_sequence_data,
+			count * HIDC_KEY_SEQUENCE_REPORT_SIZE) < 0)
+		return;
+
+	if (hidc_queue_key_sequence(key_sequence_data, count, interval) < 0) {
+		log_e("Key sequence queue is full (%d reports discarded)",
+			count);
+	}
+}
+
+/*
+ * Called when a "Cancel Key Sequence" command is received.
+ */
+static void do_ipc_cmd_hid_cancel_key_sequence()
+{
+	log_d("IPC command: cancel key sequence");
+	hidc_cancel_key_sequence();
+}
+
+/*
+ * Called when a "Set Max Report Rate" command is received.
+ */
+static void do_ipc_cmd_hid_set_max_report_rate()
+{
+	uint16_t rate;
+
+	if (receive_ipc_data(&rate, sizeof(rate)) < 0)
+		return;
+
+	rate = ntohs(rate);
+
+	log_d("IPC command: set max report rate (%d)", rate);
+	hidc_set_max_report_rate(rate);
+}
+
+/*
+ * Receive the next IPC command from the client. A file descriptor that is
+ * passed together with the command is stored in received_fd.
+ *
+ * Parameters:
+ *     cmd: A buffer where the command will be written.
+ *
+ * Returns:
+ *     0 on success or -1 on failure.
+ */
+static int receive_ipc_cmd(int32_t *cmd)
+{
+	struct msghdr msg;
+	struct iovec iov;
+	struct cmsghdr *cmsg;
+	char control[CMSG_SPACE(sizeof(int))];
+	int rsize;  /* received size */
+
+	memset(&msg, 0, sizeof(msg));
+	iov.iov_base = cmd;
+	iov.iov_len = sizeof(*cmd);
+	msg.msg_iov = &iov;
+	msg.msg_iovlen = 1;
+	msg.msg_control = control;
+	msg.msg_controllen = sizeof(control);
+
+	rsize = recvmsg(client_ipc_sock, &msg, MSG_WAITALL);
+
+	for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL;
+			cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+		if (cmsg->cmsg_level == SOL_SOCKET &&
+				cmsg->cmsg_type == SCM_RIGHTS) {
+			if (received_fd > -1)
+				close(received_fd);
+			memcpy(&received_fd, CMSG_DATA(cmsg), sizeof(int));
+		}
+	}
+
+	if (rsize == sizeof(*cmd))
+		return 0;
+
+	if (rsize == 0 || (rsize < 0 && errno == ECONNRESET))
+		log_d("Remote closed IPC connection");
+	else if (rsize < 0)
+		log_ec(errno, "Can't read from IPC socket");
+	else
+		log_e("Incomplete IPC command");
+
+	hidc_close_client_ipc();
+	return -1;
+}
+
+/*
+ * Detach the shared memory ring buffer.
+ */
+static void detach_report_ring()
+{
+	if (report_ring != NULL) {
+		munmap(report_ring, report_ring_size);
+		report_ring = NULL;
+		report_ring_size = 0;
+		log_d("Report ring detached");
+	}
+}
+
+/*
+ * Read a stamp of a shared memory ring slot.
+ */
+static uint32_t get_ring_stamp(const unsigned char *slot, int offset)
+{
+	return ntohl(*(volatile const uint32_t *)(slot + offset));
+}
+
+static void on_ring_drain_timer_event(int fd, uint32_t events);
+
+/*
+ * Execute the published commands of the shared memory ring buffer until it
+ * is empty and set the waiting flag afterwards. If the client input gets
+ * paused or a burst of slots was executed, the waiting flag stays clear and
+ * the ring is drained again on resume or by the drain timer.
+ */
+static void drain_report_ring()
+{
+	volatile unsigned char *waiting;
+	unsigned char *slot;
+	int size;
+	int executed = 0;
+
+	while (report_ring != NULL && client_ipc_sock > -1) {
+		if (pause_input_if_busy())
+			break;
+
+		if (executed >= RING_DRAIN_BURST) {
+			if (ring_drain_timer < 0)
+				ring_drain_timer = hidc_eventloop_create_timer(
+						on_ring_drain_timer_event);
+			hidc_eventloop_set_timer(ring_drain_timer, 0);
+			break;
+		}
+
+		waiting = report_ring;
+		slot = report_ring + HIDC_IPC_RING_HEADER_SIZE +
+			(report_ring_sequence & (report_ring_slots - 1)) *
+			HIDC_IPC_RING_SLOT_SIZE;
+
+		if (get_ring_stamp(slot, 0) != report_ring_sequence + 1) {
+			/* the client must send a doorbell for further commands */
+			*waiting = 1;
+			__sync_synchronize();
+
+			if (get_ring_stamp(slot, 0) != report_ring_sequence + 1)
+				break;
+
+			*waiting = 0;
+		}
+
+		/* read the command only after the publish stamp */
+		__sync_synchronize();
+
+		size = slot[8];
+		if (size > HIDC_IPC_RING_SLOT_SIZE - 9) {
+			log_e("Invalid command size in report ring: %d", size);
+			hidc_close_client_ipc();
+			break;
+		}
+
+		/* a slot is always executed completely before it's released */
+		memcpy(batch_data, slot + 9, size);
+		execute_batch_data(size, 0);
+
+		/* the ring is detached if the command closed the connection */
+		if (report_ring == NULL)
+			break;
+
+		/* release the slot only after the command was read */
+		__sync_synchronize();
+		*(volatile uint32_t *)(slot + 4) = htonl(report_ring_sequence + 1);
+
+		report_ring_sequence++;
+		executed++;
 	}
 }
 
 /*
- * Handle a poll input event on the client IPC socket.
+ * Handle the expiration of the report ring drain timer.
+ */
+static void on_ring_drain_timer_event(int fd, uint32_t events)
+{
+	if (!is_input_paused)
+		drain_report_ring();
+}
+
+/*
+ * Called when an "Attach Report Ring" command is received.
+ */
+static void do_ipc_cmd_hid_attach_report_ring()
+{
+	int32_t values[2];
+	uint32_t slots;
+	size_t size;
+	void *ring;
+	int fd = received_fd;
+	int ec = 0;  /* error code */
+
+	received_fd = -1;
+
+	/* the connection is closed if the data can't be received */
+	if (receive_ipc_data(values, sizeof(values)) < 0)
+		goto done;
+
+	slots = ntohl(values[0]);
+	if (slots < 1 || slots > HIDC_IPC_RING_MAX_SLOTS ||
+			(slots & (slots - 1)) != 0 ||
+			ntohl(values[1]) != HIDC_IPC_RING_SLOT_SIZE ||
+			fd < 0) {
+		log_e("Invalid report ring (%d slots)", slots);
+		ec = HIDC_EC_UNKNOWN;
+		goto result;
+	}
+
+	size = HIDC_IPC_RING_HEADER_SIZE + slots * HIDC_IPC_RING_SLOT_SIZE;
+	ring = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+	if (ring == MAP_FAILED) {
+		ec = hidc_convert_errno(errno);
+		log_ec(errno, "Can't map report ring");
+		goto result;
+	}
+
+	detach_report_ring();
+
+	report_ring = ring;
+	report_ring_size = size;
+	report_ring_slots = slots;
+	report_ring_sequence = 0;
+
+	log_d("Report ring attached (%d slots)", slots);
+
+	/* arms the doorbell of the empty ring */
+	drain_report_ring();
+
+result:
+	/* the client only uses the ring after a successful result */
+	hidc_send_ipc_cb_report_ring_attached(ec);
+
+done:
+	if (fd > -1)
+		close(fd);
+}
+
+/*
+ * Called when a "Ring Doorbell" command is received.
+ */
+static void do_ipc_cmd_hid_ring_doorbell()
+{
+	drain_report_ring();
+}
+
+/*
+ * Handle an input event on the client IPC socket.
  */
 static void pollin_client_ipc_sock()
 {
 	int32_t cmd;
 
-	if (receive_ipc_data(&cmd, sizeof(cmd)) < 0)
+	if (receive_ipc_cmd(&cmd) < 0)
 		return;
 
 	cmd = ntohl(cmd);
@@ -476,35 +969,134 @@ static void pollin_client_ipc_sock()
 	case HIDC_IPC_CMD_HID_DISCONNECT:
 		do_ipc_cmd_hid_disconnect();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_KEYS:
-		do_ipc_cmd_hid_send_keys();
+	case HIDC_IPC_CMD_HID_SEND_BATCH:
+		do_ipc_cmd_hid_send_batch();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_MOUSE:
-		do_ipc_cmd_hid_send_mouse();
+	case HIDC_IPC_CMD_HID_SEND_KEY_SEQUENCE:
+		do_ipc_cmd_hid_send_key_sequence();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_SYSTEM_KEYS:
-		do_ipc_cmd_hid_send_system_keys();
+	case HIDC_IPC_CMD_HID_CANCEL_KEY_SEQUENCE:
+		do_ipc_cmd_hid_cancel_key_sequence();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_HW_KEYS:
-		do_ipc_cmd_hid_send_hw_keys();
+	case HIDC_IPC_CMD_HID_SET_MAX_REPORT_RATE:
+		do_ipc_cmd_hid_set_max_report_rate();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_MEDIA_KEYS:
-		do_ipc_cmd_hid_send_media_keys();
-		break;
-	case HIDC_IPC_CMD_HID_SEND_AC_KEYS:
-		do_ipc_cmd_hid_send_ac_keys();
+	case HIDC_IPC_CMD_HID_ATTACH_REPORT_RING:
+		do_ipc_cmd_hid_attach_report_ring();
 		break;
-	case HIDC_IPC_CMD_HID_CHANGE_MOUSE_FEATURE:
-		do_ipc_cmd_hid_change_mouse_feature();
+	case HIDC_IPC_CMD_HID_RING_DOORBELL:
+		do_ipc_cmd_hid_ring_doorbell();
 		break;
-	case HIDC_IPC_CMD_HID_SEND_MOUSE_ABSOLUTE:
-		do_ipc_cmd_hid_send_mouse_abs();
+	default:
+		if (!handle_hid_ipc_cmd(cmd)) {
+			log_e("Unknown IPC command: %d", cmd);
+		}
 		break;
 	}
+
+	if (client_ipc_sock > -1)
+		pause_input_if_busy();
+}
+
+/*
+ * Handle an event loop event on the client IPC socket.
+ */
+static void on_client_ipc_sock_event(int fd, uint32_t events)
+{
+	if ((events & EPOLLIN) && (client_ipc_sock > -1) && !is_input_paused) {
+		pollin_client_ipc_sock();
+	}
+	if ((events & EPOLLERR) && (client_ipc_sock > -1)) {
+		log_e("Error on IPC socket");
+		hidc_close_client_ipc();
+	}
+	if ((events & EPOLLHUP) && (client_ipc_sock > -1)) {
+		log_d("Remote closed IPC connection");
+		hidc_close_client_ipc();
+	}
+}
+
+/*
+ * Continue the paused client commands: first the rest of the paused batch,
+ * then the report ring and finally the IPC socket.
+ */
+static void on_resume_input_timer_event(int fd, uint32_t events)
+{
+	if (!is_input_paused || client_ipc_sock < 0)
+		return;
+
+	is_input_paused = 0;
+	log_d("IPC input resumed");
+
+	if (batch_size > -1) {
+		run_batch_data(1);
+		if (is_input_paused)
+			return;
+	}
+
+	drain_report_ring();
+	if (is_input_paused || client_ipc_sock < 0)
+		return;
+
+	hidc_eventloop_modify(client_ipc_sock, EPOLLIN);
+}
+
+/*
+ * Handle an input event on the server IPC socket.
+ */
+static void pollin_server_ipc_sock()
+{
+	struct timeval tv;
+	bdaddr_t bdaddr;
+	int socket;
+
+	socket = accept(server_ipc_sock, NULL, NULL);
+	if (socket < 0) {
+		log_ec(errno, "Can't accept IPC socket");
+		return;
+	}
+
+	/* only one client is supported */
+	hidc_close_client_ipc();
+
+	if (hidc_eventloop_add(socket, EPOLLIN, on_client_ipc_sock_event) < 0) {
+		close(socket);
+		return;
+	}
+
+	client_ipc_sock = socket;
+
+	tv.tv_sec  = 5;  
+	tv.tv_usec = 0;
+	setsockopt(client_ipc_sock, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv));
+
+	log_d("IPC client connected");
+
+	hidc_reset_key_sequence();
+
+	/* send current connection state */
+	if (hidc_is_hid_connected()) {
+		get_last_connected_bdaddr(&bdaddr);
+		hidc_send_ipc_cb_connected(&bdaddr);
+	}
+
+	if (!hidc_is_hid_server_running()) {
+		send_simple_ipc_cb(HIDC_IPC_CB_INFO_NO_SERVER);
+	}
+}
+
+/*
+ * Handle an event loop event on the server IPC socket.
+ */
+static void on_server_ipc_sock_event(int fd, uint32_t events)
+{
+	if (events & EPOLLIN)
+		pollin_server_ipc_sock();
 }
 
 int hidc_start_ipc_server()
 {
+	int ec;  /* error code */
 	int errsv;  /* saved errno */
 	struct sockaddr_un unaddr;  /* Unix Domain socket address */
 	socklen_t addrlen;
@@ -541,6 +1133,12 @@ int hidc_start_ipc_server()
 		return hidc_convert_errno(errsv);
 	}
 
+	if ((ec = hidc_eventloop_add(server_ipc_sock, EPOLLIN,
+				on_server_ipc_sock_event)) < 0) {
+		hidc_stop_ipc_server();
+		return ec;
+	}
+
 	log_d("IPC server started");
 
 	return 0;
@@ -549,6 +1147,7 @@ int hidc_start_ipc_server()
 void hidc_stop_ipc_server()
 {
 	if (server_ipc_sock > -1) {
+		hidc_eventloop_remove(server_ipc_sock);
 		close(server_ipc_sock);
 		server_ipc_sock = -1;
 		log_d("IPC server stopped");
@@ -558,9 +1157,24 @@ void hidc_stop_ipc_server()
 void hidc_close_client_ipc()
 {
 	if (client_ipc_sock > -1) {
+		hidc_eventloop_remove(client_ipc_sock);
 		close(client_ipc_sock);
 		client_ipc_sock = -1;
 		log_d("IPC connection closed");
+
+		detach_report_ring();
+		is_input_paused = 0;
+		batch_size = -1;
+		batch_pos = 0;
+		hidc_eventloop_set_timer(resume_input_timer, -1);
+		hidc_eventloop_set_timer(ring_drain_timer, -1);
+		if (received_fd > -1) {
+			close(received_fd);
+			received_fd = -1;
+		}
+
+		/* don't leave keys pressed if the client is gone */
+		hidc_cancel_key_sequence();
 	}
 }
 
@@ -569,6 +1183,28 @@ int hidc_is_ipc_connected()
 	return (client_ipc_sock > -1);
 }
 
+void hidc_resume_hid_input()
+{
+	/* called while the queue is flushed, so continue from the event loop */
+	if (is_input_paused) {
+		if (resume_input_timer < 0)
+			resume_input_timer = hidc_eventloop_create_timer(
+						on_resume_input_timer_event);
+		hidc_eventloop_set_timer(resume_input_timer, 0);
+	}
+
+	hidc_resume_key_sequence();
+}
+
+uint32_t hidc_get_trace_time()
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (uint32_t)((int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000);
+}
+
 void hidc_send_ipc_cb_connected(bdaddr_t *bdaddr)
 {
 	int32_t cmd;
@@ -612,41 +1248,42 @@ void hidc_send_ipc_cb_mouse_feature(int smoothscrolly, int smoothscrollx)
 	send_ipc_data(data, sizeof(data));
 }
 
-void hidc_send_ipc_ecb(HidcIpcErrorCallback cb, int ec)
+void hidc_send_ipc_cb_key_sequence_progress(uint32_t processed)
 {
 	int32_t data[2];
 
-	data[0] = htonl(cb);
-	data[1] = htonl(ec);
+	data[0] = htonl(HIDC_IPC_CB_KEY_SEQUENCE_PROGRESS);
+	data[1] = htonl(processed);
 	send_ipc_data(data, sizeof(data));
 }
 
-void hidc_init_ipc_pollfds(struct pollfd *spollfd, struct pollfd *cpollfd)
+void hidc_send_ipc_cb_input_trace(const HidcInputTrace *trace)
 {
-	spollfd->fd = server_ipc_sock;
-	spollfd->events = POLLIN;
-	spollfd->revents = 0;
-
-	cpollfd->fd = client_ipc_sock;
-	cpollfd->events = POLLIN | POLLERR | POLLHUP;
-	cpollfd->revents = 0;
+	int32_t data[6];
+
+	data[0] = htonl(HIDC_IPC_CB_INPUT_TRACE);
+	data[1] = htonl(trace->event_time);
+	data[2] = htonl(trace->enqueue_time);
+	data[3] = htonl(trace->ipc_write_time);
+	data[4] = htonl(trace->receive_time);
+	data[5] = htonl(trace->send_time);
+	send_ipc_data(data, sizeof(data));
 }
 
-void hidc_handle_ipc_poll(struct pollfd *spollfd, struct pollfd *cpollfd)
+void hidc_send_ipc_cb_report_ring_attached(int ec)
 {
-	if (spollfd->revents & POLLIN)
-		pollin_server_ipc_sock();
+	int32_t data[2];
 
+	data[0] = htonl(HIDC_IPC_CB_REPORT_RING_ATTACHED);
+	data[1] = htonl(ec);
+	send_ipc_data(data, sizeof(data));
+}
 
-	if ((cpollfd->revents & POLLIN) && (client_ipc_sock > -1)) {
-		pollin_client_ipc_sock();
-	}
-	if ((cpollfd->revents & POLLERR) && (client_ipc_sock > -1)) {
-		log_e("Error on IPC socket");
-		hidc_close_client_ipc();
-	}
-	if ((cpollfd->revents & POLLHUP) && (client_ipc_sock > -1)) {
-		log_d("Remote closed IPC connection");
-		hidc_close_client_ipc();
-	}
+void hidc_send_ipc_ecb(HidcIpcErrorCallback cb, int ec)
+{
+	int32_t data[2];
+
+	data[0] = htonl(cb);
+	data[1] = htonl(ec);
+	send_ipc_data(data, sizeof(data));
 }
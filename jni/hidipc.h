@@ -22,14 +22,50 @@
 #ifndef __HIDIPC_H
 #define __HIDIPC_H
 
+#include <stdint.h>
 #include <bluetooth/bluetooth.h>
-#include <sys/poll.h>
 
 
 /*
- * The abstract Unix Domain socket address for the IPC communication.
+ * The abstract Unix Domain socket address for the IPC communication. The host
+ * build can override it so that multiple instances can run side by side.
  */
+#ifndef HIDC_UNIXDOMAIN_IPC
 #define HIDC_UNIXDOMAIN_IPC	"org.ronsdev.bluectrld"
+#endif
+
+/*
+ * The maximum size of the command data in a single batch command.
+ */
+#define HIDC_IPC_MAX_BATCH_SIZE	4096
+
+/*
+ * The maximum number of Keyboard Reports in a single key sequence command.
+ */
+#define HIDC_IPC_MAX_KEY_SEQUENCE_SIZE	512
+
+/*
+ * The layout of the shared memory ring buffer (see
+ * HIDC_IPC_CMD_HID_ATTACH_REPORT_RING).
+ */
+#define HIDC_IPC_RING_HEADER_SIZE	32
+#define HIDC_IPC_RING_SLOT_SIZE		32
+#define HIDC_IPC_RING_MAX_SLOTS		4096
+
+
+/*
+ * The timestamps of a traced input event on its way from the touch screen to
+ * the L2CAP socket. All values are microseconds of the monotonic clock
+ * (CLOCK_MONOTONIC) truncated to 32 bits, so only differences between them
+ * are meaningful.
+ */
+typedef struct HidcInputTrace {
+	uint32_t event_time;  /* the client received the input event */
+	uint32_t enqueue_time;  /* the client queued the IPC command */
+	uint32_t ipc_write_time;  /* the client wrote the IPC command */
+	uint32_t receive_time;  /* the daemon received the IPC command */
+	uint32_t send_time;  /* the daemon sent the HID Report */
+} HidcInputTrace;
 
 
 /*
@@ -183,6 +219,95 @@ typedef enum HidcIpcCommand {
 	 *              2047 are allowed)
 	 */
 	HIDC_IPC_CMD_HID_SEND_MOUSE_ABSOLUTE = 160,
+	/*
+	 * Send a Mouse HID Report to the host and report the latency of the
+	 * input event with the HIDC_IPC_CB_INPUT_TRACE callback after the
+	 * Report was sent.
+	 * Additional data:
+	 *     7 bytes: The Mouse Report like in the HIDC_IPC_CMD_HID_SEND_MOUSE
+	 *              command.
+	 *     4 bytes: The time when the client received the input event.
+	 *     4 bytes: The time when the client queued the command.
+	 *     4 bytes: The time when the client wrote the command.
+	 *     All times are network byte order values like in the
+	 *     HidcInputTrace structure.
+	 */
+	HIDC_IPC_CMD_HID_SEND_MOUSE_TRACED = 165,
+	/*
+	 * Send multiple HID commands with a single IPC frame. The contained
+	 * commands are executed in the same order as they were written.
+	 * Additional data:
+	 *     4 bytes: Integer (network byte order) which contains the size of
+	 *              the following command data (values between 0 and
+	 *              HIDC_IPC_MAX_BATCH_SIZE are allowed).
+	 *     n bytes: A sequence of commands including their additional
+	 *              data. Only the commands between
+	 *              HIDC_IPC_CMD_HID_SEND_KEYS and
+	 *              HIDC_IPC_CMD_HID_SEND_MOUSE_TRACED are allowed.
+	 */
+	HIDC_IPC_CMD_HID_SEND_BATCH = 170,
+	/*
+	 * Queue a sequence of Keyboard HID Reports that the daemon sends to the
+	 * host at its own pace. Multiple sequences are appended to the same
+	 * queue. The progress is reported with the
+	 * HIDC_IPC_CB_KEY_SEQUENCE_PROGRESS callback. Reports that don't fit
+	 * into the queue (see HIDC_KEY_SEQUENCE_CAPACITY in "hidseq.h") are
+	 * discarded.
+	 * Additional data:
+	 *     2 bytes: The number of Keyboard Reports (values between 1 and
+	 *              HIDC_IPC_MAX_KEY_SEQUENCE_SIZE are allowed).
+	 *     2 bytes: The time in milliseconds between two reports or 0 to
+	 *              send the reports as fast as possible.
+	 *     n bytes: The Keyboard Reports. Each report consists of the
+	 *              modifier bitmask and the 6 key codes like in the
+	 *              HIDC_IPC_CMD_HID_SEND_KEYS command.
+	 */
+	HIDC_IPC_CMD_HID_SEND_KEY_SEQUENCE = 180,
+	/*
+	 * Discard all queued Keyboard Reports of the key sequences. The last
+	 * queued report is sent so that no keys remain pressed unintentionally.
+	 */
+	HIDC_IPC_CMD_HID_CANCEL_KEY_SEQUENCE = 185,
+	/*
+	 * Change the maximum number of Input Reports that the daemon sends per
+	 * second.
+	 * Additional data:
+	 *     2 bytes: The maximum report rate or 0 if the rate shouldn't be
+	 *              limited.
+	 */
+	HIDC_IPC_CMD_HID_SET_MAX_REPORT_RATE = 190,
+	/*
+	 * Attach a shared memory ring buffer that contains HID commands. The
+	 * file descriptor of the shared memory is passed as SCM_RIGHTS
+	 * ancillary data together with this command. The ring replaces a
+	 * previously attached ring and is detached when the IPC connection is
+	 * closed.
+	 * Memory layout (all Integers in network byte order):
+	 *     Header (HIDC_IPC_RING_HEADER_SIZE bytes):
+	 *         1 byte : Waiting flag. Set by the daemon when it has
+	 *                  executed all published commands; the client
+	 *                  resets it and sends HIDC_IPC_CMD_HID_RING_DOORBELL.
+	 *     Slots (HIDC_IPC_RING_SLOT_SIZE bytes each):
+	 *         4 bytes: Publish stamp. The sequence number of the command
+	 *                  plus one, written by the client after the command.
+	 *         4 bytes: Consume stamp. The same number, written by the
+	 *                  daemon after the command was executed. The client
+	 *                  must not reuse the slot before.
+	 *         1 byte : The size of the command.
+	 *         n bytes: A command like in a batch command.
+	 * Additional data:
+	 *     4 bytes: Integer (network byte order) which contains the number
+	 *              of slots (a power of two up to HIDC_IPC_RING_MAX_SLOTS).
+	 *     4 bytes: Integer (network byte order) which contains the slot
+	 *              size (must be HIDC_IPC_RING_SLOT_SIZE).
+	 * The daemon answers with HIDC_IPC_CB_REPORT_RING_ATTACHED. The client
+	 * must not publish commands in the ring before a successful result.
+	 */
+	HIDC_IPC_CMD_HID_ATTACH_REPORT_RING = 200,
+	/*
+	 * Execute the published commands of the shared memory ring buffer.
+	 */
+	HIDC_IPC_CMD_HID_RING_DOORBELL = 205,
 } HidcIpcCommand;
 
 /*
@@ -219,6 +344,31 @@ typedef enum HidcIpcCallback {
 	 *             active for the horizontal scroll wheel.
 	 */
 	HIDC_IPC_CB_MOUSE_FEATURE = 1050,
+	/*
+	 * Notification when queued key sequence reports were processed.
+	 * Additional data:
+	 *     4 bytes: Integer (network byte order) which contains the number
+	 *              of sent or discarded key sequence reports since the
+	 *              IPC connection was established.
+	 */
+	HIDC_IPC_CB_KEY_SEQUENCE_PROGRESS = 1060,
+	/*
+	 * Notification when a traced Mouse Report was sent to the host. A
+	 * Report that was merged from multiple traced commands reports the
+	 * trace of the oldest command.
+	 * Additional data:
+	 *     20 bytes: The 5 timestamps of the HidcInputTrace structure in
+	 *               the same order (network byte order).
+	 */
+	HIDC_IPC_CB_INPUT_TRACE = 1070,
+	/*
+	 * Result of a HIDC_IPC_CMD_HID_ATTACH_REPORT_RING command.
+	 * Additional data:
+	 *     4 bytes: Integer (network byte order) which contains 0 if the
+	 *              ring was attached or the error code value if it was
+	 *              rejected.
+	 */
+	HIDC_IPC_CB_REPORT_RING_ATTACHED = 1080,
 } HidcIpcCallback;
 
 /*
@@ -260,7 +410,7 @@ typedef enum HidcIpcErrorCallback {
 
 
 /*
- * Start the IPC server.
+ * Start the IPC server. The sockets are handled by the event loop.
  *
  * Returns:
  *     0 on success or a negative error code (defined in error.h) on failure.
@@ -285,6 +435,20 @@ void hidc_close_client_ipc();
  */
 int hidc_is_ipc_connected();
 
+/*
+ * Continue the HID commands of the client and the key sequence after they
+ * were paused because the interrupt channel queue was full.
+ */
+void hidc_resume_hid_input();
+
+/*
+ * Get the current time for the HidcInputTrace timestamps.
+ *
+ * Returns:
+ *     The microseconds of the monotonic clock truncated to 32 bits.
+ */
+uint32_t hidc_get_trace_time();
+
 
 /*
  * Send a HID connected notification to the client.
@@ -314,33 +478,40 @@ void hidc_send_ipc_cb_disconnected(int ec);
  */
 void hidc_send_ipc_cb_mouse_feature(int smoothscrolly, int smoothscrollx);
 
-
 /*
- * Send a error callback notification to the client.
+ * Send a key sequence progress notification.
  *
  * Parameters:
- *     cb: The error callback type.
- *     ec: The error code value.
+ *     processed: The number of sent or discarded key sequence reports since
+ *                the IPC connection was established.
  */
-void hidc_send_ipc_ecb(HidcIpcErrorCallback cb, int ec);
+void hidc_send_ipc_cb_key_sequence_progress(uint32_t processed);
 
+/*
+ * Send the timestamps of a traced input event.
+ *
+ * Parameters:
+ *     trace: The complete trace of the input event.
+ */
+void hidc_send_ipc_cb_input_trace(const HidcInputTrace *trace);
 
 /*
- * Init the unit specific poll file descriptors for the mainloop.
+ * Send the result of a report ring attach command.
  *
  * Parameters:
- *     spollfd: Server IPC socket.
- *     cpollfd: Client IPC socket.
+ *     ec: 0 if the ring was attached or an error code if it was rejected.
  */
-void hidc_init_ipc_pollfds(struct pollfd *spollfd, struct pollfd *cpollfd);
+void hidc_send_ipc_cb_report_ring_attached(int ec);
+
 
 /*
- * Handle the unit specific poll result of the mainloop.
+ * Send a error callback notification to the client.
  *
  * Parameters:
- *     spollfd: Server IPC socket.
- *     cpollfd: Client IPC socket.
+ *     cb: The error callback type.
+ *     ec: The error code value.
  */
-void hidc_handle_ipc_poll(struct pollfd *spollfd, struct pollfd *cpollfd);
+void hidc_send_ipc_ecb(HidcIpcErrorCallback cb, int ec);
+
 
 #endif
@@ -25,6 +25,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <time.h>
 #include <unistd.h>
 #include <sys/socket.h>
 #include <bluetooth/bluetooth.h>
@@ -33,6 +34,7 @@
 
 #include "error.h"
 #include "log.h"
+#include "eventloop.h"
 #include "hidipc.h"
 #include "hiddescriptor.h"
 #include "bluectrld.h"
@@ -58,6 +60,26 @@ static const int OUTPUT_MTU = HIDP_DEFAULT_MTU;
  */
 static const int FLUSH_TIMEOUT = 0xffff;
 
+/*
+ * The maximum number of Input Reports that wait in the interrupt channel
+ * queue.
+ */
+#define INTR_QUEUE_SIZE		32
+
+/*
+ * The IPC client input is paused if this number of Input Reports is queued
+ * and resumed after the queue was drained to INTR_QUEUE_RESUME_LEVEL. The
+ * entries above the pause level are a reserve for Reports that are created
+ * while the input is paused (e.g. by a canceled key sequence).
+ */
+#define INTR_QUEUE_PAUSE_LEVEL	(INTR_QUEUE_SIZE - 4)
+#define INTR_QUEUE_RESUME_LEVEL	(INTR_QUEUE_SIZE / 2)
+
+/*
+ * The size of the largest Input Report (including the Transaction Header).
+ */
+#define MAX_INPUT_REPORT_SIZE	10
+
 
 /*
  * Server/client control/interrupt sockets.
@@ -90,6 +112,67 @@ static unsigned char input_report_mouse[9];
 static unsigned char feature_report_mouse[3];
 static unsigned char input_report_mouse_abs[7];
 
+/*
+ * The types of Input Reports in the interrupt channel queue.
+ */
+typedef enum QueuedReportType {
+	QUEUED_REPORT_OTHER = 0,
+	QUEUED_REPORT_MOUSE,
+	QUEUED_REPORT_MOUSE_ABSOLUTE,
+} QueuedReportType;
+
+/*
+ * An Input Report that waits in the interrupt channel queue. Mouse Reports
+ * keep their unconverted values so that a backed up queue can combine them
+ * with following Mouse Reports.
+ */
+typedef struct QueuedReport {
+	unsigned char data[MAX_INPUT_REPORT_SIZE];
+	int size;
+	QueuedReportType type;
+	unsigned char buttons;
+	int x;
+	int y;
+	int scroll_y;
+	int scroll_x;
+	int is_traced;
+	HidcInputTrace trace;
+} QueuedReport;
+
+/*
+ * The outbound queue of the interrupt channel (ring buffer).
+ */
+static QueuedReport intr_queue[INTR_QUEUE_SIZE];
+static int intr_queue_head = 0;
+static int intr_queue_count = 0;
+
+/*
+ * True if the interrupt socket didn't accept more data and the event loop
+ * waits until it is writable again.
+ */
+static int intr_queue_blocked = 0;
+
+/*
+ * True if the queue reached the pause level and the IPC client input waits
+ * until the queue is drained.
+ */
+static int intr_queue_full = 0;
+
+/*
+ * The minimum time in microseconds between two Input Reports (0 if unlimited).
+ */
+static int64_t intr_report_interval = 0;
+
+/*
+ * The monotonic time in microseconds when the next Input Report may be sent.
+ */
+static int64_t intr_next_send_time = 0;
+
+/*
+ * The event loop timer that sends the queued Input Reports.
+ */
+static int intr_queue_timer = -1;
+
 
 /*
  * Clear and initialize the Keyboard Input Report.
@@ -311,6 +394,21 @@ static int limit_int_value(int value, int min, int max)
 		return value;
 }
 
+/*
+ * Get the current monotonic time.
+ *
+ * Returns:
+ *     The time in microseconds.
+ */
+static int64_t get_time_us()
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
 /*
  * Set HID Profile specific options for the L2CAP socket.
  *
@@ -453,6 +551,24 @@ static int l2cap_connect(bdaddr_t *src, bdaddr_t *dst, unsigned short psm)
 	return sk;
 }
 
+/*
+ * Discard all Input Reports in the interrupt channel queue.
+ */
+static void reset_intr_queue()
+{
+	intr_queue_head = 0;
+	intr_queue_count = 0;
+	intr_queue_blocked = 0;
+	intr_next_send_time = 0;
+
+	hidc_eventloop_set_timer(intr_queue_timer, -1);
+
+	if (intr_queue_full) {
+		intr_queue_full = 0;
+		hidc_resume_hid_input();
+	}
+}
+
 /*
  * Called after a HID host got connected.
  *
@@ -477,6 +593,8 @@ static void on_hid_connected(bdaddr_t *dst_addr)
 	reset_input_report_mouse_abs();
 	reset_feature_report_mouse();
 
+	reset_intr_queue();
+
 	ba2str(dst_addr, str_addr);
 	log_i("HID connected (%s)", str_addr);
 
@@ -495,6 +613,7 @@ static void close_client_sockets(int ec)
 	int con_closed = 0;
 
 	if (client_intr_sock > -1) {
+		hidc_eventloop_remove(client_intr_sock);
 		if (close(client_intr_sock) < 0)
 			log_ec(errno, "Can't close HID interrupt socket");
 
@@ -503,6 +622,7 @@ static void close_client_sockets(int ec)
 	}
 
 	if (client_ctrl_sock > -1) {
+		hidc_eventloop_remove(client_ctrl_sock);
 		if (close(client_ctrl_sock) < 0)
 			log_ec(errno, "Can't close HID control socket");
 
@@ -510,6 +630,8 @@ static void close_client_sockets(int ec)
 		con_closed = 1;
 	}
 
+	reset_intr_queue();
+
 	if (con_closed) {
 		log_i("HID connection closed");
 		hidc_send_ipc_cb_disconnected(ec);
@@ -554,6 +676,389 @@ static void send_handshake(int socket, unsigned char param)
 	send_data_report(socket, report_data, sizeof(report_data));
 }
 
+/*
+ * Send an Input Report on the client interrupt socket. If the socket doesn't
+ * accept more data, the interrupt channel queue is blocked until the event
+ * loop reports that the socket is writable again.
+ *
+ * Parameters:
+ *     data: The complete (with Transaction Header) Report data.
+ *     data_size: The size of the data parameter.
+ *     flags: The flags for the send call (MSG_DONTWAIT or 0).
+ *
+ * Returns:
+ *     1 if the Report was sent, 0 if the socket is busy or -1 if the HID
+ *     connection was closed because of an error.
+ */
+static int send_intr_data(unsigned char *data, int data_size, int flags)
+{
+	int errsv;  /* saved errno */
+
+	if (send(client_intr_sock, data, data_size, flags) > 0)
+		return 1;
+
+	errsv = errno;
+	if (errsv == EAGAIN || errsv == EWOULDBLOCK) {
+		if (!intr_queue_blocked) {
+			intr_queue_blocked = 1;
+			hidc_eventloop_modify(client_intr_sock,
+					EPOLLIN | EPOLLOUT);
+		}
+		return 0;
+	}
+
+	log_ec(errsv, "Can't write to HID socket");
+	close_client_sockets(hidc_convert_errno(errsv));
+	return -1;
+}
+
+/*
+ * Remove the oldest Input Report from the interrupt channel queue after it
+ * has been sent.
+ *
+ * Parameters:
+ *     now: The current monotonic time in microseconds.
+ */
+static void pop_intr_report(int64_t now)
+{
+	QueuedReport *report = &intr_queue[intr_queue_head];
+
+	if (report->is_traced) {
+		report->trace.send_time = hidc_get_trace_time();
+		hidc_send_ipc_cb_input_trace(&report->trace);
+	}
+
+	intr_queue_head = (intr_queue_head + 1) % INTR_QUEUE_SIZE;
+	intr_queue_count--;
+
+	if (intr_report_interval > 0) {
+		/* don't try to catch up more than one Report after a pause */
+		if (intr_next_send_time < now - intr_report_interval)
+			intr_next_send_time = now;
+		intr_next_send_time += intr_report_interval;
+	}
+
+	if (intr_queue_full && intr_queue_count <= INTR_QUEUE_RESUME_LEVEL) {
+		intr_queue_full = 0;
+		hidc_resume_hid_input();
+	}
+}
+
+/*
+ * Start the timer for the next queued Input Report or stop it if nothing can
+ * be sent.
+ */
+static void update_intr_queue_timer()
+{
+	int64_t delay;
+
+	if (intr_queue_count < 1 || intr_queue_blocked) {
+		hidc_eventloop_set_timer(intr_queue_timer, -1);
+		return;
+	}
+
+	delay = intr_next_send_time - get_time_us();
+	hidc_eventloop_set_timer(intr_queue_timer,
+			(delay > 0) ? (int)((delay + 999) / 1000) : 0);
+}
+
+/*
+ * Send the queued Input Reports until the queue is empty, the socket is busy
+ * or the maximum report rate is reached.
+ */
+static void flush_intr_queue()
+{
+	QueuedReport *report;
+	int64_t now;
+	int result;
+
+	now = get_time_us();
+
+	while (intr_queue_count > 0 && !intr_queue_blocked &&
+			intr_next_send_time <= now) {
+		report = &intr_queue[intr_queue_head];
+
+		result = send_intr_data(report->data, report->size,
+					MSG_DONTWAIT);
+		if (result < 0)
+			return;
+		else if (result == 0)
+			break;
+
+		pop_intr_report(now);
+	}
+
+	update_intr_queue_timer();
+}
+
+/*
+ * Handle the expiration of the interrupt channel queue timer.
+ */
+static void on_intr_queue_timer_event(int fd, uint32_t events)
+{
+	if (hidc_is_hid_connected())
+		flush_intr_queue();
+}
+
+/*
+ * Reserve a new entry at the end of the interrupt channel queue. The IPC
+ * client input is paused when the queue reaches the pause level, so the
+ * queue only overflows if the reserve is used up as well.
+ *
+ * Returns:
+ *     The new entry or NULL if the queue is full.
+ */
+static QueuedReport *append_intr_report()
+{
+	QueuedReport *report;
+
+	if (intr_queue_timer < 0)
+		intr_queue_timer = hidc_eventloop_create_timer(
+					on_intr_queue_timer_event);
+
+	if (intr_queue_count >= INTR_QUEUE_SIZE) {
+		log_e("HID interrupt queue is full, Input Report dropped");
+		return NULL;
+	}
+
+	report = &intr_queue[(intr_queue_head + intr_queue_count) %
+			INTR_QUEUE_SIZE];
+	intr_queue_count++;
+
+	if (intr_queue_count >= INTR_QUEUE_PAUSE_LEVEL)
+		intr_queue_full = 1;
+
+	report->type = QUEUED_REPORT_OTHER;
+	report->is_traced = 0;
+
+	return report;
+}
+
+/*
+ * Get the last Input Report in the interrupt channel queue that hasn't been
+ * sent yet.
+ *
+ * Returns:
+ *     The entry or NULL if the queue is empty.
+ */
+static QueuedReport *get_last_intr_report()
+{
+	if (intr_queue_count < 1)
+		return NULL;
+
+	return &intr_queue[(intr_queue_head + intr_queue_count - 1) %
+			INTR_QUEUE_SIZE];
+}
+
+/*
+ * Queue an Input Report for the client interrupt socket and send it right
+ * away if the socket and the maximum report rate allow it.
+ *
+ * Parameters:
+ *     data: The complete (with Transaction Header) Report data.
+ *     data_size: The size of the data parameter.
+ */
+static void send_intr_report(unsigned char *data, int data_size)
+{
+	QueuedReport *report;
+
+	if (client_intr_sock < 0)
+		return;
+
+	report = append_intr_report();
+	if (report == NULL)
+		return;
+
+	memcpy(report->data, data, data_size);
+	report->size = data_size;
+
+	flush_intr_queue();
+}
+
+/*
+ * Build the Mouse Input Report data of a queued Mouse Report.
+ *
+ * Parameters:
+ *     report: The queued Report with the unconverted Mouse values.
+ */
+static void build_queued_mouse_report(QueuedReport *report)
+{
+	int16_t x;
+	int16_t y;
+
+	reset_input_report_mouse();
+
+	input_report_mouse[2] = report->buttons;
+
+	if (use_report_protocol) {
+		x = htobs((int16_t)limit_int_value(report->x, -2047, 2047));
+		y = htobs((int16_t)limit_int_value(report->y, -2047, 2047));
+
+		memcpy(input_report_mouse + 3, &x, 2);
+		memcpy(input_report_mouse + 5, &y, 2);
+		input_report_mouse[7] = (signed char)limit_int_value(
+						report->scroll_y, -127, 127);
+		input_report_mouse[8] = (signed char)limit_int_value(
+						report->scroll_x, -127, 127);
+	}
+	else {
+		/*
+		 * The boot Mouse pointer will be moved roughly every quarter.
+		 * Always round the value up, so the pointer is moving
+		 * consistent even if the value is smaller than 4.
+		 */
+		input_report_mouse[3] = (signed char)limit_int_value(
+						(report->x + 3) / 4, -127, 127);
+		input_report_mouse[4] = (signed char)limit_int_value(
+						(report->y + 3) / 4, -127, 127);
+	}
+
+	report->size = get_input_report_mouse_size();
+	memcpy(report->data, input_report_mouse, report->size);
+}
+
+/*
+ * Check if a relative movement can be added to a queued Mouse Report without
+ * exceeding the value range of the Report.
+ *
+ * Parameters:
+ *     report: The queued Mouse Report.
+ *     x, y, scroll_y, scroll_x: The relative values that should be added.
+ *
+ * Returns:
+ *     True if the values fit into the Report.
+ */
+static int can_merge_mouse_report(QueuedReport *report,
+				int x, int y, int scroll_y, int scroll_x)
+{
+	int max_xy = (use_report_protocol ? 2047 : 127 * 4);
+
+	return (abs(report->x + x) <= max_xy &&
+		abs(report->y + y) <= max_xy &&
+		abs(report->scroll_y + scroll_y) <= 127 &&
+		abs(report->scroll_x + scroll_x) <= 127);
+}
+
+/*
+ * Queue a relative Mouse Report. If the previous Mouse Report is still waiting
+ * in the queue and has the same button state, the movement is added to it
+ * instead, so that a backed up queue doesn't delay the pointer any further.
+ * Button transitions always get their own Report.
+ *
+ * Parameters:
+ *     buttons, x, y, scroll_y, scroll_x: The Mouse Report values.
+ *     trace: The trace of the input event or NULL if it isn't traced. A
+ *            merged Report keeps the trace of its oldest input event.
+ */
+static void send_mouse_report(unsigned char buttons, int x, int y,
+			int scroll_y, int scroll_x, const HidcInputTrace *trace)
+{
+	QueuedReport *report;
+
+	if (client_intr_sock < 0)
+		return;
+
+	report = get_last_intr_report();
+	if (report != NULL && report->type == QUEUED_REPORT_MOUSE &&
+			report->buttons == buttons &&
+			can_merge_mouse_report(report, x, y, scroll_y, scroll_x)) {
+		report->x += x;
+		report->y += y;
+		report->scroll_y += scroll_y;
+		report->scroll_x += scroll_x;
+		build_queued_mouse_report(report);
+
+		if (trace != NULL && !report->is_traced) {
+			report->is_traced = 1;
+			report->trace = *trace;
+		}
+		return;
+	}
+
+	report = append_intr_report();
+	if (report == NULL)
+		return;
+
+	report->type = QUEUED_REPORT_MOUSE;
+	report->buttons = buttons;
+	report->x = x;
+	report->y = y;
+	report->scroll_y = scroll_y;
+	report->scroll_x = scroll_x;
+	build_queued_mouse_report(report);
+
+	if (trace != NULL) {
+		report->is_traced = 1;
+		report->trace = *trace;
+	}
+
+	flush_intr_queue();
+}
+
+/*
+ * Build the Mouse (Absolute) Input Report data of a queued Mouse Report.
+ *
+ * Parameters:
+ *     report: The queued Report with the unconverted Mouse values.
+ */
+static void build_queued_mouse_abs_report(QueuedReport *report)
+{
+	uint16_t x;
+	uint16_t y;
+
+	reset_input_report_mouse_abs();
+
+	x = htobs((uint16_t)limit_int_value(report->x, 0, 2047));
+	y = htobs((uint16_t)limit_int_value(report->y, 0, 2047));
+
+	input_report_mouse_abs[2] = report->buttons;
+	memcpy(input_report_mouse_abs + 3, &x, 2);
+	memcpy(input_report_mouse_abs + 5, &y, 2);
+
+	report->size = get_input_report_mouse_abs_size();
+	memcpy(report->data, input_report_mouse_abs, report->size);
+}
+
+/*
+ * Queue an absolute Mouse Report. If the previous absolute Mouse Report is
+ * still waiting in the queue and has the same button state, its position is
+ * overwritten instead, because only the latest position matters to the host.
+ * Button transitions always get their own Report.
+ *
+ * Parameters:
+ *     buttons, x, y: The Mouse Report values.
+ */
+static void send_mouse_abs_report(unsigned char buttons, int x, int y)
+{
+	QueuedReport *report;
+
+	if (client_intr_sock < 0)
+		return;
+
+	report = get_last_intr_report();
+	if (report != NULL && report->type == QUEUED_REPORT_MOUSE_ABSOLUTE &&
+			report->buttons == buttons) {
+		report->x = x;
+		report->y = y;
+		build_queued_mouse_abs_report(report);
+		return;
+	}
+
+	report = append_intr_report();
+	if (report == NULL)
+		return;
+
+	report->type = QUEUED_REPORT_MOUSE_ABSOLUTE;
+	report->buttons = buttons;
+	report->x = x;
+	report->y = y;
+	report->scroll_y = 0;
+	report->scroll_x = 0;
+	build_queued_mouse_abs_report(report);
+
+	flush_intr_queue();
+}
+
 /*
  * Log binary data with a description.
  *
@@ -995,59 +1500,7 @@ static void on_cmd_datac(unsigned char param, unsigned char *data,
 }
 
 /*
- * Handle a poll input event on the server control socket.
- */
-static void pollin_server_ctrl_sock()
-{
-	int socket;
-	bdaddr_t dst_addr;  /* destination address */
-	char str_addr[18];  /* address as a String */
-
-	socket = l2cap_accept(server_ctrl_sock, &dst_addr);
-	if (socket < 0) {
-		log_ec(errno, "Can't accept HID control socket");
-		return;
-	}
-
-	if (hidc_is_hid_connected()) {
-		ba2str(&dst_addr, str_addr);
-		log_i("Host connection request blocked (%s): "
-			"already connected", str_addr);
-		close(socket);
-	}
-	else {
-		client_ctrl_sock = socket;
-		if (hidc_is_hid_connected())
-			on_hid_connected(&dst_addr);
-	}
-}
-
-/*
- * Handle a poll input event on the server interrupt socket.
- */
-static void pollin_server_intr_sock()
-{
-	int socket;
-	bdaddr_t dst_addr;  /* destination address */
-
-	socket = l2cap_accept(server_intr_sock, &dst_addr);
-	if (socket < 0) {
-		log_ec(errno, "Can't accept HID interrupt socket");
-		return;
-	}
-
-	if (hidc_is_hid_connected()) {
-		close(socket);
-	}
-	else {
-		client_intr_sock = socket;
-		if (hidc_is_hid_connected())
-			on_hid_connected(&dst_addr);
-	}
-}
-
-/*
- * Handle a poll input event on the client control socket.
+ * Handle an input event on the client control socket.
  */
 static void pollin_client_ctrl_sock()
 {
@@ -1104,7 +1557,7 @@ static void pollin_client_ctrl_sock()
 }
 
 /*
- * Handle a poll input event on the client interrupt socket.
+ * Handle an input event on the client interrupt socket.
  */
 static void pollin_client_intr_sock()
 {
@@ -1145,10 +1598,175 @@ static void pollin_client_intr_sock()
 	}
 }
 
+/*
+ * Close a client socket that isn't part of a complete HID connection yet.
+ *
+ * Parameters:
+ *     socket: The client socket.
+ */
+static void close_pending_client_sock(int socket)
+{
+	if (socket > -1) {
+		hidc_eventloop_remove(socket);
+		close(socket);
+	}
+}
+
+/*
+ * Handle an event loop event on the client control socket.
+ */
+static void on_client_ctrl_sock_event(int fd, uint32_t events)
+{
+	/* the host closed the connection before it was complete */
+	if (!hidc_is_hid_connected()) {
+		if (events & (EPOLLERR | EPOLLHUP)) {
+			log_d("Remote closed pending HID control connection");
+			close_pending_client_sock(client_ctrl_sock);
+			client_ctrl_sock = -1;
+		}
+		return;
+	}
+
+	if (events & EPOLLIN) {
+		pollin_client_ctrl_sock();
+	}
+	if ((events & EPOLLERR) && hidc_is_hid_connected()) {
+		log_e("Error on HID control socket");
+		close_client_sockets(HIDC_EC_UNKNOWN);
+	}
+	if ((events & EPOLLHUP) && hidc_is_hid_connected()) {
+		log_d("Remote closed HID control connection");
+		close_client_sockets(0);
+	}
+}
+
+/*
+ * Handle an event loop event on the client interrupt socket.
+ */
+static void on_client_intr_sock_event(int fd, uint32_t events)
+{
+	/* the host closed the connection before it was complete */
+	if (!hidc_is_hid_connected()) {
+		if (events & (EPOLLERR | EPOLLHUP)) {
+			log_d("Remote closed pending HID interrupt connection");
+			close_pending_client_sock(client_intr_sock);
+			client_intr_sock = -1;
+		}
+		return;
+	}
+
+	if (events & EPOLLIN) {
+		pollin_client_intr_sock();
+	}
+	if ((events & EPOLLOUT) && hidc_is_hid_connected()) {
+		/* the socket accepts data again */
+		intr_queue_blocked = 0;
+		hidc_eventloop_modify(client_intr_sock, EPOLLIN);
+		flush_intr_queue();
+	}
+	if ((events & EPOLLERR) && hidc_is_hid_connected()) {
+		log_e("Error on HID interrupt socket");
+		close_client_sockets(HIDC_EC_UNKNOWN);
+	}
+	if ((events & EPOLLHUP) && hidc_is_hid_connected()) {
+		log_d("Remote closed HID interrupt connection");
+		close_client_sockets(0);
+	}
+}
+
+/*
+ * Handle an input event on the server control socket.
+ */
+static void pollin_server_ctrl_sock()
+{
+	int socket;
+	bdaddr_t dst_addr;  /* destination address */
+	char str_addr[18];  /* address as a String */
+
+	socket = l2cap_accept(server_ctrl_sock, &dst_addr);
+	if (socket < 0) {
+		log_ec(errno, "Can't accept HID control socket");
+		return;
+	}
+
+	if (hidc_is_hid_connected()) {
+		ba2str(&dst_addr, str_addr);
+		log_i("Host connection request blocked (%s): "
+			"already connected", str_addr);
+		close(socket);
+	}
+	else {
+		close_pending_client_sock(client_ctrl_sock);
+		client_ctrl_sock = -1;
+
+		if (hidc_eventloop_add(socket, EPOLLIN,
+					on_client_ctrl_sock_event) < 0) {
+			close(socket);
+			return;
+		}
+
+		client_ctrl_sock = socket;
+		if (hidc_is_hid_connected())
+			on_hid_connected(&dst_addr);
+	}
+}
+
+/*
+ * Handle an input event on the server interrupt socket.
+ */
+static void pollin_server_intr_sock()
+{
+	int socket;
+	bdaddr_t dst_addr;  /* destination address */
+
+	socket = l2cap_accept(server_intr_sock, &dst_addr);
+	if (socket < 0) {
+		log_ec(errno, "Can't accept HID interrupt socket");
+		return;
+	}
+
+	if (hidc_is_hid_connected()) {
+		close(socket);
+	}
+	else {
+		close_pending_client_sock(client_intr_sock);
+		client_intr_sock = -1;
+
+		if (hidc_eventloop_add(socket, EPOLLIN,
+					on_client_intr_sock_event) < 0) {
+			close(socket);
+			return;
+		}
+
+		client_intr_sock = socket;
+		if (hidc_is_hid_connected())
+			on_hid_connected(&dst_addr);
+	}
+}
+
+/*
+ * Handle an event loop event on the server control socket.
+ */
+static void on_server_ctrl_sock_event(int fd, uint32_t events)
+{
+	if (events & EPOLLIN)
+		pollin_server_ctrl_sock();
+}
+
+/*
+ * Handle an event loop event on the server interrupt socket.
+ */
+static void on_server_intr_sock_event(int fd, uint32_t events)
+{
+	if (events & EPOLLIN)
+		pollin_server_intr_sock();
+}
+
 
 int hidc_start_hid_server()
 {
 	int errsv;  /* saved errno */
+	int ec;  /* error code */
 
 	if (server_ctrl_sock < 0) {
 		server_ctrl_sock = l2cap_listen(hidc_get_app_dev_bdaddr(),
@@ -1167,6 +1785,13 @@ int hidc_start_hid_server()
 			}
 			return hidc_convert_errno(errsv);
 		}
+
+		if ((ec = hidc_eventloop_add(server_ctrl_sock, EPOLLIN,
+					on_server_ctrl_sock_event)) < 0) {
+			close(server_ctrl_sock);
+			server_ctrl_sock = -1;
+			return ec;
+		}
 	}
 
 	if (server_intr_sock < 0) {
@@ -1177,10 +1802,17 @@ int hidc_start_hid_server()
 		if (server_intr_sock < 0) {
 			errsv = errno;
 			log_ec(errsv, "Can't create HID interrupt socket");
-			close(server_ctrl_sock);
-			server_ctrl_sock = -1;
+			hidc_stop_hid_server();
 			return hidc_convert_errno(errsv);
 		}
+
+		if ((ec = hidc_eventloop_add(server_intr_sock, EPOLLIN,
+					on_server_intr_sock_event)) < 0) {
+			close(server_intr_sock);
+			server_intr_sock = -1;
+			hidc_stop_hid_server();
+			return ec;
+		}
 	}
 
 	log_d("HID server started");
@@ -1193,12 +1825,14 @@ void hidc_stop_hid_server()
 	int stopped = 0;
 
 	if (server_intr_sock > -1) {
+		hidc_eventloop_remove(server_intr_sock);
 		close(server_intr_sock);
 		server_intr_sock = -1;
 		stopped = 1;
 	}
 
 	if (server_ctrl_sock > -1) {
+		hidc_eventloop_remove(server_ctrl_sock);
 		close(server_ctrl_sock);
 		server_ctrl_sock = -1;
 		stopped = 1;
@@ -1216,6 +1850,7 @@ int hidc_is_hid_server_running()
 int hidc_connect_hid(bdaddr_t *dst_addr)
 {
 	int errsv;  /* saved errno */
+	int ec;  /* error code */
 
 	if (hidc_is_hid_connected())
 		return 0;
@@ -1240,6 +1875,17 @@ int hidc_connect_hid(bdaddr_t *dst_addr)
 		return hidc_convert_errno(errsv);
 	}
 
+	if ((ec = hidc_eventloop_add(client_ctrl_sock, EPOLLIN,
+				on_client_ctrl_sock_event)) < 0 ||
+			(ec = hidc_eventloop_add(client_intr_sock, EPOLLIN,
+				on_client_intr_sock_event)) < 0) {
+		close_pending_client_sock(client_intr_sock);
+		client_intr_sock = -1;
+		close_pending_client_sock(client_ctrl_sock);
+		client_ctrl_sock = -1;
+		return ec;
+	}
+
 	on_hid_connected(dst_addr);
 
 	return 0;
@@ -1269,8 +1915,7 @@ void hidc_send_hid_report_keys(unsigned char modifiers,
 	input_report_keys[3] = 0x00;  /* Reserved */
 	memcpy(input_report_keys + 4, keycodes, 6);
 
-	send_data_report(client_intr_sock,
-			input_report_keys,
+	send_intr_report(input_report_keys,
 			get_input_report_keys_size());
 }
 
@@ -1280,8 +1925,7 @@ void hidc_send_hid_report_system_keys(unsigned char keys)
 
 	input_report_system_keys[2] = keys;
 
-	send_data_report(client_intr_sock,
-			input_report_system_keys,
+	send_intr_report(input_report_system_keys,
 			get_input_report_system_keys_size());
 }
 
@@ -1291,8 +1935,7 @@ void hidc_send_hid_report_hw_keys(unsigned char keys)
 
 	input_report_hw_keys[2] = keys;
 
-	send_data_report(client_intr_sock,
-			input_report_hw_keys,
+	send_intr_report(input_report_hw_keys,
 			get_input_report_hw_keys_size());
 }
 
@@ -1302,8 +1945,7 @@ void hidc_send_hid_report_media_keys(unsigned char keys)
 
 	input_report_media_keys[2] = keys;
 
-	send_data_report(client_intr_sock,
-			input_report_media_keys,
+	send_intr_report(input_report_media_keys,
 			get_input_report_media_keys_size());
 }
 
@@ -1313,66 +1955,42 @@ void hidc_send_hid_report_ac_keys(unsigned char keys)
 
 	input_report_ac_keys[2] = keys;
 
-	send_data_report(client_intr_sock,
-			input_report_ac_keys,
+	send_intr_report(input_report_ac_keys,
 			get_input_report_ac_keys_size());
 }
 
 void hidc_send_hid_report_mouse(unsigned char buttons, int16_t x, int16_t y,
 				signed char scrollY, signed char scrollX)
 {
-	reset_input_report_mouse();
-
-	if (use_report_protocol) {
-		x = htobs((int16_t)limit_int_value(x, -2047, 2047));
-		y = htobs((int16_t)limit_int_value(y, -2047, 2047));
-
-		scrollY = (signed char)limit_int_value(scrollY, -127, 127);
-		scrollX = (signed char)limit_int_value(scrollX, -127, 127);
-
-		input_report_mouse[2] = buttons;
-		memcpy(input_report_mouse + 3, &x, 2);
-		memcpy(input_report_mouse + 5, &y, 2);
-		input_report_mouse[7] = scrollY;
-		input_report_mouse[8] = scrollX;
-	}
-	else {
-		/*
-		 * The boot Mouse pointer will be moved roughly every quarter.
-		 * Always round the value up, so the pointer is moving
-		 * consistent even if the value is smaller than 4.
-		 */
-		x = (x + 3) / 4;
-		y = (y + 3) / 4;
-
-		x = (int16_t)limit_int_value(x, -127, 127);
-		y = (int16_t)limit_int_value(y, -127, 127);
-
-		input_report_mouse[2] = buttons;
-		input_report_mouse[3] = (signed char)x;
-		input_report_mouse[4] = (signed char)y;
-	}
+	send_mouse_report(buttons, x, y, scrollY, scrollX, NULL);
+}
 
-	send_data_report(client_intr_sock,
-			input_report_mouse,
-			get_input_report_mouse_size());
+void hidc_send_hid_report_mouse_traced(unsigned char buttons, int16_t x,
+				int16_t y, signed char scrollY,
+				signed char scrollX,
+				const HidcInputTrace *trace)
+{
+	send_mouse_report(buttons, x, y, scrollY, scrollX, trace);
 }
 
 void hidc_send_hid_report_mouse_abs(unsigned char buttons, uint16_t x,
 				uint16_t y)
 {
-	reset_input_report_mouse_abs();
+	send_mouse_abs_report(buttons, x, y);
+}
 
-	x = htobs((uint16_t)limit_int_value(x, 0, 2047));
-	y = htobs((uint16_t)limit_int_value(y, 0, 2047));
+int hidc_is_hid_queue_full()
+{
+	return intr_queue_full;
+}
 
-	input_report_mouse_abs[2] = buttons;
-	memcpy(input_report_mouse_abs + 3, &x, 2);
-	memcpy(input_report_mouse_abs + 5, &y, 2);
+void hidc_set_max_report_rate(int rate)
+{
+	intr_report_interval = (rate > 0) ? 1000000 / rate : 0;
+	intr_next_send_time = 0;
 
-	send_data_report(client_intr_sock,
-			input_report_mouse_abs,
-			get_input_report_mouse_abs_size());
+	if (hidc_is_hid_connected())
+		flush_intr_queue();
 }
 
 void hidc_change_mouse_feature(int smooth_scroll_y, int smooth_scroll_x)
@@ -1392,59 +2010,3 @@ void hidc_change_mouse_feature(int smooth_scroll_y, int smooth_scroll_x)
 	 * See chapter 4.8 in the "USB HID Usage Tables" documentation.
 	 */
 }
-
-void hidc_init_l2cap_pollfds(struct pollfd *scpollfd, struct pollfd *sipollfd,
-			struct pollfd *ccpollfd, struct pollfd *cipollfd)
-{
-	scpollfd->fd = server_ctrl_sock;
-	scpollfd->events = POLLIN;
-	scpollfd->revents = 0;
-
-	sipollfd->fd = server_intr_sock;
-	sipollfd->events = POLLIN;
-	sipollfd->revents = 0;
-
-	ccpollfd->fd = client_ctrl_sock;
-	ccpollfd->events = POLLIN | POLLERR | POLLHUP;
-	ccpollfd->revents = 0;
-
-	cipollfd->fd = client_intr_sock;
-	cipollfd->events = POLLIN | POLLERR | POLLHUP;
-	cipollfd->revents = 0;
-}
-
-void hidc_handle_l2cap_poll(struct pollfd *scpollfd, struct pollfd *sipollfd,
-			struct pollfd *ccpollfd, struct pollfd *cipollfd)
-{
-	if (scpollfd->revents & POLLIN)
-		pollin_server_ctrl_sock();
-
-	if (sipollfd->revents & POLLIN)
-		pollin_server_intr_sock();
-
-	if (hidc_is_hid_connected()) {
-		if (ccpollfd->revents & POLLIN) {
-			pollin_client_ctrl_sock();
-		}
-		if (ccpollfd->revents & POLLERR) {
-			log_e("Error on HID control socket");
-			close_client_sockets(HIDC_EC_UNKNOWN);
-		}
-		if (ccpollfd->revents & POLLHUP) {
-			log_d("Remote closed HID control connection");
-			close_client_sockets(0);
-		}
-
-		if (cipollfd->revents & POLLIN) {
-			pollin_client_intr_sock();
-		}
-		if (cipollfd->revents & POLLERR) {
-			log_e("Error on HID interrupt socket");
-			close_client_sockets(HIDC_EC_UNKNOWN);
-		}
-		if (cipollfd->revents & POLLHUP) {
-			log_d("Remote closed HID interrupt connection");
-			close_client_sockets(0);
-		}
-	}
-}
@@ -24,7 +24,8 @@
 #define __HIDL2CAP_H
 
 #include <bluetooth/bluetooth.h>
-#include <sys/poll.h>
+
+#include "hidipc.h"
 
 
 /*
@@ -92,7 +93,8 @@
 
 
 /*
- * Start the HID server so that HID hosts can initiate a connection.
+ * Start the HID server so that HID hosts can initiate a connection. The
+ * sockets are handled by the event loop.
  *
  * Returns:
  *     0 on success or a negative error code (defined in error.h) on failure.
@@ -246,6 +248,20 @@ void hidc_send_hid_report_ac_keys(unsigned char keys);
 void hidc_send_hid_report_mouse(unsigned char buttons, int16_t x, int16_t y,
 				signed char scrollY, signed char scrollX);
 
+/*
+ * Send a Mouse HID Report to the host and send the completed input trace to
+ * the IPC client after the Report left the queue.
+ *
+ * Parameters:
+ *     buttons, x, y, scrollY, scrollX: Like in hidc_send_hid_report_mouse.
+ *     trace: The trace of the input event. The send time is filled in when
+ *            the Report is sent.
+ */
+void hidc_send_hid_report_mouse_traced(unsigned char buttons, int16_t x,
+				int16_t y, signed char scrollY,
+				signed char scrollX,
+				const HidcInputTrace *trace);
+
 /*
  * Send a Mouse (Absolute) HID Report to the host.
  *
@@ -260,37 +276,35 @@ void hidc_send_hid_report_mouse_abs(unsigned char buttons, uint16_t x,
 				uint16_t y);
 
 /*
- * Change the Mouse Feature Report.
+ * Check if the interrupt channel queue is too full to accept more Input
+ * Reports from the IPC client. hidc_resume_hid_input() is called after the
+ * queue was drained.
  *
- * Parameters:
- *     smooth_scroll_y: Smooth Scrolling for the vertical scroll wheel.
- *     smooth_scroll_x: Smooth Scrolling for the horizontal scroll wheel.
+ * Returns:
+ *     True if the HID input should be paused; False if not.
  */
-void hidc_change_mouse_feature(int smooth_scroll_y, int smooth_scroll_x);
-
+int hidc_is_hid_queue_full();
 
 /*
- * Init the unit specific poll file descriptors for the mainloop.
+ * Limit the number of Input Reports that are sent per second. Reports that
+ * exceed the limit wait in a queue. While Reports are waiting, consecutive
+ * Mouse Reports with the same button state are combined: relative movements
+ * are summed up and absolute positions are replaced by the latest one.
  *
  * Parameters:
- *     scpollfd: Server control socket.
- *     sipollfd: Server interrupt socket.
- *     ccpollfd: Client control socket.
- *     cipollfd: Client interrupt socket.
+ *     rate: The maximum number of Input Reports per second or 0 if the
+ *           Reports should be sent as fast as the connection allows.
  */
-void hidc_init_l2cap_pollfds(struct pollfd *scpollfd, struct pollfd *sipollfd,
-			struct pollfd *ccpollfd, struct pollfd *cipollfd);
+void hidc_set_max_report_rate(int rate);
 
 /*
- * Handle the unit specific poll result of the mainloop.
+ * Change the Mouse Feature Report.
  *
  * Parameters:
- *     scpollfd: Server control socket.
- *     sipollfd: Server interrupt socket.
- *     ccpollfd: Client control socket.
- *     cipollfd: Client interrupt socket.
+ *     smooth_scroll_y: Smooth Scrolling for the vertical scroll wheel.
+ *     smooth_scroll_x: Smooth Scrolling for the horizontal scroll wheel.
  */
-void hidc_handle_l2cap_poll(struct pollfd *scpollfd, struct pollfd *sipollfd,
-			struct pollfd *ccpollfd, struct pollfd *cipollfd);
+void hidc_change_mouse_feature(int smooth_scroll_y, int smooth_scroll_x);
+
 
 #endif
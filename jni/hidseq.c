@@ -0,0 +1,243 @@
+/*
+ *  Key sequence functions
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <stdint.h>
+#include <string.h>
+#include <time.h>
+
+#include "log.h"
+#include "eventloop.h"
+#include "hidipc.h"
+#include "hidl2cap.h"
+#include "hidseq.h"
+
+
+/*
+ * The maximum number of reports that are sent in one timer event if the
+ * reports should be sent as fast as possible. This keeps the event loop
+ * responsive for other IPC commands and L2CAP events.
+ */
+static const int BURST_SIZE = 16;
+
+/*
+ * A progress callback is sent after this number of processed reports.
+ */
+static const int PROGRESS_STEP = 64;
+
+
+/*
+ * The queued Keyboard Reports (ring buffer).
+ */
+static unsigned char queue[HIDC_KEY_SEQUENCE_CAPACITY]
+			[HIDC_KEY_SEQUENCE_REPORT_SIZE];
+static int queue_head = 0;
+static int queue_count = 0;
+
+/*
+ * The time in milliseconds between two reports.
+ */
+static int report_interval = 0;
+
+/*
+ * The monotonic time in milliseconds when the next report is due.
+ */
+static int64_t next_report_time = 0;
+
+/*
+ * The number of sent or discarded reports since the last reset.
+ */
+static uint32_t processed_count = 0;
+static uint32_t notified_count = 0;
+
+/*
+ * The event loop timer that sends the due reports.
+ */
+static int timer = -1;
+
+
+/*
+ * Get the current monotonic time.
+ *
+ * Returns:
+ *     The time in milliseconds.
+ */
+static int64_t get_time_ms()
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (int64_t)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+/*
+ * Send a progress callback if the processed reports counter has changed.
+ */
+static void notify_progress()
+{
+	if (processed_count != notified_count) {
+		notified_count = processed_count;
+		hidc_send_ipc_cb_key_sequence_progress(processed_count);
+	}
+}
+
+/*
+ * Discard all queued reports and count them as processed.
+ */
+static void discard_queue()
+{
+	processed_count += queue_count;
+	queue_head = 0;
+	queue_count = 0;
+}
+
+/*
+ * Start the timer for the next queued report or stop it if the queue is
+ * empty or the interrupt channel queue is full.
+ */
+static void update_timer()
+{
+	int64_t delay;
+
+	if (queue_count < 1 || hidc_is_hid_queue_full()) {
+		hidc_eventloop_set_timer(timer, -1);
+		return;
+	}
+
+	delay = next_report_time - get_time_ms();
+	hidc_eventloop_set_timer(timer, (delay > 0) ? (int)delay : 0);
+}
+
+/*
+ * Send the due Keyboard Reports to the host.
+ */
+static void on_timer_event(int fd, uint32_t events)
+{
+	int sent = 0;
+	unsigned char *report;
+	int64_t now;
+
+	if (queue_count < 1)
+		return;
+
+	if (!hidc_is_hid_connected()) {
+		discard_queue();
+		notify_progress();
+		update_timer();
+		return;
+	}
+
+	now = get_time_ms();
+
+	while ((queue_count > 0) && (next_report_time <= now) &&
+			(sent < BURST_SIZE) && !hidc_is_hid_queue_full()) {
+		report = queue[queue_head];
+		hidc_send_hid_report_keys(report[0], report + 1);
+
+		queue_head = (queue_head + 1) % HIDC_KEY_SEQUENCE_CAPACITY;
+		queue_count--;
+		processed_count++;
+		sent++;
+
+		if (report_interval > 0) {
+			next_report_time += report_interval;
+			/* don't try to catch up if the event loop was blocked */
+			if (next_report_time < now)
+				next_report_time = now;
+			break;
+		}
+	}
+
+	if ((queue_count == 0) ||
+			(processed_count - notified_count >= PROGRESS_STEP))
+		notify_progress();
+
+	update_timer();
+}
+
+int hidc_queue_key_sequence(const unsigned char *reports, int count,
+			int interval)
+{
+	int i;
+	int index;
+
+	if (timer < 0)
+		timer = hidc_eventloop_create_timer(on_timer_event);
+
+	if (queue_count + count > HIDC_KEY_SEQUENCE_CAPACITY || timer < 0) {
+		processed_count += count;
+		notify_progress();
+		return -1;
+	}
+
+	if (queue_count == 0)
+		next_report_time = get_time_ms();
+
+	for (i = 0; i < count; i++) {
+		index = (queue_head + queue_count) % HIDC_KEY_SEQUENCE_CAPACITY;
+		memcpy(queue[index],
+			reports + i * HIDC_KEY_SEQUENCE_REPORT_SIZE,
+			HIDC_KEY_SEQUENCE_REPORT_SIZE);
+		queue_count++;
+	}
+
+	report_interval = (interval > 0) ? interval : 0;
+
+	update_timer();
+
+	return 0;
+}
+
+void hidc_cancel_key_sequence()
+{
+	unsigned char *last_report;
+
+	if (queue_count < 1)
+		return;
+
+	log_d("Key sequence canceled (%d reports discarded)", queue_count);
+
+	if (hidc_is_hid_connected()) {
+		last_report = queue[(queue_head + queue_count - 1) %
+				HIDC_KEY_SEQUENCE_CAPACITY];
+		hidc_send_hid_report_keys(last_report[0], last_report + 1);
+	}
+
+	discard_queue();
+	notify_progress();
+	update_timer();
+}
+
+void hidc_resume_key_sequence()
+{
+	if (queue_count > 0)
+		update_timer();
+}
+
+void hidc_reset_key_sequence()
+{
+	queue_head = 0;
+	queue_count = 0;
+	processed_count = 0;
+	notified_count = 0;
+
+	update_timer();
+}
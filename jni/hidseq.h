@@ -0,0 +1,76 @@
+/*
+ *  Key sequence functions
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef __HIDSEQ_H
+#define __HIDSEQ_H
+
+
+/*
+ * The size of a single Keyboard Report in a key sequence (1 byte modifier
+ * bitmask and 6 bytes key codes).
+ */
+#define HIDC_KEY_SEQUENCE_REPORT_SIZE	7
+
+/*
+ * The maximum number of Keyboard Reports that can be queued.
+ */
+#define HIDC_KEY_SEQUENCE_CAPACITY	4096
+
+
+/*
+ * Append Keyboard Reports to the key sequence queue. The reports are sent to
+ * the host by an event loop timer.
+ *
+ * Parameters:
+ *     reports: The Keyboard Reports (HIDC_KEY_SEQUENCE_REPORT_SIZE bytes per
+ *              report).
+ *     count: The number of Keyboard Reports.
+ *     interval: The time in milliseconds between two reports or 0 to send the
+ *               reports as fast as possible.
+ *
+ * Returns:
+ *     0 on success or -1 if the queue doesn't have enough free space. The
+ *     reports are discarded and counted as processed in this case so that
+ *     the client doesn't wait for them.
+ */
+int hidc_queue_key_sequence(const unsigned char *reports, int count,
+			int interval);
+
+/*
+ * Discard all queued Keyboard Reports. If reports were discarded, the last
+ * queued report is sent so that the host ends up with the same key state as
+ * after the complete sequence.
+ */
+void hidc_cancel_key_sequence();
+
+/*
+ * Continue sending the queued Keyboard Reports after the interrupt channel
+ * queue has space again.
+ */
+void hidc_resume_key_sequence();
+
+/*
+ * Discard all queued Keyboard Reports without sending anything and reset the
+ * processed reports counter.
+ */
+void hidc_reset_key_sequence();
+
+#endif
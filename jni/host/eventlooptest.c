@@ -0,0 +1,303 @@
+/*
+ *  Event loop tests for the host build
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * Drives the event loop of the daemon with socketpairs and timers and checks
+ * which handlers are called. Every case runs with an alarm, so a handler that
+ * blocks the loop fails the test instead of hanging it.
+ */
+
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/socket.h>
+
+#include "log.h"
+#include "eventloop.h"
+
+
+/* The time in seconds after which a blocked test case is aborted. */
+#define CASE_TIMEOUT	5
+
+
+static int failures = 0;
+
+static int sockets_a[2] = { -1, -1 };
+static int sockets_b[2] = { -1, -1 };
+static int timer = -1;
+
+static int socket_a_calls;
+static int socket_b_calls;
+static int timer_calls;
+
+/* The order of the handler calls ('a', 'b' and 't'). */
+static char call_order[16];
+static int call_count;
+
+
+#define CHECK(cond) \
+	do { \
+		if (!(cond)) { \
+			fprintf(stderr, "%s:%d: check failed: %s\n", \
+				__FILE__, __LINE__, #cond); \
+			failures++; \
+		} \
+	} while (0)
+
+
+static void on_alarm(int signum)
+{
+	static const char msg[] = "test case blocked the event loop\n";
+
+	write(STDERR_FILENO, msg, sizeof(msg) - 1);
+	_exit(2);
+}
+
+static void sleep_ms(int ms)
+{
+	struct timespec ts;
+
+	ts.tv_sec = ms / 1000;
+	ts.tv_nsec = (long)(ms % 1000) * 1000000;
+	nanosleep(&ts, NULL);
+}
+
+static void record_call(char id)
+{
+	if (call_count < (int)sizeof(call_order) - 1)
+		call_order[call_count++] = id;
+}
+
+static void drain_socket(int fd)
+{
+	char buf[16];
+
+	recv(fd, buf, sizeof(buf), MSG_DONTWAIT);
+}
+
+static void make_readable(int fd)
+{
+	send(fd, "x", 1, 0);
+}
+
+
+static void on_socket_a(int fd, uint32_t events)
+{
+	socket_a_calls++;
+	record_call('a');
+	drain_socket(fd);
+}
+
+static void on_socket_b(int fd, uint32_t events)
+{
+	socket_b_calls++;
+	record_call('b');
+	drain_socket(fd);
+}
+
+static void on_socket_a_stop_timer(int fd, uint32_t events)
+{
+	on_socket_a(fd, events);
+	hidc_eventloop_set_timer(timer, -1);
+}
+
+static void on_socket_a_restart_timer(int fd, uint32_t events)
+{
+	on_socket_a(fd, events);
+	hidc_eventloop_set_timer(timer, 50);
+}
+
+static void on_socket_a_remove_b(int fd, uint32_t events)
+{
+	on_socket_a(fd, events);
+	hidc_eventloop_remove(sockets_b[0]);
+}
+
+static void on_timer(int fd, uint32_t events)
+{
+	timer_calls++;
+	record_call('t');
+}
+
+
+static void setup(HidcEventHandler handler_a, HidcEventHandler handler_b)
+{
+	socket_a_calls = 0;
+	socket_b_calls = 0;
+	timer_calls = 0;
+	call_count = 0;
+	memset(call_order, 0, sizeof(call_order));
+
+	if (hidc_eventloop_init() < 0 ||
+			socketpair(AF_UNIX, SOCK_STREAM, 0, sockets_a) < 0 ||
+			socketpair(AF_UNIX, SOCK_STREAM, 0, sockets_b) < 0) {
+		fprintf(stderr, "test setup failed\n");
+		exit(2);
+	}
+
+	hidc_eventloop_add(sockets_a[0], EPOLLIN, handler_a);
+	hidc_eventloop_add(sockets_b[0], EPOLLIN, handler_b);
+	timer = hidc_eventloop_create_timer(on_timer);
+	CHECK(timer >= 0);
+
+	alarm(CASE_TIMEOUT);
+}
+
+static void teardown()
+{
+	alarm(0);
+
+	hidc_eventloop_remove(sockets_a[0]);
+	hidc_eventloop_remove(sockets_b[0]);
+	hidc_eventloop_close();
+
+	close(sockets_a[0]);
+	close(sockets_a[1]);
+	close(sockets_b[0]);
+	close(sockets_b[1]);
+	timer = -1;
+}
+
+
+/*
+ * A readable socket calls its handler once.
+ */
+static void test_socket_event()
+{
+	setup(on_socket_a, on_socket_b);
+
+	make_readable(sockets_a[1]);
+	hidc_eventloop_run_once(1000);
+
+	CHECK(socket_a_calls == 1);
+	CHECK(socket_b_calls == 0);
+
+	hidc_eventloop_run_once(0);
+	CHECK(socket_a_calls == 1);
+
+	teardown();
+}
+
+/*
+ * A source that is removed by a previous handler of the same batch isn't
+ * called anymore.
+ */
+static void test_remove_in_batch()
+{
+	setup(on_socket_a_remove_b, on_socket_b);
+
+	make_readable(sockets_a[1]);
+	make_readable(sockets_b[1]);
+	sleep_ms(10);
+	hidc_eventloop_run_once(1000);
+
+	CHECK(socket_a_calls == 1);
+	/* the handler of b only runs if it came first in the batch */
+	CHECK(socket_b_calls == 0 || call_order[0] == 'b');
+
+	teardown();
+}
+
+/*
+ * A started timer expires once.
+ */
+static void test_timer()
+{
+	setup(on_socket_a, on_socket_b);
+
+	hidc_eventloop_set_timer(timer, 10);
+	hidc_eventloop_run_once(1000);
+	CHECK(timer_calls == 1);
+
+	hidc_eventloop_run_once(50);
+	CHECK(timer_calls == 1);
+
+	teardown();
+}
+
+/*
+ * A timer that expired but is stopped by a previous handler of the same
+ * batch neither blocks the loop nor calls its handler.
+ */
+static void test_stop_timer_in_batch()
+{
+	setup(on_socket_a_stop_timer, on_socket_b);
+
+	make_readable(sockets_a[1]);
+	hidc_eventloop_set_timer(timer, 0);
+	sleep_ms(10);
+	hidc_eventloop_run_once(1000);
+
+	CHECK(socket_a_calls == 1);
+	CHECK(timer_calls == 0 || call_order[0] == 't');
+
+	hidc_eventloop_run_once(50);
+	CHECK(timer_calls <= 1);
+
+	teardown();
+}
+
+/*
+ * A timer that expired but is restarted by a previous handler of the same
+ * batch expires again after the new delay.
+ */
+static void test_restart_timer_in_batch()
+{
+	setup(on_socket_a_restart_timer, on_socket_b);
+
+	make_readable(sockets_a[1]);
+	hidc_eventloop_set_timer(timer, 0);
+	sleep_ms(10);
+	hidc_eventloop_run_once(1000);
+
+	CHECK(socket_a_calls == 1);
+	CHECK(timer_calls == 0 || call_order[0] == 't');
+
+	timer_calls = 0;
+	hidc_eventloop_run_once(1000);
+	CHECK(timer_calls == 1);
+
+	teardown();
+}
+
+
+int main(int argc, char *argv[])
+{
+	log_init("eventlooptest", 0, 0);
+	signal(SIGALRM, on_alarm);
+
+	test_socket_event();
+	test_remove_in_batch();
+	test_timer();
+	test_stop_timer_in_batch();
+	test_restart_timer_in_batch();
+
+	if (failures > 0) {
+		fprintf(stderr, "%d checks failed\n", failures);
+		return 1;
+	}
+
+	printf("All event loop tests passed\n");
+	return 0;
+}
@@ -0,0 +1,313 @@
+/*
+ *  In-memory replacements of the Bluetooth functions for the host build
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * The host build runs the real IPC server, event loop and key sequence code
+ * of the daemon on a Linux machine without Bluetooth hardware. All HCI, SDP
+ * and L2CAP functions are replaced by the functions in this file which only
+ * count the HID Reports instead of sending them. A HID connection is
+ * established immediately when the client requests it.
+ *
+ * If HIDC_HOST_L2CAP is defined, only the HCI and SDP functions are replaced
+ * and the real "hidl2cap.c" is used, so that its handlers can be tested with
+ * socketpairs as HID channels (see l2captest.c).
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include <bluetooth/bluetooth.h>
+
+#include "error.h"
+#include "log.h"
+#include "hidipc.h"
+#include "hidhci.h"
+#include "hidsdp.h"
+#include "hidl2cap.h"
+
+
+#ifndef HIDC_HOST_L2CAP
+
+/*
+ * The recorded HID Reports.
+ */
+typedef enum HostReportType {
+	HOST_REPORT_KEYS = 0,
+	HOST_REPORT_SYSTEM_KEYS,
+	HOST_REPORT_HW_KEYS,
+	HOST_REPORT_MEDIA_KEYS,
+	HOST_REPORT_AC_KEYS,
+	HOST_REPORT_MOUSE,
+	HOST_REPORT_MOUSE_TRACED,
+	HOST_REPORT_MOUSE_ABS,
+	HOST_REPORT_TYPE_COUNT
+} HostReportType;
+
+static const char *report_type_names[HOST_REPORT_TYPE_COUNT] = {
+	"keys",
+	"system keys",
+	"hardware keys",
+	"media keys",
+	"application control keys",
+	"mouse",
+	"mouse (traced)",
+	"mouse (absolute)",
+};
+
+static unsigned long report_counts[HOST_REPORT_TYPE_COUNT];
+
+static int is_server_running = 0;
+static int is_connected = 0;
+static bdaddr_t connected_bdaddr;
+
+
+/*
+ * Count a HID Report that would have been sent to the host.
+ */
+static void record_report(HostReportType type)
+{
+	report_counts[type]++;
+
+	if (log_is_debug_active())
+		log_d("HID Report: %s", report_type_names[type]);
+}
+
+/*
+ * Write the number of recorded HID Reports to the log.
+ */
+static void log_report_counts()
+{
+	int i;
+
+	for (i = 0; i < HOST_REPORT_TYPE_COUNT; i++) {
+		if (report_counts[i] > 0)
+			log_i("Recorded HID Reports (%s): %lu",
+				report_type_names[i], report_counts[i]);
+	}
+}
+
+#endif
+
+
+int ba2str(const bdaddr_t *ba, char *str)
+{
+	return sprintf(str, "%2.2X:%2.2X:%2.2X:%2.2X:%2.2X:%2.2X",
+		ba->b[5], ba->b[4], ba->b[3], ba->b[2], ba->b[1], ba->b[0]);
+}
+
+int str2ba(const char *str, bdaddr_t *ba)
+{
+	unsigned int b[6];
+	int i;
+
+	if (strlen(str) != 17 || sscanf(str, "%2x:%2x:%2x:%2x:%2x:%2x",
+			&b[5], &b[4], &b[3], &b[2], &b[1], &b[0]) != 6) {
+		memset(ba, 0, sizeof(*ba));
+		return -1;
+	}
+
+	for (i = 0; i < 6; i++)
+		ba->b[i] = b[i];
+
+	return 0;
+}
+
+
+int hidc_get_device_bdaddr(int device_id, bdaddr_t *device_bdaddr)
+{
+	memset(device_bdaddr, 0, sizeof(*device_bdaddr));
+	return 0;
+}
+
+int hidc_set_discoverable(int is_discoverable)
+{
+	log_d("Discoverable mode: %d", is_discoverable);
+	return 0;
+}
+
+int hidc_reset_discoverable()
+{
+	return 0;
+}
+
+int hidc_get_org_device_class()
+{
+	return 0;
+}
+
+int hidc_set_hid_device_class()
+{
+	return 0;
+}
+
+int hidc_reset_device_class()
+{
+	return 0;
+}
+
+void hidc_wait_for_empty_service_class(int timeout)
+{
+}
+
+
+int hidc_sdp_register()
+{
+	return 0;
+}
+
+int hidc_sdp_unregister()
+{
+	return 0;
+}
+
+int hidc_deactivate_other_services()
+{
+	return 0;
+}
+
+int hidc_reactivate_other_services()
+{
+	return 0;
+}
+
+
+#ifndef HIDC_HOST_L2CAP
+
+int hidc_start_hid_server()
+{
+	is_server_running = 1;
+	return 0;
+}
+
+void hidc_stop_hid_server()
+{
+	is_server_running = 0;
+}
+
+int hidc_is_hid_server_running()
+{
+	return is_server_running;
+}
+
+int hidc_connect_hid(bdaddr_t *dst_addr)
+{
+	hidc_disconnect_hid();
+
+	memcpy(&connected_bdaddr, dst_addr, sizeof(connected_bdaddr));
+	memset(report_counts, 0, sizeof(report_counts));
+	is_connected = 1;
+
+	log_i("HID connection established (in-memory)");
+	hidc_send_ipc_cb_connected(&connected_bdaddr);
+
+	return 0;
+}
+
+void hidc_disconnect_hid()
+{
+	if (!is_connected)
+		return;
+
+	is_connected = 0;
+
+	log_i("HID connection closed (in-memory)");
+	log_report_counts();
+	hidc_send_ipc_cb_disconnected(0);
+}
+
+int hidc_is_hid_connected()
+{
+	return is_connected;
+}
+
+void get_last_connected_bdaddr(bdaddr_t *bdaddr)
+{
+	memcpy(bdaddr, &connected_bdaddr, sizeof(*bdaddr));
+}
+
+void hidc_send_hid_report_keys(unsigned char modifiers,
+	const unsigned char *keycodes)
+{
+	record_report(HOST_REPORT_KEYS);
+}
+
+void hidc_send_hid_report_system_keys(unsigned char keys)
+{
+	record_report(HOST_REPORT_SYSTEM_KEYS);
+}
+
+void hidc_send_hid_report_hw_keys(unsigned char keys)
+{
+	record_report(HOST_REPORT_HW_KEYS);
+}
+
+void hidc_send_hid_report_media_keys(unsigned char keys)
+{
+	record_report(HOST_REPORT_MEDIA_KEYS);
+}
+
+void hidc_send_hid_report_ac_keys(unsigned char keys)
+{
+	record_report(HOST_REPORT_AC_KEYS);
+}
+
+void hidc_send_hid_report_mouse(unsigned char buttons, int16_t x, int16_t y,
+				signed char scrollY, signed char scrollX)
+{
+	record_report(HOST_REPORT_MOUSE);
+}
+
+void hidc_send_hid_report_mouse_traced(unsigned char buttons, int16_t x,
+				int16_t y, signed char scrollY,
+				signed char scrollX,
+				const HidcInputTrace *trace)
+{
+	HidcInputTrace sent_trace;
+
+	record_report(HOST_REPORT_MOUSE_TRACED);
+
+	sent_trace = *trace;
+	sent_trace.send_time = hidc_get_trace_time();
+	hidc_send_ipc_cb_input_trace(&sent_trace);
+}
+
+void hidc_send_hid_report_mouse_abs(unsigned char buttons, uint16_t x,
+				uint16_t y)
+{
+	record_report(HOST_REPORT_MOUSE_ABS);
+}
+
+int hidc_is_hid_queue_full()
+{
+	/* the counted Reports never wait in a queue */
+	return 0;
+}
+
+void hidc_set_max_report_rate(int rate)
+{
+	log_d("Max report rate: %d", rate);
+}
+
+void hidc_change_mouse_feature(int smooth_scroll_y, int smooth_scroll_x)
+{
+	hidc_send_ipc_cb_mouse_feature(smooth_scroll_y, smooth_scroll_x);
+}
+
+#endif
@@ -0,0 +1,67 @@
+/*
+ *  Minimal BlueZ declarations for the host build
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * The host build of the daemon doesn't link against the Bluetooth library.
+ * This header only provides the declarations that are used by the IPC code,
+ * the daemon main loop and the L2CAP test; the functions are implemented in
+ * "hidhost.c".
+ */
+
+#ifndef __HOST_BLUETOOTH_H
+#define __HOST_BLUETOOTH_H
+
+#include <endian.h>
+#include <stdint.h>
+#include <string.h>
+#include <arpa/inet.h>
+
+
+/* the C library usually declares the address family already */
+#ifndef AF_BLUETOOTH
+#define AF_BLUETOOTH	31
+#define PF_BLUETOOTH	AF_BLUETOOTH
+#endif
+
+#define BTPROTO_L2CAP	0
+
+#define htobs(d)	htole16(d)
+#define btohs(d)	le16toh(d)
+
+
+typedef struct {
+	uint8_t b[6];
+} __attribute__((packed)) bdaddr_t;
+
+#define BDADDR_ANY	(&(bdaddr_t) {{0, 0, 0, 0, 0, 0}})
+
+
+static inline void bacpy(bdaddr_t *dst, const bdaddr_t *src)
+{
+	memcpy(dst, src, sizeof(bdaddr_t));
+}
+
+
+int ba2str(const bdaddr_t *ba, char *str);
+
+int str2ba(const char *str, bdaddr_t *ba);
+
+#endif
@@ -0,0 +1,56 @@
+/*
+ *  Minimal BlueZ L2CAP declarations for the host build
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * Only declares what "hidl2cap.c" needs to compile. The host tests never open
+ * a Bluetooth socket, they connect the HID channels with socketpairs instead.
+ */
+
+#ifndef __HOST_L2CAP_H
+#define __HOST_L2CAP_H
+
+#include <sys/socket.h>
+#include <bluetooth/bluetooth.h>
+
+
+#define SOL_L2CAP	6
+
+#define L2CAP_OPTIONS	0x01
+#define L2CAP_LM	0x03
+
+struct sockaddr_l2 {
+	sa_family_t	l2_family;
+	unsigned short	l2_psm;
+	bdaddr_t	l2_bdaddr;
+	unsigned short	l2_cid;
+};
+
+struct l2cap_options {
+	uint16_t	omtu;
+	uint16_t	imtu;
+	uint16_t	flush_to;
+	uint8_t		mode;
+	uint8_t		fcs;
+	uint8_t		max_tx;
+	uint16_t	txwin_size;
+};
+
+#endif
@@ -0,0 +1,687 @@
+/*
+ *  IPC benchmark client for the host build of the daemon
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * Connects to a running daemon like the DaemonService of the app and
+ * measures the throughput of single, batched and shared memory ring Mouse
+ * Report commands and the latency of traced Mouse Report commands. The
+ * daemon and the client run on the same machine, so the timestamps of the
+ * input traces share the same monotonic clock.
+ */
+
+#include <errno.h>
+#include <getopt.h>
+#include <pthread.h>
+#include <sched.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <sys/un.h>
+
+#include "hidipc.h"
+
+
+/*
+ * The size of a Mouse Report command including the command value.
+ */
+#define MOUSE_CMD_SIZE		11
+
+/*
+ * The size of a traced Mouse Report command including the command value.
+ */
+#define MOUSE_TRACED_CMD_SIZE	23
+
+/*
+ * The maximum number of latency samples.
+ */
+#define MAX_SAMPLES		100000
+
+/*
+ * The number of slots in the shared memory ring buffer.
+ */
+#define RING_SLOTS		256
+
+
+static const char *optString = "n:b:l:rh?";
+
+static int ipc_sock = -1;
+
+static unsigned char *report_ring = NULL;
+
+/*
+ * The state that is shared with the callback reader thread.
+ */
+static pthread_mutex_t cb_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t cb_cond = PTHREAD_COND_INITIALIZER;
+static int is_hid_connected = 0;
+static int is_reader_done = 0;
+static unsigned long trace_count = 0;
+static HidcInputTrace last_trace;
+static int is_ring_result_received = 0;
+static int ring_result = 0;
+
+
+static void usage()
+{
+	printf("ipcbench - BlueCtrl daemon IPC benchmark\n\n");
+
+	printf("Usage:\n"
+		"\tipcbench [options]\n"
+		"\n");
+
+	printf("Options:\n"
+		"\t-n [number]   Number of Mouse Reports per throughput run "
+		"(default 100000)\n"
+		"\t-b [number]   Number of Mouse Reports per batch command "
+		"(default 16)\n"
+		"\t-l [number]   Number of traced Mouse Reports for the latency "
+		"run (default 10000)\n"
+		"\t-r            Also send the Mouse Reports through a shared "
+		"memory ring\n"
+		"\t-h, --help    Display help\n"
+		"\n");
+}
+
+static uint32_t get_time_us()
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (uint32_t)((int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000);
+}
+
+static double get_time_sec()
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static int write_data(const void *data, int size)
+{
+	const unsigned char *pos = data;
+	int written;
+
+	while (size > 0) {
+		written = send(ipc_sock, pos, size, 0);
+		if (written < 0) {
+			if (errno == EINTR)
+				continue;
+			perror("Can't write to IPC socket");
+			return -1;
+		}
+		pos += written;
+		size -= written;
+	}
+
+	return 0;
+}
+
+static int read_data(void *buffer, int size)
+{
+	return (recv(ipc_sock, buffer, size, MSG_WAITALL) == size) ? 0 : -1;
+}
+
+static void put_int32(unsigned char *data, uint32_t value)
+{
+	value = htonl(value);
+	memcpy(data, &value, 4);
+}
+
+/*
+ * Write a Mouse Report command with a small movement into a buffer.
+ */
+static int build_mouse_cmd(unsigned char *data, int i)
+{
+	int16_t move = htons((i & 1) ? 1 : -1);
+
+	put_int32(data, HIDC_IPC_CMD_HID_SEND_MOUSE);
+	data[4] = 0;
+	memcpy(data + 5, &move, 2);
+	memcpy(data + 7, &move, 2);
+	data[9] = 0;
+	data[10] = 0;
+
+	return MOUSE_CMD_SIZE;
+}
+
+/*
+ * Write a traced Mouse Report command into a buffer. The event and enqueue
+ * times are the same because there is no input event.
+ */
+static int build_mouse_traced_cmd(unsigned char *data, int i)
+{
+	uint32_t now = get_time_us();
+
+	build_mouse_cmd(data, i);
+	put_int32(data, HIDC_IPC_CMD_HID_SEND_MOUSE_TRACED);
+	put_int32(data + 11, now);
+	put_int32(data + 15, now);
+	put_int32(data + 19, now);
+
+	return MOUSE_TRACED_CMD_SIZE;
+}
+
+/*
+ * Read the callbacks of the daemon until the connection is closed.
+ */
+static void *reader_thread(void *arg)
+{
+	int32_t cb;
+	unsigned char data[20];
+	uint32_t times[5];
+	int size;
+
+	while (read_data(&cb, sizeof(cb)) == 0) {
+		cb = ntohl(cb);
+
+		switch (cb) {
+		case HIDC_IPC_CB_HID_CONNECTED:
+			size = 17;
+			break;
+		case HIDC_IPC_CB_MOUSE_FEATURE:
+			size = 2;
+			break;
+		case HIDC_IPC_CB_INPUT_TRACE:
+			size = 20;
+			break;
+		case HIDC_IPC_CB_INFO_NO_SERVER:
+			size = 0;
+			break;
+		default:
+			/* all other callbacks contain a single Integer */
+			size = 4;
+			break;
+		}
+
+		if (size > 0 && read_data(data, size) < 0)
+			break;
+
+		pthread_mutex_lock(&cb_mutex);
+		if (cb == HIDC_IPC_CB_HID_CONNECTED) {
+			is_hid_connected = 1;
+		}
+		else if (cb == HIDC_IPC_CB_HID_DISCONNECTED) {
+			is_hid_connected = 0;
+		}
+		else if (cb == HIDC_IPC_CB_REPORT_RING_ATTACHED) {
+			memcpy(&ring_result, data, sizeof(ring_result));
+			ring_result = ntohl(ring_result);
+			is_ring_result_received = 1;
+		}
+		else if (cb == HIDC_IPC_CB_INPUT_TRACE) {
+			memcpy(times, data, sizeof(times));
+			last_trace.event_time = ntohl(times[0]);
+			last_trace.enqueue_time = ntohl(times[1]);
+			last_trace.ipc_write_time = ntohl(times[2]);
+			last_trace.receive_time = ntohl(times[3]);
+			last_trace.send_time = ntohl(times[4]);
+			trace_count++;
+		}
+		else if (cb >= HIDC_IPC_ECB_DISCOVERABLE_ON) {
+			fprintf(stderr, "Error callback %d\n", cb);
+		}
+		pthread_cond_broadcast(&cb_cond);
+		pthread_mutex_unlock(&cb_mutex);
+	}
+
+	pthread_mutex_lock(&cb_mutex);
+	is_reader_done = 1;
+	pthread_cond_broadcast(&cb_cond);
+	pthread_mutex_unlock(&cb_mutex);
+
+	return NULL;
+}
+
+/*
+ * Wait until the number of received input traces reaches a value.
+ *
+ * Returns:
+ *     0 on success or -1 if the connection was closed.
+ */
+static int wait_for_trace_count(unsigned long count, HidcInputTrace *trace)
+{
+	int result = 0;
+
+	pthread_mutex_lock(&cb_mutex);
+	while (trace_count < count && !is_reader_done)
+		pthread_cond_wait(&cb_cond, &cb_mutex);
+
+	if (trace_count < count)
+		result = -1;
+	else if (trace != NULL)
+		*trace = last_trace;
+	pthread_mutex_unlock(&cb_mutex);
+
+	return result;
+}
+
+/*
+ * Wait until the daemon answered the report ring attach command.
+ *
+ * Returns:
+ *     0 if the ring was attached or -1 if it was rejected or the connection
+ *     was closed.
+ */
+static int wait_for_ring_result()
+{
+	int result = 0;
+
+	pthread_mutex_lock(&cb_mutex);
+	while (!is_ring_result_received && !is_reader_done)
+		pthread_cond_wait(&cb_cond, &cb_mutex);
+
+	if (!is_ring_result_received) {
+		result = -1;
+	}
+	else if (ring_result != 0) {
+		fprintf(stderr, "Report ring rejected (%d)\n", ring_result);
+		result = -1;
+	}
+	pthread_mutex_unlock(&cb_mutex);
+
+	return result;
+}
+
+/*
+ * Send a traced command and wait for its callback. All previously sent
+ * commands are processed by the daemon when this function returns.
+ */
+static int sync_daemon()
+{
+	unsigned char data[MOUSE_TRACED_CMD_SIZE];
+	unsigned long count;
+
+	pthread_mutex_lock(&cb_mutex);
+	count = trace_count + 1;
+	pthread_mutex_unlock(&cb_mutex);
+
+	build_mouse_traced_cmd(data, 0);
+	if (write_data(data, sizeof(data)) < 0)
+		return -1;
+
+	return wait_for_trace_count(count, NULL);
+}
+
+static int connect_daemon()
+{
+	struct sockaddr_un unaddr;
+	socklen_t addrlen;
+	char unixdomain[] = HIDC_UNIXDOMAIN_IPC;
+
+	ipc_sock = socket(AF_UNIX, SOCK_STREAM, 0);
+	if (ipc_sock < 0) {
+		perror("Can't create IPC socket");
+		return -1;
+	}
+
+	memset(&unaddr, 0, sizeof(unaddr));
+	unaddr.sun_family = AF_UNIX;
+	/* abstract namespace starts with '\0' */
+	unaddr.sun_path[0] = '\0';
+	strncpy(unaddr.sun_path + 1, unixdomain, sizeof(unaddr.sun_path) - 1);
+
+	addrlen = sizeof(unaddr.sun_family) + 1 + strlen(unixdomain);
+
+	if (connect(ipc_sock, (struct sockaddr*) &unaddr, addrlen) < 0) {
+		perror("Can't connect to the daemon");
+		return -1;
+	}
+
+	return 0;
+}
+
+static int connect_hid()
+{
+	unsigned char data[21];
+
+	put_int32(data, HIDC_IPC_CMD_HID_CONNECT);
+	memcpy(data + 4, "00:11:22:AA:BB:CC", 17);
+	if (write_data(data, sizeof(data)) < 0)
+		return -1;
+
+	pthread_mutex_lock(&cb_mutex);
+	while (!is_hid_connected && !is_reader_done)
+		pthread_cond_wait(&cb_cond, &cb_mutex);
+	pthread_mutex_unlock(&cb_mutex);
+
+	if (!is_hid_connected) {
+		fprintf(stderr, "HID connection failed\n");
+		return -1;
+	}
+
+	return 0;
+}
+
+/*
+ * Send every Mouse Report with a separate command.
+ */
+static int run_single_throughput(int count)
+{
+	unsigned char data[MOUSE_CMD_SIZE];
+	double start;
+	double elapsed;
+	int i;
+
+	start = get_time_sec();
+
+	for (i = 0; i < count; i++) {
+		build_mouse_cmd(data, i);
+		if (write_data(data, sizeof(data)) < 0)
+			return -1;
+	}
+
+	if (sync_daemon() < 0)
+		return -1;
+
+	elapsed = get_time_sec() - start;
+	printf("single commands:  %d reports in %.3f s (%.0f reports/s)\n",
+		count, elapsed, count / elapsed);
+
+	return 0;
+}
+
+/*
+ * Send the Mouse Reports with batch commands.
+ */
+static int run_batch_throughput(int count, int batch)
+{
+	unsigned char data[8 + HIDC_IPC_MAX_BATCH_SIZE];
+	double start;
+	double elapsed;
+	int size;
+	int i;
+	int j;
+
+	start = get_time_sec();
+
+	for (i = 0; i < count; i += batch) {
+		size = 8;
+		for (j = i; j < count && j < i + batch; j++)
+			size += build_mouse_cmd(data + size, j);
+
+		put_int32(data, HIDC_IPC_CMD_HID_SEND_BATCH);
+		put_int32(data + 4, size - 8);
+		if (write_data(data, size) < 0)
+			return -1;
+	}
+
+	if (sync_daemon() < 0)
+		return -1;
+
+	elapsed = get_time_sec() - start;
+	printf("batch commands:   %d reports in %.3f s (%.0f reports/s, "
+		"%d per batch)\n", count, elapsed, count / elapsed, batch);
+
+	return 0;
+}
+
+/*
+ * Create a shared memory ring buffer and pass it to the daemon.
+ */
+static int attach_report_ring()
+{
+	struct msghdr msg;
+	struct iovec iov;
+	struct cmsghdr *cmsg;
+	char control[CMSG_SPACE(sizeof(int))];
+	unsigned char data[12];
+	size_t size;
+	int fd;
+	int result = 0;
+
+	size = HIDC_IPC_RING_HEADER_SIZE + RING_SLOTS * HIDC_IPC_RING_SLOT_SIZE;
+
+	fd = syscall(SYS_memfd_create, "bluectrl_reports", 0);
+	if (fd < 0 || ftruncate(fd, size) < 0) {
+		perror("Can't create shared memory");
+		return -1;
+	}
+
+	report_ring = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED,
+			fd, 0);
+	if (report_ring == MAP_FAILED) {
+		perror("Can't map shared memory");
+		report_ring = NULL;
+		close(fd);
+		return -1;
+	}
+
+	put_int32(data, HIDC_IPC_CMD_HID_ATTACH_REPORT_RING);
+	put_int32(data + 4, RING_SLOTS);
+	put_int32(data + 8, HIDC_IPC_RING_SLOT_SIZE);
+
+	memset(&msg, 0, sizeof(msg));
+	iov.iov_base = data;
+	iov.iov_len = sizeof(data);
+	msg.msg_iov = &iov;
+	msg.msg_iovlen = 1;
+	msg.msg_control = control;
+	msg.msg_controllen = sizeof(control);
+
+	cmsg = CMSG_FIRSTHDR(&msg);
+	cmsg->cmsg_level = SOL_SOCKET;
+	cmsg->cmsg_type = SCM_RIGHTS;
+	cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+	memcpy(CMSG_DATA(cmsg), &fd, sizeof(int));
+
+	if (sendmsg(ipc_sock, &msg, 0) != sizeof(data)) {
+		perror("Can't attach report ring");
+		result = -1;
+	}
+
+	close(fd);
+
+	return result;
+}
+
+static uint32_t get_ring_stamp(const unsigned char *slot, int offset)
+{
+	return ntohl(*(volatile const uint32_t *)(slot + offset));
+}
+
+/*
+ * Send the Mouse Reports through the shared memory ring buffer.
+ */
+static int run_ring_throughput(int count)
+{
+	volatile unsigned char *waiting;
+	unsigned char *slot;
+	unsigned char doorbell[4];
+	unsigned long doorbells = 0;
+	double start;
+	double elapsed;
+	uint32_t sequence;
+
+	if (attach_report_ring() < 0 || wait_for_ring_result() < 0)
+		return -1;
+
+	waiting = report_ring;
+	put_int32(doorbell, HIDC_IPC_CMD_HID_RING_DOORBELL);
+
+	start = get_time_sec();
+
+	for (sequence = 0; sequence < (uint32_t)count; sequence++) {
+		slot = report_ring + HIDC_IPC_RING_HEADER_SIZE +
+			(sequence & (RING_SLOTS - 1)) * HIDC_IPC_RING_SLOT_SIZE;
+
+		/* wait until the daemon has executed the previous command */
+		if (sequence >= RING_SLOTS) {
+			while (get_ring_stamp(slot, 4) !=
+					sequence - RING_SLOTS + 1)
+				sched_yield();
+			__sync_synchronize();
+		}
+
+		slot[8] = build_mouse_cmd(slot + 9, sequence);
+		__sync_synchronize();
+		*(volatile uint32_t *)slot = htonl(sequence + 1);
+		__sync_synchronize();
+
+		if (*waiting) {
+			*waiting = 0;
+			if (write_data(doorbell, sizeof(doorbell)) < 0)
+				return -1;
+			doorbells++;
+		}
+	}
+
+	if (sync_daemon() < 0)
+		return -1;
+
+	elapsed = get_time_sec() - start;
+	printf("ring commands:    %d reports in %.3f s (%.0f reports/s, "
+		"%lu doorbells)\n", count, elapsed, count / elapsed, doorbells);
+
+	return 0;
+}
+
+static int compare_uint32(const void *a, const void *b)
+{
+	uint32_t va = *(const uint32_t *)a;
+	uint32_t vb = *(const uint32_t *)b;
+
+	return (va > vb) - (va < vb);
+}
+
+static void print_latency(const char *name, uint32_t *samples, int count)
+{
+	uint64_t sum = 0;
+	int i;
+
+	qsort(samples, count, sizeof(uint32_t), compare_uint32);
+
+	for (i = 0; i < count; i++)
+		sum += samples[i];
+
+	printf("  %-18s avg %6llu us  p50 %6u us  p99 %6u us  max %6u us\n",
+		name, (unsigned long long)(sum / count), samples[count / 2],
+		samples[(count * 99) / 100], samples[count - 1]);
+}
+
+/*
+ * Send traced Mouse Reports one after another and measure their latency.
+ */
+static int run_latency(int count)
+{
+	unsigned char data[MOUSE_TRACED_CMD_SIZE];
+	static uint32_t receive_samples[MAX_SAMPLES];
+	static uint32_t send_samples[MAX_SAMPLES];
+	static uint32_t round_trip_samples[MAX_SAMPLES];
+	HidcInputTrace trace;
+	unsigned long expected;
+	int i;
+
+	if (count > MAX_SAMPLES)
+		count = MAX_SAMPLES;
+
+	pthread_mutex_lock(&cb_mutex);
+	expected = trace_count;
+	pthread_mutex_unlock(&cb_mutex);
+
+	for (i = 0; i < count; i++) {
+		build_mouse_traced_cmd(data, i);
+		if (write_data(data, sizeof(data)) < 0)
+			return -1;
+
+		expected++;
+		if (wait_for_trace_count(expected, &trace) < 0)
+			return -1;
+
+		receive_samples[i] = trace.receive_time - trace.ipc_write_time;
+		send_samples[i] = trace.send_time - trace.receive_time;
+		round_trip_samples[i] = get_time_us() - trace.ipc_write_time;
+	}
+
+	printf("traced commands:  %d reports\n", count);
+	print_latency("write -> receive", receive_samples, count);
+	print_latency("receive -> send", send_samples, count);
+	print_latency("round trip", round_trip_samples, count);
+
+	return 0;
+}
+
+int main(int argc, char **argv)
+{
+	int opt;
+	int count = 100000;
+	int batch = 16;
+	int latency_count = 10000;
+	int use_ring = 0;
+	int result = 0;
+	pthread_t reader;
+
+	while ((opt = getopt(argc, argv, optString)) != -1) {
+		switch (opt) {
+		case 'n':
+			count = atoi(optarg);
+			break;
+		case 'b':
+			batch = atoi(optarg);
+			break;
+		case 'l':
+			latency_count = atoi(optarg);
+			break;
+		case 'r':
+			use_ring = 1;
+			break;
+		default:
+			usage();
+			exit(0);
+		}
+	}
+
+	if (batch < 1 || batch * MOUSE_CMD_SIZE > HIDC_IPC_MAX_BATCH_SIZE) {
+		fprintf(stderr, "Invalid batch size: %d\n", batch);
+		exit(1);
+	}
+
+	if (connect_daemon() < 0)
+		exit(1);
+
+	if (pthread_create(&reader, NULL, reader_thread, NULL) != 0) {
+		fprintf(stderr, "Can't start callback reader\n");
+		exit(1);
+	}
+
+	if (connect_hid() < 0 ||
+			(count > 0 && run_single_throughput(count) < 0) ||
+			(count > 0 && run_batch_throughput(count, batch) < 0) ||
+			(count > 0 && use_ring && run_ring_throughput(count) < 0) ||
+			(latency_count > 0 && run_latency(latency_count) < 0)) {
+		fprintf(stderr, "Benchmark failed\n");
+		result = 1;
+	}
+
+	shutdown(ipc_sock, SHUT_RDWR);
+	pthread_join(reader, NULL);
+	close(ipc_sock);
+
+	exit(result);
+}
@@ -0,0 +1,694 @@
+/*
+ *  L2CAP handler tests for the host build
+ */
+/*
+ *  Copyright (C) 2012
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * Runs the HID channel handlers of "hidl2cap.c" with socketpairs in place of
+ * the L2CAP sockets. The test plays the HID host: it sends requests on the
+ * control socketpair and reads the Input Reports from the interrupt
+ * socketpair. The source file is included so that a socketpair can be
+ * attached like an accepted L2CAP connection and the queue state can be
+ * checked. The IPC code is the real one, so a test can also act as the IPC
+ * client. Every case runs with an alarm, so a handler that blocks the event
+ * loop fails the test instead of hanging it.
+ */
+
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+
+#include "../hidl2cap.c"
+
+
+/* The time in seconds after which a blocked test case is aborted. */
+#define CASE_TIMEOUT	5
+
+/* The time in milliseconds that a case waits for the expected Reports. */
+#define RECEIVE_TIMEOUT	1000
+
+/* The send buffer size of the interrupt channel, small to fill it quickly. */
+#define INTR_SNDBUF_SIZE	4096
+
+/* The first byte of the packets that fill up the interrupt channel. */
+#define FILLER_BYTE	0x00
+
+#define MAX_RECEIVED_REPORTS	64
+
+
+/*
+ * An Input Report that was received by the test host.
+ */
+typedef struct ReceivedReport {
+	unsigned char data[MAX_INPUT_REPORT_SIZE];
+	int size;
+} ReceivedReport;
+
+
+static int failures = 0;
+
+/* The socketpairs of the HID channels: [0] daemon side, [1] host side. */
+static int ctrl_pair[2] = { -1, -1 };
+static int intr_pair[2] = { -1, -1 };
+
+static bdaddr_t app_bdaddr;
+static bdaddr_t host_bdaddr = {{ 0x01, 0x02, 0x03, 0x04, 0x05, 0x06 }};
+
+static ReceivedReport received[MAX_RECEIVED_REPORTS];
+static int received_count;
+
+
+#define CHECK(cond) \
+	do { \
+		if (!(cond)) { \
+			fprintf(stderr, "%s:%d: check failed: %s\n", \
+				__FILE__, __LINE__, #cond); \
+			failures++; \
+		} \
+	} while (0)
+
+
+/*
+ * Replacements of the "bluectrld.c" functions.
+ */
+int hidc_get_app_dev_id()
+{
+	return 0;
+}
+
+bdaddr_t *hidc_get_app_dev_bdaddr()
+{
+	return &app_bdaddr;
+}
+
+void hidc_shutdown()
+{
+}
+
+
+static void on_alarm(int signum)
+{
+	static const char msg[] = "test case blocked the event loop\n";
+
+	write(STDERR_FILENO, msg, sizeof(msg) - 1);
+	_exit(2);
+}
+
+static int64_t get_time_ms()
+{
+	return get_time_us() / 1000;
+}
+
+
+/*
+ * Attach the daemon side of two new socketpairs as HID control and interrupt
+ * channel, like an accepted connection of the host.
+ */
+static void connect_host()
+{
+	int sndbuf = INTR_SNDBUF_SIZE;
+
+	received_count = 0;
+
+	if (socketpair(AF_UNIX, SOCK_SEQPACKET, 0, ctrl_pair) < 0 ||
+			socketpair(AF_UNIX, SOCK_SEQPACKET, 0, intr_pair) < 0) {
+		fprintf(stderr, "test setup failed\n");
+		exit(2);
+	}
+
+	setsockopt(intr_pair[0], SOL_SOCKET, SO_SNDBUF,
+			&sndbuf, sizeof(sndbuf));
+
+	hidc_eventloop_add(ctrl_pair[0], EPOLLIN, on_client_ctrl_sock_event);
+	client_ctrl_sock = ctrl_pair[0];
+	hidc_eventloop_add(intr_pair[0], EPOLLIN, on_client_intr_sock_event);
+	client_intr_sock = intr_pair[0];
+
+	on_hid_connected(&host_bdaddr);
+
+	alarm(CASE_TIMEOUT);
+}
+
+/*
+ * Close the HID connection and the host side of the socketpairs.
+ */
+static void disconnect_host()
+{
+	alarm(0);
+
+	hidc_disconnect_hid();
+	hidc_set_max_report_rate(0);
+
+	if (ctrl_pair[1] > -1)
+		close(ctrl_pair[1]);
+	if (intr_pair[1] > -1)
+		close(intr_pair[1]);
+
+	ctrl_pair[1] = -1;
+	intr_pair[1] = -1;
+}
+
+/*
+ * Fill the interrupt channel until the daemon side can't send anymore.
+ */
+static void block_intr_channel()
+{
+	unsigned char filler = FILLER_BYTE;
+
+	while (send(client_intr_sock, &filler, sizeof(filler),
+			MSG_DONTWAIT) > 0)
+		;
+}
+
+/*
+ * Read everything that the host side of the interrupt channel received and
+ * keep the Input Reports.
+ */
+static void read_intr_channel()
+{
+	ReceivedReport *report;
+	unsigned char buffer[INPUT_MTU];
+	int size;
+
+	while ((size = recv(intr_pair[1], buffer, sizeof(buffer),
+			MSG_DONTWAIT)) > 0) {
+		if (size == 1 && buffer[0] == FILLER_BYTE)
+			continue;
+
+		if (received_count >= MAX_RECEIVED_REPORTS) {
+			fprintf(stderr, "too many Reports received\n");
+			failures++;
+			continue;
+		}
+
+		report = &received[received_count++];
+		report->size = (size < MAX_INPUT_REPORT_SIZE) ?
+				size : MAX_INPUT_REPORT_SIZE;
+		memcpy(report->data, buffer, report->size);
+	}
+}
+
+/*
+ * Run the event loop and read the interrupt channel until the given number
+ * of Input Reports was received or the receive timeout expired.
+ *
+ * Returns:
+ *     The number of received Input Reports.
+ */
+static int receive_reports(int count)
+{
+	int64_t end_time = get_time_ms() + RECEIVE_TIMEOUT;
+
+	read_intr_channel();
+	while (received_count < count && get_time_ms() < end_time) {
+		hidc_eventloop_run_once(10);
+		read_intr_channel();
+	}
+
+	return received_count;
+}
+
+/*
+ * Send a request on the host side of the control channel and read the
+ * response of the daemon.
+ *
+ * Returns:
+ *     The size of the response or -1 if there was none.
+ */
+static int control_request(unsigned char thdr, unsigned char *response,
+			int response_size)
+{
+	int64_t end_time = get_time_ms() + RECEIVE_TIMEOUT;
+	int size;
+
+	send(ctrl_pair[1], &thdr, sizeof(thdr), 0);
+
+	do {
+		hidc_eventloop_run_once(10);
+		size = recv(ctrl_pair[1], response, response_size,
+				MSG_DONTWAIT);
+	} while (size < 0 && get_time_ms() < end_time);
+
+	return size;
+}
+
+static void send_keys(unsigned char key)
+{
+	unsigned char keycodes[6] = { key, 0, 0, 0, 0, 0 };
+
+	hidc_send_hid_report_keys(0, keycodes);
+}
+
+/*
+ * Check that a received Report is the Keyboard Report of send_keys().
+ */
+static int is_keys_report(int index, unsigned char key)
+{
+	ReceivedReport *report = &received[index];
+
+	return (report->size == (int)get_input_report_keys_size() &&
+		report->data[0] == (BTTHT_DATA | BTTHP_DATA_INPUT) &&
+		report->data[1] == HIDC_REPORTID_KEYBOARD &&
+		report->data[4] == key);
+}
+
+/*
+ * Check that a received Report is a relative Mouse Report in the Report
+ * protocol with the given values.
+ */
+static int is_mouse_report(int index, unsigned char buttons, int x, int y,
+			int scroll_y, int scroll_x)
+{
+	ReceivedReport *report = &received[index];
+	int16_t report_x;
+	int16_t report_y;
+
+	memcpy(&report_x, report->data + 3, 2);
+	memcpy(&report_y, report->data + 5, 2);
+
+	return (report->size == 9 &&
+		report->data[0] == (BTTHT_DATA | BTTHP_DATA_INPUT) &&
+		report->data[1] == HIDC_REPORTID_MOUSE &&
+		report->data[2] == buttons &&
+		(int16_t)btohs(report_x) == x &&
+		(int16_t)btohs(report_y) == y &&
+		(signed char)report->data[7] == scroll_y &&
+		(signed char)report->data[8] == scroll_x);
+}
+
+/*
+ * Check that a received Report is a relative Mouse Report in the boot
+ * protocol with the given values.
+ */
+static int is_boot_mouse_report(int index, unsigned char buttons, int x, int y)
+{
+	ReceivedReport *report = &received[index];
+
+	return (report->size == 5 &&
+		report->data[1] == HIDC_REPORTID_MOUSE &&
+		report->data[2] == buttons &&
+		(signed char)report->data[3] == x &&
+		(signed char)report->data[4] == y);
+}
+
+/*
+ * Check that a received Report is an absolute Mouse Report with the given
+ * values.
+ */
+static int is_mouse_abs_report(int index, unsigned char buttons, int x, int y)
+{
+	ReceivedReport *report = &received[index];
+	uint16_t report_x;
+	uint16_t report_y;
+
+	memcpy(&report_x, report->data + 3, 2);
+	memcpy(&report_y, report->data + 5, 2);
+
+	return (report->size == 7 &&
+		report->data[1] == HIDC_REPORTID_MOUSE_ABSOLUTE &&
+		report->data[2] == buttons &&
+		btohs(report_x) == x && btohs(report_y) == y);
+}
+
+
+/*
+ * Connect to the IPC server of the daemon like the Android client.
+ *
+ * Returns:
+ *     The client socket or -1 on failure.
+ */
+static int connect_ipc_client()
+{
+	struct sockaddr_un unaddr;
+	socklen_t addrlen;
+	char unixdomain[] = HIDC_UNIXDOMAIN_IPC;
+	int64_t end_time;
+	int sk;
+
+	sk = socket(AF_UNIX, SOCK_STREAM, 0);
+	if (sk < 0)
+		return -1;
+
+	memset(&unaddr, 0, sizeof(unaddr));
+	unaddr.sun_family = AF_UNIX;
+	/* abstract namespace starts with '\0' */
+	unaddr.sun_path[0] = '\0';
+	strncpy(unaddr.sun_path + 1, unixdomain, sizeof(unaddr.sun_path) - 1);
+
+	addrlen = sizeof(unaddr.sun_family) + 1 + strlen(unixdomain);
+
+	if (connect(sk, (struct sockaddr*) &unaddr, addrlen) < 0) {
+		close(sk);
+		return -1;
+	}
+
+	end_time = get_time_ms() + RECEIVE_TIMEOUT;
+	while (!hidc_is_ipc_connected() && get_time_ms() < end_time)
+		hidc_eventloop_run_once(10);
+
+	return sk;
+}
+
+/*
+ * Build a "Send Keyboard HID Report" IPC command.
+ */
+static void put_keys_cmd(unsigned char *data, unsigned char key)
+{
+	int32_t cmd = htonl(HIDC_IPC_CMD_HID_SEND_KEYS);
+
+	memcpy(data, &cmd, sizeof(cmd));
+	memset(data + 4, 0, 7);
+	data[5] = key;
+}
+
+
+/*
+ * A Keyboard Report is sent on the interrupt channel right away.
+ */
+static void test_send_report()
+{
+	connect_host();
+
+	CHECK(hidc_is_hid_connected());
+
+	send_keys(0x04);
+	CHECK(receive_reports(1) == 1);
+	CHECK(is_keys_report(0, 0x04));
+	CHECK(intr_queue_count == 0);
+
+	disconnect_host();
+}
+
+/*
+ * The protocol requests on the control channel are answered and switch the
+ * Report protocol.
+ */
+static void test_set_protocol()
+{
+	unsigned char response[8];
+
+	connect_host();
+
+	CHECK(control_request(BTTHT_SET_PROTOCOL | BTTHP_SET_PROTOCOL_BOOT,
+			response, sizeof(response)) == 1);
+	CHECK(response[0] == (BTTHT_HANDSHAKE | BTTHP_HANDSHAKE_SUCCESS));
+	CHECK(!use_report_protocol);
+
+	CHECK(control_request(BTTHT_GET_PROTOCOL,
+			response, sizeof(response)) == 2);
+	CHECK(response[0] == (BTTHT_DATA | BTTHP_DATA_OTHER));
+	CHECK(response[1] == 0x00);
+
+	CHECK(control_request(BTTHT_SET_PROTOCOL | BTTHP_SET_PROTOCOL_REPORT,
+			response, sizeof(response)) == 1);
+	CHECK(use_report_protocol);
+
+	disconnect_host();
+}
+
+/*
+ * Reports wait in the queue while the interrupt channel is full and are sent
+ * in order after it is writable again.
+ */
+static void test_blocked_channel()
+{
+	connect_host();
+
+	block_intr_channel();
+	send_keys(0x04);
+	send_keys(0x05);
+	send_keys(0x06);
+
+	CHECK(intr_queue_blocked);
+	CHECK(intr_queue_count == 3);
+
+	CHECK(receive_reports(3) == 3);
+	CHECK(is_keys_report(0, 0x04));
+	CHECK(is_keys_report(1, 0x05));
+	CHECK(is_keys_report(2, 0x06));
+	CHECK(intr_queue_count == 0);
+	CHECK(!intr_queue_blocked);
+
+	disconnect_host();
+}
+
+/*
+ * The maximum report rate delays the queued Reports.
+ */
+static void test_max_report_rate()
+{
+	int64_t start_time;
+
+	connect_host();
+
+	hidc_set_max_report_rate(100);
+
+	start_time = get_time_ms();
+	send_keys(0x04);
+	send_keys(0x05);
+	send_keys(0x06);
+
+	/* the first Report doesn't wait */
+	CHECK(intr_queue_count == 2);
+
+	CHECK(receive_reports(3) == 3);
+	CHECK(get_time_ms() - start_time >= 15);
+	CHECK(is_keys_report(2, 0x06));
+
+	disconnect_host();
+}
+
+/*
+ * Queued relative Mouse Reports with the same buttons are combined as long
+ * as the sums fit into the Report.
+ */
+static void test_mouse_merge()
+{
+	connect_host();
+
+	block_intr_channel();
+	hidc_send_hid_report_mouse(0, 10, -5, 1, 0);
+	hidc_send_hid_report_mouse(0, 20, 5, 2, -1);
+	hidc_send_hid_report_mouse(0, -3, 7, 0, 0);
+
+	CHECK(intr_queue_count == 1);
+
+	CHECK(receive_reports(1) == 1);
+	CHECK(is_mouse_report(0, 0, 27, 7, 3, -1));
+
+	/* the sums would exceed the value range of the Report */
+	block_intr_channel();
+	hidc_send_hid_report_mouse(0, 2000, 0, 0, 0);
+	hidc_send_hid_report_mouse(0, 100, 0, 0, 0);
+	hidc_send_hid_report_mouse(0, 0, -10, 120, 0);
+	hidc_send_hid_report_mouse(0, 0, 0, 10, 0);
+
+	CHECK(intr_queue_count == 3);
+
+	CHECK(receive_reports(4) == 4);
+	CHECK(is_mouse_report(1, 0, 2000, 0, 0, 0));
+	CHECK(is_mouse_report(2, 0, 100, -10, 120, 0));
+	CHECK(is_mouse_report(3, 0, 0, 0, 10, 0));
+
+	disconnect_host();
+}
+
+/*
+ * A button transition always gets its own Report, and other Reports between
+ * two Mouse Reports prevent combining them.
+ */
+static void test_mouse_button_transition()
+{
+	connect_host();
+
+	block_intr_channel();
+	hidc_send_hid_report_mouse(0, 10, 0, 0, 0);
+	hidc_send_hid_report_mouse(1, 0, 0, 0, 0);
+	hidc_send_hid_report_mouse(1, 5, 5, 0, 0);
+	hidc_send_hid_report_mouse(0, 0, 0, 0, 0);
+	send_keys(0x04);
+	hidc_send_hid_report_mouse(0, 1, 1, 0, 0);
+
+	CHECK(intr_queue_count == 5);
+
+	CHECK(receive_reports(5) == 5);
+	CHECK(is_mouse_report(0, 0, 10, 0, 0, 0));
+	CHECK(is_mouse_report(1, 1, 5, 5, 0, 0));
+	CHECK(is_mouse_report(2, 0, 0, 0, 0, 0));
+	CHECK(is_keys_report(3, 0x04));
+	CHECK(is_mouse_report(4, 0, 1, 1, 0, 0));
+
+	disconnect_host();
+}
+
+/*
+ * A queued absolute Mouse Report with the same buttons is overwritten by the
+ * latest position.
+ */
+static void test_mouse_abs_overwrite()
+{
+	connect_host();
+
+	block_intr_channel();
+	hidc_send_hid_report_mouse_abs(0, 100, 200);
+	hidc_send_hid_report_mouse_abs(0, 300, 400);
+	hidc_send_hid_report_mouse_abs(1, 300, 400);
+	hidc_send_hid_report_mouse_abs(1, 2047, 0);
+
+	CHECK(intr_queue_count == 2);
+
+	CHECK(receive_reports(2) == 2);
+	CHECK(is_mouse_abs_report(0, 0, 300, 400));
+	CHECK(is_mouse_abs_report(1, 1, 2047, 0));
+
+	disconnect_host();
+}
+
+/*
+ * The boot protocol scales the combined movement to a quarter (rounded up)
+ * and combines only as much as fits into the scaled Report.
+ */
+static void test_boot_protocol_mouse()
+{
+	unsigned char response[8];
+
+	connect_host();
+
+	CHECK(control_request(BTTHT_SET_PROTOCOL | BTTHP_SET_PROTOCOL_BOOT,
+			response, sizeof(response)) == 1);
+
+	block_intr_channel();
+	hidc_send_hid_report_mouse(0, 10, -10, 0, 0);
+	hidc_send_hid_report_mouse(0, 6, 0, 0, 0);
+	/* 516 exceeds 127 * 4, but 500 + 8 still fits */
+	hidc_send_hid_report_mouse(0, 500, 0, 0, 0);
+	hidc_send_hid_report_mouse(0, 8, 0, 0, 0);
+
+	CHECK(intr_queue_count == 2);
+
+	CHECK(receive_reports(2) == 2);
+	/* (16 + 3) / 4 and (-10 + 3) / 4 */
+	CHECK(is_boot_mouse_report(0, 0, 4, -1));
+	/* (508 + 3) / 4 */
+	CHECK(is_boot_mouse_report(1, 0, 127, 0));
+
+	disconnect_host();
+}
+
+/*
+ * A full queue pauses the IPC commands instead of blocking the event loop or
+ * dropping Reports, and the commands continue after the queue was drained.
+ */
+static void test_full_queue_pauses_ipc()
+{
+	unsigned char data[40 * 11];
+	int64_t end_time;
+	int ipc_sock;
+	int i;
+
+	CHECK(hidc_start_ipc_server() == 0);
+	ipc_sock = connect_ipc_client();
+	CHECK(ipc_sock > -1 && hidc_is_ipc_connected());
+
+	connect_host();
+	block_intr_channel();
+
+	for (i = 0; i < 40; i++)
+		put_keys_cmd(data + i * 11, i + 1);
+	send(ipc_sock, data, sizeof(data), 0);
+
+	end_time = get_time_ms() + 100;
+	while (get_time_ms() < end_time)
+		hidc_eventloop_run_once(10);
+
+	CHECK(hidc_is_hid_queue_full());
+	CHECK(intr_queue_count == INTR_QUEUE_PAUSE_LEVEL);
+
+	CHECK(receive_reports(40) == 40);
+	for (i = 0; i < received_count; i++)
+		CHECK(is_keys_report(i, i + 1));
+	CHECK(!hidc_is_hid_queue_full());
+
+	disconnect_host();
+
+	hidc_close_client_ipc();
+	close(ipc_sock);
+	hidc_stop_ipc_server();
+}
+
+/*
+ * The connection is closed if the host closes the interrupt channel.
+ */
+static void test_remote_close()
+{
+	int64_t end_time;
+
+	connect_host();
+
+	close(intr_pair[1]);
+	intr_pair[1] = -1;
+
+	end_time = get_time_ms() + RECEIVE_TIMEOUT;
+	while (hidc_is_hid_connected() && get_time_ms() < end_time)
+		hidc_eventloop_run_once(10);
+
+	CHECK(!hidc_is_hid_connected());
+	CHECK(client_intr_sock < 0 && client_ctrl_sock < 0);
+
+	disconnect_host();
+}
+
+
+int main(int argc, char *argv[])
+{
+	log_init("l2captest", 0, 0);
+	signal(SIGALRM, on_alarm);
+	signal(SIGPIPE, SIG_IGN);
+
+	if (hidc_eventloop_init() < 0) {
+		fprintf(stderr, "test setup failed\n");
+		return 2;
+	}
+
+	test_send_report();
+	test_set_protocol();
+	test_blocked_channel();
+	test_max_report_rate();
+	test_mouse_merge();
+	test_mouse_button_transition();
+	test_mouse_abs_overwrite();
+	test_boot_protocol_mouse();
+	test_full_queue_pauses_ipc();
+	test_remote_close();
+
+	hidc_eventloop_close();
+
+	if (failures > 0) {
+		fprintf(stderr, "%d checks failed\n", failures);
+		return 1;
+	}
+
+	printf("All L2CAP tests passed\n");
+	return 0;
+}
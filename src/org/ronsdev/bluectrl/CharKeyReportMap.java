@@ -16,150 +16,470 @@
 
 package org.ronsdev.bluectrl;
 
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetManager;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 /**
  * Describes the characters that can be produced with the Keyboard and the associated HID Reports
  * to produce them.
+ *
+ * The map is stored in a compiled form so that a lookup doesn't allocate any objects. Each
+ * character points to a sequence of Keyboard Reports and all sequences are packed into one
+ * short array where each entry contains the modifier (high byte) and the key code (low byte).
+ * Characters below DENSE_RANGE are looked up directly by their value, all other characters are
+ * found with a binary search.
+ *
+ * The compiled tables are cached as a binary file in the application cache directory so that
+ * the text Keymap file only has to be parsed once after the application was installed or
+ * updated. Loaded maps are additionally kept in a process-wide cache.
  */
 public class CharKeyReportMap {
 
-    /**
-     * Class that contains informations for a HID Keyboard Report sequence to produce a character.
-     */
-    public final class KeyReport {
+    private static final String TAG = "CharKeyReportMap";
 
-        private int mModifier;
-        private int mKeyCode;
+    private static final String KEYMAPS_PATH = "keymaps/";
 
-        public KeyReport(int modifier, int keyCode) {
-            mModifier = modifier;
-            mKeyCode = keyCode;
-        }
+    /** Characters below this value are stored in a directly indexed table. */
+    private static final int DENSE_RANGE = 0x100;
 
-        public int getModifier() {
-            return mModifier;
-        }
+    /** The directory (in the cache directory) for the compiled binary Keymap files. */
+    private static final String BINARY_CACHE_DIR = "keymaps";
 
-        public int getKeyCode() {
-            return mKeyCode;
-        }
-    }
+    /** The file extension of the compiled binary Keymap files. */
+    private static final String BINARY_FILE_EXTENSION = ".bin";
+
+    /** Identifies a compiled binary Keymap file ("BCKM"). */
+    private static final int BINARY_MAGIC = 0x42434B4D;
+
+    /** The format version of the compiled binary Keymap files. */
+    private static final int BINARY_VERSION = 1;
+
+    /** The size of the binary file header (magic, version and the 3 table sizes). */
+    private static final int BINARY_HEADER_SIZE = 20;
+
+
+    private static HashMap<String, CharKeyReportMap> sCache =
+            new HashMap<String, CharKeyReportMap>();
 
-    /**
-     * Class that contains a sequence of HID Keyboard Reports to produce a character.
-     */
-    public final class KeyReportSequence extends ArrayList<KeyReport> {
 
-        private static final long serialVersionUID = 5492730235502340972L;
+    /* Packed Keyboard Reports of all sequences ((modifier << 8) | key code). */
+    private short[] mReports;
+
+    /* Start of each sequence in mReports; the last entry is the total report count. */
+    private int[] mSequenceOffsets;
+
+    /* Sequence index for each character below DENSE_RANGE or -1 if it is unknown. */
+    private int[] mDenseSequences;
+
+    /* Sorted characters above DENSE_RANGE and their sequence indexes. */
+    private char[] mSparseChars;
+    private int[] mSparseSequences;
+
+
+    private CharKeyReportMap() {
     }
 
 
-    private static final String TAG = "CharKeyReportMap";
+    /**
+     * Gets the map for the specified Keymap file. The map is loaded from the process-wide cache,
+     * the compiled binary file or the text Keymap file (in this order).
+     */
+    public static synchronized CharKeyReportMap get(Context context, String fileName) {
+        CharKeyReportMap result = sCache.get(fileName);
+        if (result != null) {
+            return result;
+        }
 
-    private static final String KEYMAPS_PATH = "keymaps/";
+        result = new CharKeyReportMap();
 
+        File binaryFile = getBinaryFile(context, fileName);
+        if ((binaryFile.lastModified() < getApplicationUpdateTime(context)) ||
+                !result.loadBinaryFile(binaryFile)) {
+            TreeMap<Character, short[]> sequenceMap = new TreeMap<Character, short[]>();
+            final boolean isLoaded = loadKeyMapFile(fileName, context.getAssets(), sequenceMap);
+            result.compile(sequenceMap);
+
+            // An incomplete map is used once but it's loaded again the next time
+            if (!isLoaded) {
+                return result;
+            }
 
-    private HashMap<Character, KeyReportSequence> mInternalMap;
+            result.saveBinaryFile(binaryFile);
+        }
 
+        sCache.put(fileName, result);
+        return result;
+    }
 
-    public CharKeyReportMap(String fileName, AssetManager assetManager) {
-        mInternalMap = new HashMap<Character, KeyReportSequence>();
+    private static File getBinaryFile(Context context, String fileName) {
+        File dir = new File(context.getCacheDir(), BINARY_CACHE_DIR);
+        return new File(dir, fileName + BINARY_FILE_EXTENSION);
+    }
 
-        loadKeyMapFile(fileName, assetManager);
+    private static long getApplicationUpdateTime(Context context) {
+        try {
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return packageInfo.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            Log.w(TAG, "Can't get the update time of the application", e);
+            return Long.MAX_VALUE;
+        }
     }
 
-    private void add(Character key, int modifier, int keyCode) {
-        KeyReportSequence sequence = new KeyReportSequence();
-        sequence.add(new KeyReport(modifier, keyCode));
-        add(key, sequence);
+    private static short packReport(int modifier, int keyCode) {
+        return (short)(((modifier & 0xFF) << 8) | (keyCode & 0xFF));
     }
 
-    private void add(Character key, KeyReportSequence sequence) {
-        if (!mInternalMap.containsKey(key)) {
-            mInternalMap.put(key, sequence);
+    private static void add(TreeMap<Character, short[]> sequenceMap, char key,
+            int modifier, int keyCode) {
+        if (!sequenceMap.containsKey(key)) {
+            sequenceMap.put(key, new short[] { packReport(modifier, keyCode) });
         }
     }
 
-    private void parseKeyMapRow(String row) {
+    private static void parseKeyMapRow(String row, TreeMap<Character, short[]> sequenceMap) {
         String[] cells = row.split("\\t");
         if (cells.length < 3) {
             return;
         }
 
-        Character keychar = cells[0].charAt(0);
-        if (mInternalMap.containsKey(keychar)) {
+        char keychar = cells[0].charAt(0);
+        if (sequenceMap.containsKey(keychar)) {
             Log.w(TAG, String.format("redundant HidKeyMap char '%c'", keychar));
             return;
         }
 
-        KeyReportSequence keyReportSequence = new KeyReportSequence();
+        short[] sequence = new short[(cells.length - 1) / 2];
         for (int i = 2; i < cells.length; i += 2) {
             try {
                 final int modifier = Integer.parseInt(cells[i - 1]);
                 final int keyCode = Integer.parseInt(cells[i]);
-                keyReportSequence.add(new KeyReport(modifier, keyCode));
+                sequence[i / 2 - 1] = packReport(modifier, keyCode);
             } catch (NumberFormatException e) {
                 Log.e(TAG, "invalid HidKeyMap number", e);
                 return;
             }
         }
 
-        add(keychar, keyReportSequence);
+        sequenceMap.put(keychar, sequence);
     }
 
-    private void loadKeyMapFile(String fileName, AssetManager assetManager) {
-        InputStream inputStream = null;
+    /** Reads the rows of a text Keymap into the sequence map. */
+    private static void readKeyMap(InputStream inputStream,
+            TreeMap<Character, short[]> sequenceMap) throws IOException {
         InputStreamReader inputReader = null;
         BufferedReader reader = null;
         try {
-            inputStream = assetManager.open(KEYMAPS_PATH + fileName);
+            inputReader = new InputStreamReader(inputStream);
+            reader = new BufferedReader(inputReader);
+
+            String row;
+            while ((row = reader.readLine()) != null) {
+                final int commentIndex = row.indexOf("//");
+                if (commentIndex > -1) {
+                    row = row.substring(0, commentIndex);
+                }
+
+                parseKeyMapRow(row, sequenceMap);
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            if (inputReader != null) {
+                inputReader.close();
+            }
+        }
+    }
+
+    private static void addWhitespaceKeys(TreeMap<Character, short[]> sequenceMap) {
+        add(sequenceMap, ' ', 0, 44);
+        add(sequenceMap, '\n', 0, 40);
+        add(sequenceMap, '\t', 0, 43);
+    }
+
+    /**
+     * Reads the text Keymap file into the sequence map.
+     *
+     * @return {@code false} if the file couldn't be read.
+     */
+    private static boolean loadKeyMapFile(String fileName, AssetManager assetManager,
+            TreeMap<Character, short[]> sequenceMap) {
+        boolean result = true;
+        try {
+            InputStream inputStream = assetManager.open(KEYMAPS_PATH + fileName);
             try {
-                inputReader = new InputStreamReader(inputStream);
-                reader = new BufferedReader(inputReader);
+                readKeyMap(inputStream, sequenceMap);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("read HidKeyMap '%s' failed", fileName), e);
+            result = false;
+        }
+
+        addWhitespaceKeys(sequenceMap);
+
+        return result;
+    }
+
+    /**
+     * Compiles a text Keymap without a Context and without the binary file and the process-wide
+     * cache. Used by the off-device benchmarks.
+     */
+    static CharKeyReportMap compileKeyMap(InputStream inputStream) throws IOException {
+        TreeMap<Character, short[]> sequenceMap = new TreeMap<Character, short[]>();
+        readKeyMap(inputStream, sequenceMap);
+        addWhitespaceKeys(sequenceMap);
+
+        CharKeyReportMap result = new CharKeyReportMap();
+        result.compile(sequenceMap);
+        return result;
+    }
+
+    /** Builds the compiled lookup tables from a character sorted sequence map. */
+    private void compile(TreeMap<Character, short[]> sequenceMap) {
+        int reportCount = 0;
+        int sparseCount = 0;
+        for (Map.Entry<Character, short[]> entry : sequenceMap.entrySet()) {
+            reportCount += entry.getValue().length;
+            if (entry.getKey() >= DENSE_RANGE) {
+                sparseCount++;
+            }
+        }
+
+        mReports = new short[reportCount];
+        mSequenceOffsets = new int[sequenceMap.size() + 1];
+        mDenseSequences = new int[DENSE_RANGE];
+        mSparseChars = new char[sparseCount];
+        mSparseSequences = new int[sparseCount];
 
-                String row;
-                while ((row = reader.readLine()) != null) {
-                    final int commentIndex = row.indexOf("//");
-                    if (commentIndex > -1) {
-                        row = row.substring(0, commentIndex);
-                    }
+        Arrays.fill(mDenseSequences, -1);
 
-                    parseKeyMapRow(row);
+        int sequenceIndex = 0;
+        int sparseIndex = 0;
+        int reportIndex = 0;
+        for (Map.Entry<Character, short[]> entry : sequenceMap.entrySet()) {
+            final char character = entry.getKey();
+            final short[] sequence = entry.getValue();
+
+            if (character < DENSE_RANGE) {
+                mDenseSequences[character] = sequenceIndex;
+            } else {
+                mSparseChars[sparseIndex] = character;
+                mSparseSequences[sparseIndex] = sequenceIndex;
+                sparseIndex++;
+            }
+
+            mSequenceOffsets[sequenceIndex] = reportIndex;
+            System.arraycopy(sequence, 0, mReports, reportIndex, sequence.length);
+            reportIndex += sequence.length;
+            sequenceIndex++;
+        }
+        mSequenceOffsets[sequenceIndex] = reportIndex;
+    }
+
+    /**
+     * Loads the compiled tables from a binary Keymap file with a single memory-mapped read.
+     *
+     * @return {@code false} if the file doesn't exist or is invalid.
+     */
+    private boolean loadBinaryFile(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        try {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+
+                if ((buffer.remaining() < BINARY_HEADER_SIZE) ||
+                        (buffer.getInt() != BINARY_MAGIC) ||
+                        (buffer.getInt() != BINARY_VERSION)) {
+                    Log.w(TAG, String.format("invalid binary HidKeyMap '%s'", file.getName()));
+                    return false;
                 }
-            } finally {
-                if (reader != null) {
-                    reader.close();
+
+                final int reportCount = buffer.getInt();
+                final int sequenceCount = buffer.getInt();
+                final int sparseCount = buffer.getInt();
+
+                // Calculated as long so that invalid sizes can't overflow
+                final long dataSize = reportCount * 2L + (sequenceCount + 1L) * 4L +
+                        DENSE_RANGE * 4L + sparseCount * 2L + sparseCount * 4L;
+                if ((reportCount < 0) || (sequenceCount < 0) || (sparseCount < 0) ||
+                        (buffer.remaining() != dataSize)) {
+                    Log.w(TAG, String.format("invalid binary HidKeyMap '%s'", file.getName()));
+                    return false;
                 }
-                if (inputReader != null) {
-                    inputReader.close();
+
+                mReports = new short[reportCount];
+                mSequenceOffsets = new int[sequenceCount + 1];
+                mDenseSequences = new int[DENSE_RANGE];
+                mSparseChars = new char[sparseCount];
+                mSparseSequences = new int[sparseCount];
+
+                buffer.asShortBuffer().get(mReports);
+                buffer.position(buffer.position() + reportCount * 2);
+                buffer.asIntBuffer().get(mSequenceOffsets);
+                buffer.position(buffer.position() + (sequenceCount + 1) * 4);
+                buffer.asIntBuffer().get(mDenseSequences);
+                buffer.position(buffer.position() + DENSE_RANGE * 4);
+                buffer.asCharBuffer().get(mSparseChars);
+                buffer.position(buffer.position() + sparseCount * 2);
+                buffer.asIntBuffer().get(mSparseSequences);
+
+                if (!isValid()) {
+                    Log.w(TAG, String.format("invalid binary HidKeyMap '%s'", file.getName()));
+                    return false;
                 }
+            } finally {
                 inputStream.close();
             }
         } catch (IOException e) {
-            Log.e(TAG, String.format("read HidKeyMap '%s' failed", fileName), e);
+            Log.w(TAG, String.format("read binary HidKeyMap '%s' failed", file.getName()), e);
+            return false;
         }
 
-        // Add Whitespace characters
-        add(' ', 0, 44);
-        add('\n', 0, 40);
-        add('\t', 0, 43);
+        return true;
     }
 
-    public KeyReportSequence get(char key) {
-        if (mInternalMap.containsKey(key)) {
-            return mInternalMap.get(key);
-        } else {
-            return null;
+    /** Checks that all offsets and sequence indexes of the tables are within their bounds. */
+    private boolean isValid() {
+        final int sequenceCount = mSequenceOffsets.length - 1;
+
+        if ((mSequenceOffsets[0] != 0) ||
+                (mSequenceOffsets[sequenceCount] != mReports.length)) {
+            return false;
+        }
+        for (int i = 0; i < sequenceCount; i++) {
+            if (mSequenceOffsets[i] > mSequenceOffsets[i + 1]) {
+                return false;
+            }
+        }
+
+        for (int sequenceIndex : mDenseSequences) {
+            if ((sequenceIndex < -1) || (sequenceIndex >= sequenceCount)) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < mSparseChars.length; i++) {
+            if ((mSparseChars[i] < DENSE_RANGE) ||
+                    ((i > 0) && (mSparseChars[i] <= mSparseChars[i - 1]))) {
+                return false;
+            }
+            if ((mSparseSequences[i] < 0) || (mSparseSequences[i] >= sequenceCount)) {
+                return false;
+            }
         }
+
+        return true;
+    }
+
+    /** Saves the compiled tables as a binary Keymap file. */
+    private void saveBinaryFile(File file) {
+        ByteBuffer buffer = ByteBuffer.allocate(BINARY_HEADER_SIZE + mReports.length * 2 +
+                mSequenceOffsets.length * 4 + mDenseSequences.length * 4 +
+                mSparseChars.length * 2 + mSparseSequences.length * 4);
+
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(BINARY_VERSION);
+        buffer.putInt(mReports.length);
+        buffer.putInt(mSequenceOffsets.length - 1);
+        buffer.putInt(mSparseChars.length);
+
+        for (short report : mReports) {
+            buffer.putShort(report);
+        }
+        for (int offset : mSequenceOffsets) {
+            buffer.putInt(offset);
+        }
+        for (int sequenceIndex : mDenseSequences) {
+            buffer.putInt(sequenceIndex);
+        }
+        for (char character : mSparseChars) {
+            buffer.putChar(character);
+        }
+        for (int sequenceIndex : mSparseSequences) {
+            buffer.putInt(sequenceIndex);
+        }
+
+        // Write to a temporary file first so that a concurrent reader never sees a partial file
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                outputStream.write(buffer.array());
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("write binary HidKeyMap '%s' failed", file.getName()), e);
+            tempFile.delete();
+            return;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, String.format("rename binary HidKeyMap '%s' failed", file.getName()));
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Gets the index of the Keyboard Report sequence for the specified character.
+     *
+     * @return the sequence index or -1 if the character is unknown.
+     */
+    public int indexOf(char key) {
+        if (key < DENSE_RANGE) {
+            return mDenseSequences[key];
+        }
+
+        final int sparseIndex = Arrays.binarySearch(mSparseChars, key);
+        return (sparseIndex > -1) ? mSparseSequences[sparseIndex] : -1;
+    }
+
+    public boolean contains(char key) {
+        return (indexOf(key) > -1);
+    }
+
+    /** Gets the number of Keyboard Reports in the specified sequence. */
+    public int getReportCount(int sequenceIndex) {
+        return mSequenceOffsets[sequenceIndex + 1] - mSequenceOffsets[sequenceIndex];
+    }
+
+    /** Gets the modifier of a Keyboard Report in the specified sequence. */
+    public int getModifier(int sequenceIndex, int reportIndex) {
+        return (mReports[mSequenceOffsets[sequenceIndex] + reportIndex] >> 8) & 0xFF;
+    }
+
+    /** Gets the key code of a Keyboard Report in the specified sequence. */
+    public int getKeyCode(int sequenceIndex, int reportIndex) {
+        return mReports[mSequenceOffsets[sequenceIndex] + reportIndex] & 0xFF;
     }
 }
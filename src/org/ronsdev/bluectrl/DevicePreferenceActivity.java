@@ -51,10 +51,13 @@ public class DevicePreferenceActivity extends PreferenceActivity {
     private ListPreference mTouchpadGestureMode;
     private ListPreference mTouchpadButtons;
     private FloatSliderPreference mMouseSensitivity;
+    private ListPreference mPointerAcceleration;
     private FloatSliderPreference mScrollSensitivity;
     private CheckBoxPreference mInvertScroll;
     private CheckBoxPreference mFlingScroll;
     private CheckBoxPreference mStayAwake;
+    private CheckBoxPreference mShowLatencyOverlay;
+    private CheckBoxPreference mRecordTouchTrace;
 
 
     /*
@@ -97,6 +100,8 @@ public class DevicePreferenceActivity extends PreferenceActivity {
         mKeyMap = (ListPreference)findPreference(DeviceSettings.PREF_KEY_KEYMAP);
         mMouseSensitivity = (FloatSliderPreference)findPreference(
                 DeviceSettings.PREF_KEY_MOUSE_SENSITIVITY);
+        mPointerAcceleration = (ListPreference)findPreference(
+                DeviceSettings.PREF_KEY_POINTER_ACCELERATION);
 
         mTouchpadGestureMode = (ListPreference)findPreference(
                 DeviceSettings.PREF_KEY_TOUCHPAD_GESTURE_MODE);
@@ -120,6 +125,10 @@ public class DevicePreferenceActivity extends PreferenceActivity {
         mInvertScroll = (CheckBoxPreference)findPreference(DeviceSettings.PREF_KEY_INVERT_SCROLL);
         mFlingScroll = (CheckBoxPreference)findPreference(DeviceSettings.PREF_KEY_FLING_SCROLL);
         mStayAwake = (CheckBoxPreference)findPreference(DeviceSettings.PREF_KEY_STAY_AWAKE);
+        mShowLatencyOverlay = (CheckBoxPreference)findPreference(
+                DeviceSettings.PREF_KEY_SHOW_LATENCY_OVERLAY);
+        mRecordTouchTrace = (CheckBoxPreference)findPreference(
+                DeviceSettings.PREF_KEY_RECORD_TOUCH_TRACE);
     }
 
     @Override
@@ -154,22 +163,28 @@ public class DevicePreferenceActivity extends PreferenceActivity {
     private void loadSettings() {
         mKeyMap.setValue(mDeviceSettings.getKeyMap());
         mMouseSensitivity.setValue(mDeviceSettings.getMouseSensitivity());
+        mPointerAcceleration.setValue(mDeviceSettings.getPointerAcceleration());
         mTouchpadGestureMode.setValue(mDeviceSettings.getTouchpadGestureMode());
         mTouchpadButtons.setValue(mDeviceSettings.getTouchpadButtons());
         mScrollSensitivity.setValue(mDeviceSettings.getScrollSensitivity());
         mInvertScroll.setChecked(mDeviceSettings.getInvertScroll());
         mFlingScroll.setChecked(mDeviceSettings.getFlingScroll());
         mStayAwake.setChecked(mDeviceSettings.getStayAwake());
+        mShowLatencyOverlay.setChecked(mDeviceSettings.getShowLatencyOverlay());
+        mRecordTouchTrace.setChecked(mDeviceSettings.getRecordTouchTrace());
     }
 
     private void updateSettings() {
         mDeviceSettings.setKeyMap(mKeyMap.getValue());
         mDeviceSettings.setMouseSensitivity(mMouseSensitivity.getValue());
+        mDeviceSettings.setPointerAcceleration(mPointerAcceleration.getValue());
         mDeviceSettings.setTouchpadGestureMode(mTouchpadGestureMode.getValue());
         mDeviceSettings.setTouchpadButtons(mTouchpadButtons.getValue());
         mDeviceSettings.setScrollSensitivity(mScrollSensitivity.getValue());
         mDeviceSettings.setInvertScroll(mInvertScroll.isChecked());
         mDeviceSettings.setFlingScroll(mFlingScroll.isChecked());
         mDeviceSettings.setStayAwake(mStayAwake.isChecked());
+        mDeviceSettings.setShowLatencyOverlay(mShowLatencyOverlay.isChecked());
+        mDeviceSettings.setRecordTouchTrace(mRecordTouchTrace.isChecked());
     }
 }
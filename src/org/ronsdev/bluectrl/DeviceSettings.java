@@ -34,12 +34,18 @@ public class DeviceSettings {
     public static final String PREF_KEY_TOUCHPAD_GESTURE_MODE = "touchpad_gesture_mode";
     public static final String PREF_KEY_TOUCHPAD_BUTTONS = "touchpad_buttons";
     public static final String PREF_KEY_MOUSE_SENSITIVITY = "mouse_sensitivity";
+    public static final String PREF_KEY_POINTER_ACCELERATION = "pointer_acceleration";
+    public static final String PREF_KEY_MOTION_PREDICT_TIME = "motion_predict_time";
     public static final String PREF_KEY_SCROLL_SENSITIVITY = "scroll_sensitivity";
     public static final String PREF_KEY_PINCH_ZOOM_SENSITIVITY = "pinch_zoom_sensitivity";
+    public static final String PREF_KEY_MOUSE_REPORT_RATE = "mouse_report_rate";
+    public static final String PREF_KEY_MAX_REPORT_RATE = "max_report_rate";
     public static final String PREF_KEY_INVERT_SCROLL = "invert_scroll";
     public static final String PREF_KEY_FLING_SCROLL = "fling_scroll";
     public static final String PREF_KEY_FORCE_SMOOTH_SCROLL = "force_smooth_scroll";
     public static final String PREF_KEY_STAY_AWAKE = "stay_awake";
+    public static final String PREF_KEY_SHOW_LATENCY_OVERLAY = "show_latency_overlay";
+    public static final String PREF_KEY_RECORD_TOUCH_TRACE = "record_touch_trace";
 
     public static final String OS_ANDROID = "android";
     public static final String OS_IOS = "ios";
@@ -62,17 +68,27 @@ public class DeviceSettings {
     public static final String TOUCHPAD_BUTTONS_SHOW_PORTRAIT = "show_portrait";
     public static final String TOUCHPAD_BUTTONS_HIDE = "hide";
 
+    public static final String POINTER_ACCELERATION_LINEAR = "linear";
+    public static final String POINTER_ACCELERATION_WINDOWS = "windows";
+    public static final String POINTER_ACCELERATION_ADAPTIVE = "adaptive";
+
     public static final String DEFAULT_OS = OS_UNDEFINED;
     public static final String DEFAULT_KEYMAP = "en_US";
     public static final String DEFAULT_TOUCHPAD_GESTURE_MODE = TOUCHPAD_GESTURE_MODE_DEFAULT;
     public static final String DEFAULT_TOUCHPAD_BUTTONS = TOUCHPAD_BUTTONS_SHOW_PORTRAIT;
     public static final float DEFAULT_MOUSE_SENSITIVITY = 2.5f;
+    public static final String DEFAULT_POINTER_ACCELERATION = POINTER_ACCELERATION_LINEAR;
+    public static final int DEFAULT_MOTION_PREDICT_TIME = 0;
     public static final float DEFAULT_SCROLL_SENSITIVITY = 1.0f;
     public static final float DEFAULT_PINCH_ZOOM_SENSITIVITY = 0.8f;
+    public static final int DEFAULT_MOUSE_REPORT_RATE = HidMouse.REPORT_RATE_UNLIMITED;
+    public static final int DEFAULT_MAX_REPORT_RATE = 0;
     public static final boolean DEFAULT_INVERT_SCROLL = false;
     public static final boolean DEFAULT_FLING_SCROLL = true;
     public static final boolean DEFAULT_FORCE_SMOOTH_SCROLL = false;
     public static final boolean DEFAULT_STAY_AWAKE = false;
+    public static final boolean DEFAULT_SHOW_LATENCY_OVERLAY = false;
+    public static final boolean DEFAULT_RECORD_TOUCH_TRACE = false;
 
 
     private static Context sContext = null;
@@ -87,12 +103,18 @@ public class DeviceSettings {
     private String mTouchpadGestureMode;
     private String mTouchpadButtons;
     private float mMouseSensitivity;
+    private String mPointerAcceleration;
+    private int mMotionPredictTime;
     private float mScrollSensitivity;
     private float mPinchZoomSensitivity;
+    private int mMouseReportRate;
+    private int mMaxReportRate;
     private boolean mInvertScroll;
     private boolean mFlingScroll;
     private boolean mForceSmoothScroll;
     private boolean mStayAwake;
+    private boolean mShowLatencyOverlay;
+    private boolean mRecordTouchTrace;
 
 
     private static void initStaticMembers(Context context) {
@@ -163,6 +185,16 @@ public class DeviceSettings {
     }
 
 
+    public static String getDefaultPointerAcceleration(String operatingSystem) {
+        // The PlayStation 3 doesn't accelerate the pointer itself
+        if (operatingSystem.equals(OS_PLAYSTATION3)) {
+            return POINTER_ACCELERATION_ADAPTIVE;
+        } else {
+            return DEFAULT_POINTER_ACCELERATION;
+        }
+    }
+
+
     private DeviceSettings(String deviceId) {
         mDeviceId = deviceId;
 
@@ -185,10 +217,18 @@ public class DeviceSettings {
                 getDefaultTouchpadButtons(mOperatingSystem));
         mMouseSensitivity = preferences.getFloat(getKey(PREF_KEY_MOUSE_SENSITIVITY),
                 DEFAULT_MOUSE_SENSITIVITY);
+        mPointerAcceleration = preferences.getString(getKey(PREF_KEY_POINTER_ACCELERATION),
+                getDefaultPointerAcceleration(mOperatingSystem));
+        mMotionPredictTime = preferences.getInt(getKey(PREF_KEY_MOTION_PREDICT_TIME),
+                DEFAULT_MOTION_PREDICT_TIME);
         mScrollSensitivity = preferences.getFloat(getKey(PREF_KEY_SCROLL_SENSITIVITY),
                 DEFAULT_SCROLL_SENSITIVITY);
         mPinchZoomSensitivity = preferences.getFloat(getKey(PREF_KEY_PINCH_ZOOM_SENSITIVITY),
                 DEFAULT_PINCH_ZOOM_SENSITIVITY);
+        mMouseReportRate = preferences.getInt(getKey(PREF_KEY_MOUSE_REPORT_RATE),
+                DEFAULT_MOUSE_REPORT_RATE);
+        mMaxReportRate = preferences.getInt(getKey(PREF_KEY_MAX_REPORT_RATE),
+                DEFAULT_MAX_REPORT_RATE);
         mInvertScroll = preferences.getBoolean(getKey(PREF_KEY_INVERT_SCROLL),
                 DEFAULT_INVERT_SCROLL);
         mFlingScroll = preferences.getBoolean(getKey(PREF_KEY_FLING_SCROLL),
@@ -197,6 +237,10 @@ public class DeviceSettings {
                 DEFAULT_FORCE_SMOOTH_SCROLL);
         mStayAwake = preferences.getBoolean(getKey(PREF_KEY_STAY_AWAKE),
                 DEFAULT_STAY_AWAKE);
+        mShowLatencyOverlay = preferences.getBoolean(getKey(PREF_KEY_SHOW_LATENCY_OVERLAY),
+                DEFAULT_SHOW_LATENCY_OVERLAY);
+        mRecordTouchTrace = preferences.getBoolean(getKey(PREF_KEY_RECORD_TOUCH_TRACE),
+                DEFAULT_RECORD_TOUCH_TRACE);
     }
 
     /** Initializes the preferences for a newly paired device. */
@@ -237,12 +281,24 @@ public class DeviceSettings {
         if (mMouseSensitivity != oldSettings.mMouseSensitivity) {
             editor.putFloat(getKey(PREF_KEY_MOUSE_SENSITIVITY), mMouseSensitivity);
         }
+        if (!mPointerAcceleration.equals(oldSettings.mPointerAcceleration)) {
+            editor.putString(getKey(PREF_KEY_POINTER_ACCELERATION), mPointerAcceleration);
+        }
+        if (mMotionPredictTime != oldSettings.mMotionPredictTime) {
+            editor.putInt(getKey(PREF_KEY_MOTION_PREDICT_TIME), mMotionPredictTime);
+        }
         if (mScrollSensitivity != oldSettings.mScrollSensitivity) {
             editor.putFloat(getKey(PREF_KEY_SCROLL_SENSITIVITY), mScrollSensitivity);
         }
         if (mPinchZoomSensitivity != oldSettings.mPinchZoomSensitivity) {
             editor.putFloat(getKey(PREF_KEY_PINCH_ZOOM_SENSITIVITY), mPinchZoomSensitivity);
         }
+        if (mMouseReportRate != oldSettings.mMouseReportRate) {
+            editor.putInt(getKey(PREF_KEY_MOUSE_REPORT_RATE), mMouseReportRate);
+        }
+        if (mMaxReportRate != oldSettings.mMaxReportRate) {
+            editor.putInt(getKey(PREF_KEY_MAX_REPORT_RATE), mMaxReportRate);
+        }
         if (mInvertScroll != oldSettings.mInvertScroll) {
             editor.putBoolean(getKey(PREF_KEY_INVERT_SCROLL), mInvertScroll);
         }
@@ -255,6 +311,12 @@ public class DeviceSettings {
         if (mStayAwake != oldSettings.mStayAwake) {
             editor.putBoolean(getKey(PREF_KEY_STAY_AWAKE), mStayAwake);
         }
+        if (mShowLatencyOverlay != oldSettings.mShowLatencyOverlay) {
+            editor.putBoolean(getKey(PREF_KEY_SHOW_LATENCY_OVERLAY), mShowLatencyOverlay);
+        }
+        if (mRecordTouchTrace != oldSettings.mRecordTouchTrace) {
+            editor.putBoolean(getKey(PREF_KEY_RECORD_TOUCH_TRACE), mRecordTouchTrace);
+        }
 
         editor.commit();
     }
@@ -268,12 +330,18 @@ public class DeviceSettings {
         editor.remove(getKey(PREF_KEY_TOUCHPAD_GESTURE_MODE));
         editor.remove(getKey(PREF_KEY_TOUCHPAD_BUTTONS));
         editor.remove(getKey(PREF_KEY_MOUSE_SENSITIVITY));
+        editor.remove(getKey(PREF_KEY_POINTER_ACCELERATION));
+        editor.remove(getKey(PREF_KEY_MOTION_PREDICT_TIME));
         editor.remove(getKey(PREF_KEY_SCROLL_SENSITIVITY));
         editor.remove(getKey(PREF_KEY_PINCH_ZOOM_SENSITIVITY));
+        editor.remove(getKey(PREF_KEY_MOUSE_REPORT_RATE));
+        editor.remove(getKey(PREF_KEY_MAX_REPORT_RATE));
         editor.remove(getKey(PREF_KEY_INVERT_SCROLL));
         editor.remove(getKey(PREF_KEY_FLING_SCROLL));
         editor.remove(getKey(PREF_KEY_FORCE_SMOOTH_SCROLL));
         editor.remove(getKey(PREF_KEY_STAY_AWAKE));
+        editor.remove(getKey(PREF_KEY_SHOW_LATENCY_OVERLAY));
+        editor.remove(getKey(PREF_KEY_RECORD_TOUCH_TRACE));
 
         editor.commit();
 
@@ -336,6 +404,21 @@ public class DeviceSettings {
         mMouseSensitivity = value;
     }
 
+    public String getPointerAcceleration() {
+        return mPointerAcceleration;
+    }
+    public void setPointerAcceleration(String value) {
+        mPointerAcceleration = value;
+    }
+
+    /** Gets the time in ms the pointer movement is predicted ahead (0 if disabled). */
+    public int getMotionPredictTime() {
+        return mMotionPredictTime;
+    }
+    public void setMotionPredictTime(int value) {
+        mMotionPredictTime = value;
+    }
+
     public float getScrollSensitivity() {
         return mScrollSensitivity;
     }
@@ -350,6 +433,22 @@ public class DeviceSettings {
         mPinchZoomSensitivity = value;
     }
 
+    /** Gets the maximum number of Mouse Reports per second (0 if unlimited). */
+    public int getMouseReportRate() {
+        return mMouseReportRate;
+    }
+    public void setMouseReportRate(int value) {
+        mMouseReportRate = value;
+    }
+
+    /** Gets the maximum number of HID Reports the daemon sends per second (0 if unlimited). */
+    public int getMaxReportRate() {
+        return mMaxReportRate;
+    }
+    public void setMaxReportRate(int value) {
+        mMaxReportRate = value;
+    }
+
     public boolean getInvertScroll() {
         return mInvertScroll;
     }
@@ -377,4 +476,20 @@ public class DeviceSettings {
     public void setStayAwake(boolean value) {
         mStayAwake = value;
     }
+
+    /** Gets whether the touchpad shows the input latency statistics (debug feature). */
+    public boolean getShowLatencyOverlay() {
+        return mShowLatencyOverlay;
+    }
+    public void setShowLatencyOverlay(boolean value) {
+        mShowLatencyOverlay = value;
+    }
+
+    /** Gets whether the touch events are recorded to a trace file (debug feature). */
+    public boolean getRecordTouchTrace() {
+        return mRecordTouchTrace;
+    }
+    public void setRecordTouchTrace(boolean value) {
+        mRecordTouchTrace = value;
+    }
 }
@@ -21,7 +21,7 @@ import org.ronsdev.bluectrl.daemon.DaemonService;
 import android.content.Context;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Virtual Keyboard that sends HID Keyboard Reports to the application daemon.
@@ -241,10 +241,14 @@ public class HidKeyboard {
     public static final int AC_KEY_FORWARD = 0x04;
 
 
+    /** The size of a Keyboard Report. */
+    private static final int REPORT_SIZE = 8;
+
+
     private DaemonService mDaemon;
 
     private String mKeyMap = "";
-    private CharKeyReportMap mCharKeyMap = null;
+    private volatile CharKeyReportMap mCharKeyMap = null;
 
     private int mPressedModifier = 0;
     private int mPressedSystemKeys = 0;
@@ -253,18 +257,37 @@ public class HidKeyboard {
     private int mPressedAppCtrlKeys = 0;
     private IntArrayList mPressedKeys = new IntArrayList(6);
 
+    /** The current Keyboard Report (modifier, reserved byte and 6 key codes). */
+    private final byte[] mReport = new byte[REPORT_SIZE];
+
+    private volatile boolean mTypingKeyOverlap = true;
+
+    /*
+     * The compiled Keyboard Reports of the text that is currently typed. Only used while the
+     * HidKeyboard is locked.
+     */
+    private byte[] mTypeReports = new byte[REPORT_SIZE * 64];
+    private int mTypeReportCount = 0;
+
 
     public HidKeyboard(DaemonService daemon) {
         mDaemon = daemon;
     }
 
 
-    private int[] getPressedKeysArray() {
-        int result[] = new int[mPressedKeys.size()];
-        for (int i=0; i < mPressedKeys.size(); i++) {
-            result[i] = mPressedKeys.getValue(i);
+    /** Updates the key codes in the Keyboard Report after the pressed keys have changed. */
+    private void updateReportKeys() {
+        final int keyCount = mPressedKeys.size();
+        if (keyCount > 6) {
+            // ErrorRollOver
+            for (int i = 0; i < 6; i++) {
+                mReport[2 + i] = 1;
+            }
+        } else {
+            for (int i = 0; i < 6; i++) {
+                mReport[2 + i] = (byte)((i < keyCount) ? mPressedKeys.getValue(i) : 0);
+            }
         }
-        return result;
     }
 
     public boolean isConnected() {
@@ -281,53 +304,75 @@ public class HidKeyboard {
             mCharKeyMap = null;
         } else if (!keyMap.equals(mKeyMap)) {
             mKeyMap = keyMap;
-            mCharKeyMap = new CharKeyReportMap(keyMap, context.getAssets());
+            mCharKeyMap = CharKeyReportMap.get(context, keyMap);
         }
     }
 
-    public void pressModifierKey(int hidModifier) {
+    /** Sets an already compiled map without a Context. Used by the off-device benchmarks. */
+    void setCharKeyMap(String keyMap, CharKeyReportMap charKeyMap) {
+        mKeyMap = keyMap;
+        mCharKeyMap = charKeyMap;
+    }
+
+    public boolean getTypingKeyOverlap() {
+        return mTypingKeyOverlap;
+    }
+    /**
+     * Sets whether typeText() may release a key and press the next key with the same Keyboard
+     * Report. This almost halves the number of Keyboard Reports but might not be supported by
+     * every host.
+     */
+    public void setTypingKeyOverlap(boolean value) {
+        mTypingKeyOverlap = value;
+    }
+
+    public synchronized void pressModifierKey(int hidModifier) {
         final int newModifier = mPressedModifier | hidModifier;
         if (mPressedModifier != newModifier) {
             mPressedModifier = newModifier;
+            mReport[0] = (byte)mPressedModifier;
 
-            mDaemon.sendKeyboardReport(mPressedModifier, getPressedKeysArray());
+            mDaemon.sendKeyboardReport(mReport);
 
             if (V) Log.v(TAG, String.format("modifier key pressed (0x%h)", hidModifier));
         }
     }
 
-    public void releaseModifierKey(int hidModifier) {
+    public synchronized void releaseModifierKey(int hidModifier) {
         final int newModifier = mPressedModifier & ~hidModifier;
         if (mPressedModifier != newModifier) {
             mPressedModifier = newModifier;
+            mReport[0] = (byte)mPressedModifier;
 
-            mDaemon.sendKeyboardReport(mPressedModifier, getPressedKeysArray());
+            mDaemon.sendKeyboardReport(mReport);
 
             if (V) Log.v(TAG, String.format("modifier key released (0x%h)", hidModifier));
         }
     }
 
-    public void pressKey(int hidKeyCode) {
+    public synchronized void pressKey(int hidKeyCode) {
         if (!mPressedKeys.containsValue(hidKeyCode)) {
             mPressedKeys.addValue(hidKeyCode);
+            updateReportKeys();
 
-            mDaemon.sendKeyboardReport(mPressedModifier, getPressedKeysArray());
+            mDaemon.sendKeyboardReport(mReport);
 
             if (V) Log.v(TAG, String.format("key pressed (%d)", hidKeyCode));
         }
     }
 
-    public void releaseKey(int hidKeyCode) {
+    public synchronized void releaseKey(int hidKeyCode) {
         if (mPressedKeys.containsValue(hidKeyCode)) {
             mPressedKeys.removeValue(hidKeyCode);
+            updateReportKeys();
 
-            mDaemon.sendKeyboardReport(mPressedModifier, getPressedKeysArray());
+            mDaemon.sendKeyboardReport(mReport);
 
             if (V) Log.v(TAG, String.format("key released (%d)", hidKeyCode));
         }
     }
 
-    public void pressSystemKey(int key) {
+    public synchronized void pressSystemKey(int key) {
         final int newKeys = mPressedSystemKeys | key;
         if (mPressedSystemKeys != newKeys) {
             mPressedSystemKeys = newKeys;
@@ -338,7 +383,7 @@ public class HidKeyboard {
         }
     }
 
-    public void releaseSystemKey(int key) {
+    public synchronized void releaseSystemKey(int key) {
         final int newKeys = mPressedSystemKeys & ~key;
         if (mPressedSystemKeys != newKeys) {
             mPressedSystemKeys = newKeys;
@@ -349,7 +394,7 @@ public class HidKeyboard {
         }
     }
 
-    public void pressHardwareKey(int key) {
+    public synchronized void pressHardwareKey(int key) {
         final int newKeys = mPressedHardwareKeys | key;
         if (mPressedHardwareKeys != newKeys) {
             mPressedHardwareKeys = newKeys;
@@ -360,7 +405,7 @@ public class HidKeyboard {
         }
     }
 
-    public void releaseHardwareKey(int key) {
+    public synchronized void releaseHardwareKey(int key) {
         final int newKeys = mPressedHardwareKeys & ~key;
         if (mPressedHardwareKeys != newKeys) {
             mPressedHardwareKeys = newKeys;
@@ -371,7 +416,7 @@ public class HidKeyboard {
         }
     }
 
-    public void pressMediaKey(int key) {
+    public synchronized void pressMediaKey(int key) {
         final int newKeys = mPressedMediaKeys | key;
         if (mPressedMediaKeys != newKeys) {
             mPressedMediaKeys = newKeys;
@@ -382,7 +427,7 @@ public class HidKeyboard {
         }
     }
 
-    public void releaseMediaKey(int key) {
+    public synchronized void releaseMediaKey(int key) {
         final int newKeys = mPressedMediaKeys & ~key;
         if (mPressedMediaKeys != newKeys) {
             mPressedMediaKeys = newKeys;
@@ -393,7 +438,7 @@ public class HidKeyboard {
         }
     }
 
-    public void pressAppCtrlKey(int key) {
+    public synchronized void pressAppCtrlKey(int key) {
         final int newKeys = mPressedAppCtrlKeys | key;
         if (mPressedAppCtrlKeys != newKeys) {
             mPressedAppCtrlKeys = newKeys;
@@ -404,7 +449,7 @@ public class HidKeyboard {
         }
     }
 
-    public void releaseAppCtrlKey(int key) {
+    public synchronized void releaseAppCtrlKey(int key) {
         final int newKeys = mPressedAppCtrlKeys & ~key;
         if (mPressedAppCtrlKeys != newKeys) {
             mPressedAppCtrlKeys = newKeys;
@@ -424,19 +469,19 @@ public class HidKeyboard {
      * @return
      * Returns {@code false} if the character cannot be mapped to a key.
      */
-    public boolean pressCharKey(char key) {
+    public synchronized boolean pressCharKey(char key) {
         if (mCharKeyMap == null) {
             return false;
         }
 
-        CharKeyReportMap.KeyReportSequence keyReportSequence = mCharKeyMap.get(key);
-        if ((keyReportSequence != null) && (keyReportSequence.size() == 1)) {
-            final int hidModifier = keyReportSequence.get(0).getModifier();
+        final int sequenceIndex = mCharKeyMap.indexOf(key);
+        if ((sequenceIndex > -1) && (mCharKeyMap.getReportCount(sequenceIndex) == 1)) {
+            final int hidModifier = mCharKeyMap.getModifier(sequenceIndex, 0);
             if (hidModifier != 0) {
                 pressModifierKey(hidModifier);
             }
 
-            final int hidKeyCode = keyReportSequence.get(0).getKeyCode();
+            final int hidKeyCode = mCharKeyMap.getKeyCode(sequenceIndex, 0);
             if (hidKeyCode != 0) {
                 pressKey(hidKeyCode);
             }
@@ -456,19 +501,19 @@ public class HidKeyboard {
      * @return
      * Returns {@code false} if the character cannot be mapped to a key.
      */
-    public boolean releaseCharKey(char key) {
+    public synchronized boolean releaseCharKey(char key) {
         if (mCharKeyMap == null) {
             return false;
         }
 
-        CharKeyReportMap.KeyReportSequence keyReportSequence = mCharKeyMap.get(key);
-        if ((keyReportSequence != null) && (keyReportSequence.size() == 1)) {
-            final int hidKeyCode = keyReportSequence.get(0).getKeyCode();
+        final int sequenceIndex = mCharKeyMap.indexOf(key);
+        if ((sequenceIndex > -1) && (mCharKeyMap.getReportCount(sequenceIndex) == 1)) {
+            final int hidKeyCode = mCharKeyMap.getKeyCode(sequenceIndex, 0);
             if (hidKeyCode != 0) {
                 releaseKey(hidKeyCode);
             }
 
-            final int hidModifier = keyReportSequence.get(0).getModifier();
+            final int hidModifier = mCharKeyMap.getModifier(sequenceIndex, 0);
             if (hidModifier != 0) {
                 releaseModifierKey(hidModifier);
             }
@@ -479,57 +524,144 @@ public class HidKeyboard {
         return false;
     }
 
-    /** Types a complete text. */
-    public void typeText(String text) {
-        if (mCharKeyMap == null) {
-            Log.w(TAG, "Keymap not set");
-            return;
+    /**
+     * Adds a Keyboard Report to the compiled text. The report contains the currently pressed
+     * keys and the specified key code.
+     */
+    private void addTypeReport(int modifier, int keyCode) {
+        final int offset = mTypeReportCount * REPORT_SIZE;
+        if (offset + REPORT_SIZE > mTypeReports.length) {
+            mTypeReports = Arrays.copyOf(mTypeReports, mTypeReports.length * 2);
         }
 
-        ArrayList<CharKeyReportMap.KeyReport> reportList = convertToKeyReports(text);
-
-        if (reportList.size() < 1) {
-            return;
+        System.arraycopy(mReport, 0, mTypeReports, offset, REPORT_SIZE);
+        mTypeReports[offset] = (byte)modifier;
+        if (keyCode != 0) {
+            mTypeReports[offset + 2 + mPressedKeys.size()] = (byte)keyCode;
         }
 
-        int index = 0;
-        CharKeyReportMap.KeyReport keyReport;
-        CharKeyReportMap.KeyReport nextKeyReport = reportList.get(index);
-        while (nextKeyReport != null) {
-            keyReport = nextKeyReport;
-            index++;
-            nextKeyReport = (index < reportList.size()) ? reportList.get(index) : null;
-
-            final int modifier = keyReport.getModifier();
-            final int keyCode = keyReport.getKeyCode();
-
-            pressModifierKey(modifier);
-            pressKey(keyCode);
-            releaseKey(keyCode);
-
-            // If the next Modifier value equals the current value then don't reset the Modifier.
-            // This saves two unnecessary HID Keyboard Reports.
-            if ((nextKeyReport == null) || (nextKeyReport.getModifier() != modifier)) {
-                releaseModifierKey(modifier);
-            }
-        }
+        mTypeReportCount++;
     }
 
-    /** Converts a text to a list of Keyboard Reports. */
-    private ArrayList<CharKeyReportMap.KeyReport> convertToKeyReports(String text) {
-        ArrayList<CharKeyReportMap.KeyReport> result = new ArrayList<CharKeyReportMap.KeyReport>();
+    /**
+     * Compiles a text into a minimal stream of Keyboard Reports. The text may be typed from
+     * several threads, so the reports are compiled under the lock into a copy that is owned by
+     * the caller.
+     *
+     * @return the Keyboard Reports or null if the text can't be typed.
+     */
+    synchronized byte[] compileText(String text) {
+        mTypeReportCount = 0;
+
+        if (mCharKeyMap == null) {
+            Log.w(TAG, "Keymap not set");
+            return null;
+        }
+        if (mPressedKeys.size() > 5) {
+            Log.w(TAG, "too many pressed keys to type a text");
+            return null;
+        }
+
+        int curModifier = mPressedModifier;
+        int curKeyCode = 0;
 
         for (int i = 0; i < text.length(); i++) {
             final char character = text.charAt(i);
 
-            CharKeyReportMap.KeyReportSequence keyReportSequence = mCharKeyMap.get(character);
-            if (keyReportSequence != null) {
-                result.addAll(keyReportSequence);
-            } else {
+            final int sequenceIndex = mCharKeyMap.indexOf(character);
+            if (sequenceIndex < 0) {
                 Log.w(TAG, String.format("unknown Keymap character '%c'", character));
+                continue;
+            }
+
+            final int reportCount = mCharKeyMap.getReportCount(sequenceIndex);
+            for (int j = 0; j < reportCount; j++) {
+                final int modifier = mPressedModifier | mCharKeyMap.getModifier(sequenceIndex, j);
+                final int keyCode = mCharKeyMap.getKeyCode(sequenceIndex, j);
+
+                if (modifier != curModifier) {
+                    // Release the previous key together with the modifier change. The modifier
+                    // is never changed in the same report that presses a key because the host
+                    // might evaluate the key first.
+                    addTypeReport(modifier, 0);
+                    curModifier = modifier;
+                    curKeyCode = 0;
+                } else if ((curKeyCode != 0) &&
+                        (!mTypingKeyOverlap || (keyCode == curKeyCode))) {
+                    addTypeReport(curModifier, 0);
+                    curKeyCode = 0;
+                }
+
+                // With key overlap the previous key is released by the same report
+                if (keyCode != 0) {
+                    addTypeReport(curModifier, keyCode);
+                    curKeyCode = keyCode;
+                }
             }
         }
 
-        return result;
+        if ((curKeyCode != 0) || (curModifier != mPressedModifier)) {
+            addTypeReport(mPressedModifier, 0);
+        }
+
+        return Arrays.copyOf(mTypeReports, mTypeReportCount * REPORT_SIZE);
+    }
+
+    /**
+     * Types a complete text. The text is compiled into a minimal stream of Keyboard Reports
+     * which is sent to the host with a single batch.
+     */
+    public void typeText(String text) {
+        final byte[] reports = compileText(text);
+        if (reports == null) {
+            return;
+        }
+
+        final int reportCount = reports.length / REPORT_SIZE;
+        if (reportCount > 0) {
+            mDaemon.sendKeyboardReports(reports, reportCount);
+        }
+
+        if (V) Log.v(TAG, String.format("text typed (%d characters, %d reports)",
+                text.length(), reportCount));
+    }
+
+    /**
+     * Queues a text in the daemon which types it at its own pace. Blocks until the daemon has
+     * enough free space for the Keyboard Reports of the text.
+     *
+     * @return a value that is compared with the result of waitForQueuedText() to find out if
+     *         the text was typed or -1 if the text couldn't be queued.
+     */
+    public long queueText(String text) throws InterruptedException {
+        final byte[] reports = compileText(text);
+        if (reports == null) {
+            return -1;
+        }
+
+        final int reportCount = reports.length / REPORT_SIZE;
+
+        if (V) Log.v(TAG, String.format("text queued (%d characters, %d reports)",
+                text.length(), reportCount));
+
+        // Sent without the lock because it blocks until the daemon has enough free space
+        return mDaemon.sendKeySequence(reports, reportCount, 0);
+    }
+
+    /**
+     * Waits until the daemon has typed more of the queued texts.
+     *
+     * @param progress the last result of this method or 0 to wait for the first progress.
+     * @return the current progress. The text of a queueText() call is completely typed if the
+     *         progress is equal to or greater than the result of that call. The progress
+     *         doesn't change anymore if the HID connection is lost.
+     */
+    public long waitForQueuedText(long progress) throws InterruptedException {
+        return mDaemon.waitForKeySequenceProgress(progress);
+    }
+
+    /** Discards all queued texts that weren't typed yet. */
+    public void cancelQueuedText() {
+        mDaemon.cancelKeySequence();
     }
 }
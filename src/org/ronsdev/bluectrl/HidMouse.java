@@ -18,6 +18,10 @@ package org.ronsdev.bluectrl;
 
 import org.ronsdev.bluectrl.daemon.DaemonService;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -62,16 +66,91 @@ public class HidMouse {
     public static final int MAX_ABSOLUTE_VALUE_Y = 2047;
 
 
+    /** Disables the coalescing of relative pointer movements and scroll wheel changes. */
+    public static final int REPORT_RATE_UNLIMITED = 0;
+
+
+    /** The maximum relative pointer movement of a single Mouse Report. */
+    private static final int MAX_MOVE_VALUE = 2047;
+
+    /** The maximum scroll wheel change of a single Mouse Report. */
+    private static final int MAX_SCROLL_VALUE = 127;
+
+    /** The time in milliseconds a Mouse button is held down for a single click. */
+    private static final int CLICK_DURATION = 50;
+
+    /*
+     * Handler message types for the scheduled parts of a Mouse button click.
+     */
+    private static final int MSG_CLICK_PRESS = 10;
+    private static final int MSG_CLICK_RELEASE = 20;
+
+
     private DaemonService mDaemon;
 
     private int mPressedButtons = 0;
 
+    /** Mouse buttons that are temporarily held down by a scheduled click. */
+    private int mClickedButtons = 0;
+
+    /** The time when the last scheduled click is completed. */
+    private long mClickEndTime = 0;
+
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        public boolean handleMessage(Message msg) {
+            synchronized (HidMouse.this) {
+                switch (msg.what) {
+                case MSG_CLICK_PRESS:
+                    changeClickedButtons(mClickedButtons | msg.arg1);
+                    return true;
+                case MSG_CLICK_RELEASE:
+                    changeClickedButtons(mClickedButtons & ~msg.arg1);
+                    return true;
+                default:
+                    return false;
+                }
+            }
+        }
+    };
+    private final Handler mHandler;
+    private int mReportInterval = 0;
+    private long mLastReportTime = 0;
+    private boolean mIsFlushScheduled = false;
+    private int mPendingX = 0;
+    private int mPendingY = 0;
+    private int mPendingScrollY = 0;
+    private int mPendingScrollX = 0;
+
+    /** The time of the touch event that is currently processed or 0 if there is none. */
+    private long mInputEventTime = 0;
+
+    /** The time of the oldest touch event that contributed to the pending motion. */
+    private long mPendingEventTime = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            synchronized (HidMouse.this) {
+                mIsFlushScheduled = false;
+                flushPendingMotion();
+            }
+        }
+    };
+
 
     private OnMouseButtonClickListener mOnMouseButtonClickListener;
 
 
     public HidMouse(DaemonService daemon) {
+        this(daemon, Looper.myLooper());
+    }
+
+    /**
+     * Creates a Mouse whose scheduled reports are sent on the thread of the given Looper.
+     * The Mouse can be used from multiple threads.
+     */
+    public HidMouse(DaemonService daemon, Looper looper) {
         mDaemon = daemon;
+        mHandler = new Handler(looper, mHandlerCallback);
     }
 
 
@@ -90,20 +169,169 @@ public class HidMouse {
                 (mDaemon.getHidState() == DaemonService.HID_STATE_CONNECTED));
     }
 
-    public int getPressedButtons() {
+    /**
+     * Starts collecting all following Mouse Reports until endReportBatch() is called so that
+     * they can be sent to the daemon at once.
+     */
+    public void beginReportBatch() {
+        mDaemon.beginReportBatch();
+    }
+
+    /** Sends all Mouse Reports that were collected since beginReportBatch() was called. */
+    public void endReportBatch() {
+        mDaemon.endReportBatch();
+    }
+
+    /** Gets the maximum number of Mouse Reports per second or REPORT_RATE_UNLIMITED. */
+    public synchronized int getMaxReportRate() {
+        return (mReportInterval > 0) ? (1000 / mReportInterval) : REPORT_RATE_UNLIMITED;
+    }
+
+    /**
+     * Sets the maximum number of Mouse Reports per second. Relative pointer movements and scroll
+     * wheel changes that exceed the report rate are accumulated and sent with the next report.
+     */
+    public synchronized void setMaxReportRate(int reportsPerSecond) {
+        if (reportsPerSecond > 0) {
+            mReportInterval = Math.max(1, 1000 / reportsPerSecond);
+        } else {
+            mReportInterval = 0;
+            flushAllPendingMotion();
+        }
+    }
+
+    /**
+     * Sets the time of the touch event that causes the following Mouse Reports so that their
+     * latency can be traced by the daemon service. Set to 0 after the event was processed.
+     */
+    public synchronized void setInputEventTime(long eventTime) {
+        mInputEventTime = eventTime;
+    }
+
+    private static int limitIntValue(int value, int limit) {
+        return Math.max(-limit, Math.min(value, limit));
+    }
+
+    private boolean hasPendingMotion() {
+        return ((mPendingX != 0) || (mPendingY != 0) ||
+                (mPendingScrollY != 0) || (mPendingScrollX != 0));
+    }
+
+    private void cancelScheduledFlush() {
+        if (mIsFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mIsFlushScheduled = false;
+        }
+    }
+
+    /**
+     * Sends a single Mouse Report with the accumulated pointer movements and scroll wheel
+     * changes. Values that don't fit into the report stay pending so that no motion gets lost.
+     */
+    private void sendPendingMotion() {
+        final int x = limitIntValue(mPendingX, MAX_MOVE_VALUE);
+        final int y = limitIntValue(mPendingY, MAX_MOVE_VALUE);
+        final int scrollY = limitIntValue(mPendingScrollY, MAX_SCROLL_VALUE);
+        final int scrollX = limitIntValue(mPendingScrollX, MAX_SCROLL_VALUE);
+
+        mDaemon.sendMouseReport(getReportButtons(), x, y, scrollY, scrollX, mPendingEventTime);
+
+        mPendingX -= x;
+        mPendingY -= y;
+        mPendingScrollY -= scrollY;
+        mPendingScrollX -= scrollX;
+
+        mLastReportTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Sends the accumulated motion within the report rate. If the motion doesn't fit into a
+     * single Mouse Report, the rest is sent after the next report interval.
+     */
+    private void flushPendingMotion() {
+        if (mReportInterval < 1) {
+            flushAllPendingMotion();
+            return;
+        }
+
+        cancelScheduledFlush();
+
+        if (hasPendingMotion()) {
+            sendPendingMotion();
+        }
+        if (hasPendingMotion()) {
+            mIsFlushScheduled = true;
+            mHandler.postAtTime(mFlushRunnable, mLastReportTime + mReportInterval);
+        }
+    }
+
+    /**
+     * Sends all accumulated motion immediately, split into as many Mouse Reports as needed.
+     * Used before a button state change because motion must not be merged across it.
+     */
+    private void flushAllPendingMotion() {
+        cancelScheduledFlush();
+
+        while (hasPendingMotion()) {
+            sendPendingMotion();
+        }
+    }
+
+    private void addMotion(int x, int y, int scrollY, int scrollX) {
+        if (!hasPendingMotion()) {
+            mPendingEventTime = mInputEventTime;
+        }
+
+        mPendingX += x;
+        mPendingY += y;
+        mPendingScrollY += scrollY;
+        mPendingScrollX += scrollX;
+
+        if (mReportInterval < 1) {
+            flushPendingMotion();
+        } else if (!mIsFlushScheduled) {
+            final long nextReportTime = mLastReportTime + mReportInterval;
+            if (SystemClock.uptimeMillis() >= nextReportTime) {
+                flushPendingMotion();
+            } else {
+                mIsFlushScheduled = true;
+                mHandler.postAtTime(mFlushRunnable, nextReportTime);
+            }
+        }
+    }
+
+    /** Gets the Mouse buttons that are currently held down including clicked buttons. */
+    private int getReportButtons() {
+        return (mPressedButtons | mClickedButtons);
+    }
+
+    private void changeClickedButtons(int clickedButtons) {
+        if (clickedButtons != mClickedButtons) {
+            flushAllPendingMotion();
+
+            mClickedButtons = clickedButtons;
+
+            mDaemon.sendMouseReport(getReportButtons(), 0, 0, 0, 0, mInputEventTime);
+        }
+    }
+
+    public synchronized int getPressedButtons() {
         return mPressedButtons;
     }
 
-    public boolean isButtonPressed(int button) {
+    public synchronized boolean isButtonPressed(int button) {
         return ((button & mPressedButtons) > 0);
     }
 
-    public void pressButton(int button) {
+    public synchronized void pressButton(int button) {
         final int newButtons = mPressedButtons | button;
         if (mPressedButtons != newButtons) {
+            // Motion must not be merged across button state changes
+            flushAllPendingMotion();
+
             mPressedButtons = newButtons;
 
-            mDaemon.sendMouseReport(mPressedButtons, 0, 0, 0, 0);
+            mDaemon.sendMouseReport(getReportButtons(), 0, 0, 0, 0, mInputEventTime);
 
             onMouseButtonClick(CLICK_TYPE_DOWN, button);
 
@@ -111,12 +339,14 @@ public class HidMouse {
         }
     }
 
-    public void releaseButton(int button) {
+    public synchronized void releaseButton(int button) {
         final int newButtons = mPressedButtons & ~button;
         if (mPressedButtons != newButtons) {
+            flushAllPendingMotion();
+
             mPressedButtons = newButtons;
 
-            mDaemon.sendMouseReport(mPressedButtons, 0, 0, 0, 0);
+            mDaemon.sendMouseReport(getReportButtons(), 0, 0, 0, 0, mInputEventTime);
 
             onMouseButtonClick(CLICK_TYPE_UP, button);
 
@@ -124,16 +354,26 @@ public class HidMouse {
         }
     }
 
-    public void clickButton(int button) {
+    /**
+     * Clicks a Mouse button without blocking the calling thread. The button is pressed
+     * immediately and released after the click duration. If a previous click isn't completed
+     * yet the new click is scheduled right after it (for example for double clicks).
+     */
+    public synchronized void clickButton(int button) {
         final int newButtons = mPressedButtons | button;
         if (mPressedButtons != newButtons) {
-            mDaemon.sendMouseReport(newButtons, 0, 0, 0, 0);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                // Ignore non critical InterruptedException
+            final long now = SystemClock.uptimeMillis();
+            final long pressTime = Math.max(now, mClickEndTime);
+            mClickEndTime = pressTime + CLICK_DURATION;
+
+            if (pressTime > now) {
+                mHandler.sendMessageAtTime(
+                        mHandler.obtainMessage(MSG_CLICK_PRESS, button, 0), pressTime);
+            } else {
+                changeClickedButtons(mClickedButtons | button);
             }
-            mDaemon.sendMouseReport(mPressedButtons, 0, 0, 0, 0);
+            mHandler.sendMessageAtTime(
+                    mHandler.obtainMessage(MSG_CLICK_RELEASE, button, 0), mClickEndTime);
 
             onMouseButtonClick(CLICK_TYPE_CLICK, button);
 
@@ -141,12 +381,14 @@ public class HidMouse {
         }
     }
 
-    public void movePointer(int x, int y) {
-        mDaemon.sendMouseReport(mPressedButtons, x, y, 0, 0);
+    public synchronized void movePointer(int x, int y) {
+        addMotion(x, y, 0, 0);
     }
 
-    public void movePointerAbsolute(int x, int y) {
-        mDaemon.sendMouseAbsoluteReport(mPressedButtons, x, y);
+    public synchronized void movePointerAbsolute(int x, int y) {
+        flushAllPendingMotion();
+
+        mDaemon.sendMouseAbsoluteReport(getReportButtons(), x, y);
     }
 
     public boolean isSmoothScrollYOn() {
@@ -157,7 +399,7 @@ public class HidMouse {
         return mDaemon.isSmoothScrollXOn();
     }
 
-    public void scrollWheel(int y, int x) {
-        mDaemon.sendMouseReport(mPressedButtons, 0, 0, y, x);
+    public synchronized void scrollWheel(int y, int x) {
+        addMotion(0, 0, y, x);
     }
 }
@@ -16,47 +16,102 @@
 
 package org.ronsdev.bluectrl;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 
 /**
- * Simple ArrayList for Integer values.
+ * Simple list for primitive int values that avoids the boxing of an ArrayList<Integer>.
  */
-public class IntArrayList extends ArrayList<Integer> {
+public class IntArrayList {
 
-    private static final long serialVersionUID = 7717710388705440454L;
+    private static final int DEFAULT_CAPACITY = 10;
+
+
+    private int[] mValues;
+    private int mSize = 0;
 
 
     public IntArrayList() {
-        super();
+        this(DEFAULT_CAPACITY);
     }
 
-    public IntArrayList(Collection<? extends Integer> collection) {
-        super(collection);
+    public IntArrayList(int capacity) {
+        mValues = new int[Math.max(capacity, 1)];
     }
 
-    public IntArrayList(int capacity) {
-        super(capacity);
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(capacity, mValues.length * 2));
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return (mSize == 0);
     }
 
+    public void clear() {
+        mSize = 0;
+    }
 
     public int getValue(int index) {
-        return (int)get(index);
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mValues[index];
     }
 
     public int indexOfValue(int value) {
-        return indexOf((Integer)value);
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] == value) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public boolean containsValue(int value) {
-        return contains((Integer)value);
+        return (indexOfValue(value) > -1);
     }
 
     public boolean addValue(int value) {
-        return add((Integer)value);
+        ensureCapacity(mSize + 1);
+        mValues[mSize++] = value;
+        return true;
+    }
+
+    /** Removes the value at the given index and returns it. */
+    public int remove(int index) {
+        final int value = getValue(index);
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        return value;
     }
 
     public boolean removeValue(int value) {
-        return remove((Integer)value);
+        final int index = indexOfValue(value);
+        if (index > -1) {
+            remove(index);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Copies all values into the given array.
+     *
+     * @return the number of copied values.
+     */
+    public int copyTo(int[] array, int offset) {
+        System.arraycopy(mValues, 0, array, offset, mSize);
+        return mSize;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
     }
 }
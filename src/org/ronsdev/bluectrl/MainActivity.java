@@ -169,6 +169,9 @@ public class MainActivity extends DaemonListActivity
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+        case R.id.menu_app_preferences:
+            AppPreferenceActivity.startActivity(this);
+            return true;
         case R.id.menu_about:
             showDialog(DIALOG_ABOUT);
             return true;
@@ -22,6 +22,9 @@ import org.ronsdev.bluectrl.widget.ComposeTextLayout;
 import org.ronsdev.bluectrl.widget.KeyboardInputView;
 import org.ronsdev.bluectrl.widget.OnKeyboardComposingTextListener;
 import org.ronsdev.bluectrl.widget.OnSendComposeTextListener;
+import org.ronsdev.bluectrl.widget.TouchProcessingThread;
+import org.ronsdev.bluectrl.widget.TouchTraceRecorder;
+import org.ronsdev.bluectrl.widget.TouchTraceReplayer;
 import org.ronsdev.bluectrl.widget.TouchpadView;
 
 import android.app.Activity;
@@ -56,8 +59,15 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ViewFlipper;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
 /**
  * This Activity is a Touchpad for the Mouse input and also allows Keyboard input.
  */
@@ -89,7 +99,14 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
     private static final int DIM_SCREEN_ON_IDLE_TIMEOUT = 30 * 1000;
 
     private static final int SEND_TEXT_PROGRESS_MIN_SIZE = 300;
-    private static final int SEND_TEXT_CHUNK_SIZE = 30;
+    private static final int SEND_TEXT_CHUNK_SIZE = 256;
+    private static final int SEND_TEXT_MAX_QUEUED_CHUNKS = 4;
+
+    /** File name of the touch event trace (debug feature). */
+    private static final String TOUCH_TRACE_FILE_NAME = "touch_trace.bin";
+
+    /** File name of the HID action log of the last touch trace replay (debug feature). */
+    private static final String TOUCH_TRACE_REPLAY_LOG_FILE_NAME = "touch_trace_replay.txt";
 
 
     private static final String SAVED_STATE_IS_AUTO_CONNECT = "IsAutoConnect";
@@ -113,6 +130,7 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
     private TextView mInfoReconnect;
     private View mViewConnecting;
     private ProgressDialog mSendTextProgressDlg;
+    private TouchTraceReplayer mTouchTraceReplayer = null;
 
     private int mTouchpadAreaIconButtonPadding;
 
@@ -207,24 +225,63 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
             mText = text;
         }
 
+        private void updateProgress(final int progress) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mSendTextProgressDlg.setProgress(progress);
+                }
+            });
+        }
+
         public void run() {
+            // The text is queued in chunks and typed by the daemon. The queue result of each
+            // chunk is kept to find out when the chunk was typed.
+            final int chunkCount = (mText.length() + SEND_TEXT_CHUNK_SIZE - 1) /
+                    SEND_TEXT_CHUNK_SIZE;
+            final long[] chunkQueueResults = new long[chunkCount];
+            final int[] chunkEndPositions = new int[chunkCount];
+            int queuedChunks = 0;
+            int typedChunks = 0;
             int position = 0;
-            while ((position < mText.length()) && !interrupted() && mHidKeyboard.isConnected()) {
-                int endPosition = position + SEND_TEXT_CHUNK_SIZE;
-                if (endPosition > mText.length()) {
-                    endPosition = mText.length();
-                }
-                CharSequence chunk = mText.subSequence(position, endPosition);
-                mHidKeyboard.typeText(chunk.toString());
-                position = endPosition;
-
-                final int progress = position;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mSendTextProgressDlg.setProgress(progress);
+            long typeProgress = 0;
+
+            try {
+                while (mHidKeyboard.isConnected()) {
+                    if (interrupted()) {
+                        throw new InterruptedException();
+                    }
+
+                    if ((position < mText.length()) &&
+                            (queuedChunks - typedChunks < SEND_TEXT_MAX_QUEUED_CHUNKS)) {
+                        int endPosition = position + SEND_TEXT_CHUNK_SIZE;
+                        if (endPosition > mText.length()) {
+                            endPosition = mText.length();
+                        }
+                        CharSequence chunk = mText.subSequence(position, endPosition);
+                        final long queueResult = mHidKeyboard.queueText(chunk.toString());
+                        if (queueResult < 0) {
+                            break;
+                        }
+                        chunkQueueResults[queuedChunks] = queueResult;
+                        chunkEndPositions[queuedChunks] = endPosition;
+                        queuedChunks++;
+                        position = endPosition;
+                    } else if (typedChunks < queuedChunks) {
+                        typeProgress = mHidKeyboard.waitForQueuedText(typeProgress);
+                        while ((typedChunks < queuedChunks) &&
+                                (typeProgress >= chunkQueueResults[typedChunks])) {
+                            typedChunks++;
+                        }
+                        if (typedChunks > 0) {
+                            updateProgress(chunkEndPositions[typedChunks - 1]);
+                        }
+                    } else {
+                        break;
                     }
-                });
+                }
+            } catch (InterruptedException e) {
+                mHidKeyboard.cancelQueuedText();
             }
 
             runOnUiThread(new Runnable() {
@@ -289,8 +346,15 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
         if (mHidKeyboard != null) {
             mHidKeyboard.setKeyMap(this, mDeviceSettings.getKeyMap());
         }
+        if (mHidMouse != null) {
+            mHidMouse.setMaxReportRate(mDeviceSettings.getMouseReportRate());
+        }
+        if (isDaemonAvailable()) {
+            getDaemon().setMaxReportRate(mDeviceSettings.getMaxReportRate());
+        }
 
         updateViewSettings();
+        startTouchTraceRecording();
 
         resetDimScreenOnIdleTimer();
     }
@@ -301,6 +365,8 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
 
         stopDimScreenOnIdleTimer();
         stopSendTextTask();
+        stopTouchTraceRecording();
+        stopTouchTraceReplay();
 
         if (!mKeepConnected && isDaemonAvailable()) {
             final DaemonService daemon = getDaemon();
@@ -350,7 +416,10 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
             mKeyboardInputView.setHidKeyboard(mHidKeyboard);
         }
 
-        mHidMouse = new HidMouse(daemon);
+        daemon.setMaxReportRate(mDeviceSettings.getMaxReportRate());
+
+        mHidMouse = new HidMouse(daemon, TouchProcessingThread.getProcessingLooper());
+        mHidMouse.setMaxReportRate(mDeviceSettings.getMouseReportRate());
         mHidMouse.setOnMouseButtonClickListener(this);
 
         if (mTouchpadView != null) {
@@ -358,6 +427,8 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
             mTouchpadView.setHidKeyboard(mHidKeyboard);
         }
 
+        updateLatencyOverlay();
+
         onHidStateChanged(daemon.getHidState(),
                 daemon.getConnectedDevice(),
                 daemon.getHidErrorCode());
@@ -484,6 +555,11 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
         MenuItem tutorialItem = menu.findItem(R.id.menu_tutorial);
         tutorialItem.setEnabled(isConnected);
 
+        MenuItem replayItem = menu.findItem(R.id.menu_replay_touch_trace);
+        replayItem.setVisible(mDeviceSettings.getRecordTouchTrace() &&
+                getTouchTraceFile().exists());
+        replayItem.setEnabled((mTouchTraceReplayer == null) || !mTouchTraceReplayer.isRunning());
+
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -505,6 +581,9 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
             mKeepConnected = true;
             TouchpadTutorialActivity.startActivity(this, mBtDevice);
             return true;
+        case R.id.menu_replay_touch_trace:
+            startTouchTraceReplay();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
@@ -742,6 +821,8 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
             mTouchpadView.setGestureMode(mDeviceSettings.getTouchpadGestureMode());
             mTouchpadView.setShowButtons(getShowTouchpadButtons());
             mTouchpadView.setMouseSensitivity(mDeviceSettings.getMouseSensitivity());
+            mTouchpadView.setPointerAcceleration(mDeviceSettings.getPointerAcceleration());
+            mTouchpadView.setMotionPredictTime(mDeviceSettings.getMotionPredictTime());
             mTouchpadView.setScrollSensitivity(mDeviceSettings.getScrollSensitivity());
             mTouchpadView.setPinchZoomSensitivity(mDeviceSettings.getPinchZoomSensitivity());
             mTouchpadView.setInvertScroll(mDeviceSettings.getInvertScroll());
@@ -777,6 +858,127 @@ public class TouchpadActivity extends DaemonActivity implements OnMouseButtonCli
                 mTouchpadView.resetTouchpadAreaPadding();
             }
         }
+
+        updateLatencyOverlay();
+    }
+
+    /** Enables the input tracing of the daemon while the latency overlay is shown. */
+    private void updateLatencyOverlay() {
+        if (!isDaemonAvailable()) {
+            return;
+        }
+
+        final DaemonService daemon = getDaemon();
+        final boolean showOverlay = mDeviceSettings.getShowLatencyOverlay();
+
+        daemon.setInputTracingEnabled(showOverlay);
+
+        if (mTouchpadView != null) {
+            mTouchpadView.setInputLatencyStats(
+                    showOverlay ? daemon.getInputLatencyStats() : null);
+        }
+    }
+
+    private File getTouchTraceDir() {
+        final File dir = getExternalFilesDir(null);
+        return (dir != null) ? dir : getFilesDir();
+    }
+
+    private File getTouchTraceFile() {
+        return new File(getTouchTraceDir(), TOUCH_TRACE_FILE_NAME);
+    }
+
+    /** Records the touch events of the touchpad to a trace file if it's enabled. */
+    private void startTouchTraceRecording() {
+        if ((mTouchpadView == null) || !mDeviceSettings.getRecordTouchTrace()) {
+            return;
+        }
+
+        stopTouchTraceRecording();
+
+        final File traceFile = getTouchTraceFile();
+
+        try {
+            mTouchpadView.setTouchTraceRecorder(
+                    new TouchTraceRecorder(new FileOutputStream(traceFile), mTouchpadView));
+            Log.i(TAG, "recording touch trace to " + traceFile.getPath());
+        } catch (IOException e) {
+            Log.e(TAG, "start touch trace recording failed", e);
+        }
+    }
+
+    private void stopTouchTraceRecording() {
+        if (mTouchpadView == null) {
+            return;
+        }
+
+        final TouchTraceRecorder recorder = mTouchpadView.getTouchTraceRecorder();
+        if (recorder != null) {
+            mTouchpadView.setTouchTraceRecorder(null);
+            recorder.close();
+        }
+    }
+
+    /**
+     * Replays the recorded touch trace as fast as possible and writes the resulting HID actions
+     * and the processing times to a log file (debug feature). The recording is stopped so that
+     * the trace isn't overwritten, it's restarted when the Activity is resumed the next time.
+     */
+    private void startTouchTraceReplay() {
+        if (mTouchpadView == null) {
+            return;
+        }
+
+        stopTouchTraceRecording();
+        stopTouchTraceReplay();
+
+        try {
+            mTouchTraceReplayer = new TouchTraceReplayer(mTouchpadView,
+                    new FileInputStream(getTouchTraceFile()));
+        } catch (IOException e) {
+            Log.e(TAG, "load touch trace failed", e);
+            return;
+        }
+
+        mTouchTraceReplayer.setMotionPredictTime(mDeviceSettings.getMotionPredictTime());
+        mTouchTraceReplayer.setOnReplayFinishedListener(
+                new TouchTraceReplayer.OnReplayFinishedListener() {
+            public void onReplayFinished(TouchTraceReplayer replayer) {
+                onTouchTraceReplayFinished(replayer);
+            }
+        });
+        mTouchTraceReplayer.start(false);
+    }
+
+    private void stopTouchTraceReplay() {
+        if (mTouchTraceReplayer != null) {
+            mTouchTraceReplayer.stop();
+            mTouchTraceReplayer = null;
+        }
+    }
+
+    private void onTouchTraceReplayFinished(TouchTraceReplayer replayer) {
+        final File logFile = new File(getTouchTraceDir(), TOUCH_TRACE_REPLAY_LOG_FILE_NAME);
+        try {
+            final FileWriter writer = new FileWriter(logFile);
+            try {
+                writer.write(replayer.getReportLog());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write touch trace replay log failed", e);
+        }
+
+        final String summary = String.format(
+                "touch trace replayed (%d events, %d reports, avg %.3f ms, max %.3f ms)",
+                replayer.getEventCount(),
+                replayer.getReportCount(),
+                replayer.getAverageProcessingTime() / 1000000.0,
+                replayer.getMaxProcessingTime() / 1000000.0);
+        Log.i(TAG, summary);
+        Log.i(TAG, "touch trace replay log written to " + logFile.getPath());
+        Toast.makeText(this, summary, Toast.LENGTH_LONG).show();
     }
 
     private boolean getShowTouchpadButtons() {
@@ -18,6 +18,7 @@ package org.ronsdev.bluectrl;
 
 import org.ronsdev.bluectrl.daemon.DaemonActivity;
 import org.ronsdev.bluectrl.daemon.DaemonService;
+import org.ronsdev.bluectrl.widget.TouchProcessingThread;
 import org.ronsdev.bluectrl.widget.TouchpadView;
 
 import android.app.Activity;
@@ -122,7 +123,7 @@ public class TouchpadTutorialActivity extends DaemonActivity
         mHidKeyboard = new HidKeyboard(daemon);
         mHidKeyboard.setKeyMap(this, mDeviceSettings.getKeyMap());
 
-        mHidMouse = new HidMouse(daemon);
+        mHidMouse = new HidMouse(daemon, TouchProcessingThread.getProcessingLooper());
         mHidMouse.setOnMouseButtonClickListener(this);
 
         if (mTouchpadView != null) {
@@ -176,6 +177,8 @@ public class TouchpadTutorialActivity extends DaemonActivity
         mTouchpadView.setShowButtons(false);
         mTouchpadView.setShowInfoGraphics(false);
         mTouchpadView.setMouseSensitivity(mDeviceSettings.getMouseSensitivity());
+        mTouchpadView.setPointerAcceleration(mDeviceSettings.getPointerAcceleration());
+        mTouchpadView.setMotionPredictTime(mDeviceSettings.getMotionPredictTime());
         mTouchpadView.setScrollSensitivity(mDeviceSettings.getScrollSensitivity());
         mTouchpadView.setPinchZoomSensitivity(mDeviceSettings.getPinchZoomSensitivity());
         mTouchpadView.setInvertScroll(mDeviceSettings.getInvertScroll());
@@ -18,6 +18,8 @@ package org.ronsdev.bluectrl.daemon;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Message;
 import android.util.Log;
 
 import java.io.DataInputStream;
@@ -27,9 +29,30 @@ import java.nio.charset.Charset;
 
 /**
  * Background Thread that listens for callback events from the application daemon.
+ *
+ * The callback events are passed to a listener in the same process first and are then also sent
+ * as broadcasts for other observers.
  */
 public class DaemonCallbackReceiver extends Thread {
 
+    /**
+     * Listener for the callback events that is called on the thread that created the receiver.
+     */
+    public interface OnCallbackListener {
+        /**
+         * Called when a callback event has been received.
+         *
+         * @param type the callback type (one of the IPC_CB_* or IPC_ECB_* values).
+         * @param btAddress the associated Bluetooth address or null.
+         * @param value the error code, the number of processed key sequence reports or the
+         *        SMOOTH_SCROLL_* flags of a mouse feature callback, depending on the type.
+         */
+        void onCallback(int type, String btAddress, int value);
+
+        /** Called when the Thread has stopped unexpectedly. */
+        void onPrematureTermination();
+    }
+
     /** Broadcast Action: Indicates that the Thread has stopped unexpectedly. */
     public static final String ACTION_PREMATURE_TERMINATION =
             "org.ronsdev.bluectrl.daemoncallbackreceiver.action.PREMATURE_TERMINATION";
@@ -65,6 +88,13 @@ public class DaemonCallbackReceiver extends Thread {
     public static final String EXTRA_SMOOTH_SCROLL_X =
             "org.ronsdev.bluectrl.daemoncallbackreceiver.extra.SMOOTH_SCROLL_X";
 
+    /**
+     * Used as an optional int extra field in ACTION_CALLBACK intents to get the number of
+     * processed key sequence reports if it was a key sequence progress callback.
+     */
+    public static final String EXTRA_PROCESSED_COUNT =
+            "org.ronsdev.bluectrl.daemoncallbackreceiver.extra.PROCESSED_COUNT";
+
     /**
      * Used as an optional int extra field in ACTION_CALLBACK intents to get the error code if it
      * was an error callback.
@@ -80,6 +110,9 @@ public class DaemonCallbackReceiver extends Thread {
     public static final int IPC_CB_HID_DISCONNECTED = 1020;
     public static final int IPC_CB_INFO_NO_SERVER = 1030;
     public static final int IPC_CB_MOUSE_FEATURE = 1050;
+    public static final int IPC_CB_KEY_SEQUENCE_PROGRESS = 1060;
+    public static final int IPC_CB_INPUT_TRACE = 1070;
+    public static final int IPC_CB_REPORT_RING_ATTACHED = 1080;
 
     /*
      * Daemon IPC error callbacks. Documented in the "hidipc.h" file.
@@ -92,18 +125,109 @@ public class DaemonCallbackReceiver extends Thread {
     public static final int IPC_ECB_REACTIVATE_OTHER_SERVICES = 2045;
     public static final int IPC_ECB_HID_CONNECT = 2090;
 
+    /** Flag in the value of a mouse feature callback for the vertical smooth scroll feature. */
+    public static final int SMOOTH_SCROLL_Y = 1;
+
+    /** Flag in the value of a mouse feature callback for the horizontal smooth scroll feature. */
+    public static final int SMOOTH_SCROLL_X = 2;
+
 
     private static final String TAG = "DaemonCallbackReceiver";
     private static final boolean V = false;
 
+    /** Handler message type for the premature termination (no callback type uses 0). */
+    private static final int MSG_PREMATURE_TERMINATION = 0;
+
 
     private Context mContext;
     private DataInputStream mInStream;
+    private InputLatencyStats mInputLatencyStats;
+    private OnCallbackListener mListener;
+    private Handler mHandler;
 
 
-    public DaemonCallbackReceiver(Context context, InputStream inputstream) {
+    /**
+     * Creates a receiver that passes the callback events to the listener. Has to be called on
+     * a thread with a Looper.
+     */
+    public DaemonCallbackReceiver(Context context, InputStream inputstream,
+            InputLatencyStats inputLatencyStats, OnCallbackListener listener) {
         mContext = context.getApplicationContext();
         mInStream = new DataInputStream(inputstream);
+        mInputLatencyStats = inputLatencyStats;
+        mListener = listener;
+
+        mHandler = new Handler(new Handler.Callback() {
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_PREMATURE_TERMINATION) {
+                    mListener.onPrematureTermination();
+                } else {
+                    mListener.onCallback(msg.what, (String)msg.obj, msg.arg1);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Passes a callback event to the listener and sends it as a broadcast afterwards, so the
+     * listener isn't delayed by the broadcast.
+     */
+    private void dispatchCallback(int type, String btAddress, int value) {
+        mHandler.obtainMessage(type, value, 0, btAddress).sendToTarget();
+
+        Intent intent = new Intent(ACTION_CALLBACK);
+        intent.putExtra(EXTRA_TYPE, type);
+
+        switch (type) {
+        case IPC_CB_HID_CONNECTED:
+            intent.putExtra(EXTRA_BTADDRESS, btAddress);
+            break;
+        case IPC_CB_HID_DISCONNECTED:
+            if (value != 0) {
+                intent.putExtra(EXTRA_ERROR_CODE, value);
+            }
+            break;
+        case IPC_CB_MOUSE_FEATURE:
+            intent.putExtra(EXTRA_SMOOTH_SCROLL_Y, (value & SMOOTH_SCROLL_Y) != 0);
+            intent.putExtra(EXTRA_SMOOTH_SCROLL_X, (value & SMOOTH_SCROLL_X) != 0);
+            break;
+        case IPC_CB_KEY_SEQUENCE_PROGRESS:
+            intent.putExtra(EXTRA_PROCESSED_COUNT, value);
+            break;
+        case IPC_CB_REPORT_RING_ATTACHED:
+            if (value != 0) {
+                intent.putExtra(EXTRA_ERROR_CODE, value);
+            }
+            break;
+        case IPC_ECB_DISCOVERABLE_ON:
+        case IPC_ECB_DISCOVERABLE_OFF:
+        case IPC_ECB_SET_HID_DEVICE_CLASS:
+        case IPC_ECB_RESET_DEVICE_CLASS:
+        case IPC_ECB_DEACTIVATE_OTHER_SERVICES:
+        case IPC_ECB_REACTIVATE_OTHER_SERVICES:
+        case IPC_ECB_HID_CONNECT:
+            intent.putExtra(EXTRA_ERROR_CODE, value);
+            break;
+        }
+
+        mContext.sendBroadcast(intent);
+    }
+
+    private void dispatchPrematureTermination() {
+        mHandler.sendEmptyMessage(MSG_PREMATURE_TERMINATION);
+        mContext.sendBroadcast(new Intent(ACTION_PREMATURE_TERMINATION));
+    }
+
+    private void receiveInputTrace() throws IOException {
+        final int eventTime = mInStream.readInt();
+        final int enqueueTime = mInStream.readInt();
+        final int ipcWriteTime = mInStream.readInt();
+        final int receiveTime = mInStream.readInt();
+        final int sendTime = mInStream.readInt();
+
+        mInputLatencyStats.addSample(eventTime, enqueueTime, ipcWriteTime, receiveTime,
+                sendTime);
     }
 
     private String receiveBtAddress() throws IOException {
@@ -121,31 +245,37 @@ public class DaemonCallbackReceiver extends Thread {
             try {
                 // This read is blocking without bothering the CPU until a callback is received
                 int cbtype = mInStream.readInt();
-                int errorCode;
+                String btAddress = null;
+                int value = 0;
 
                 if (V) Log.v(TAG, String.format("received IPC callback (%d)", cbtype));
 
-                Intent intent = new Intent(ACTION_CALLBACK);
-                intent.putExtra(EXTRA_TYPE, cbtype);
+                // Input traces are too frequent for a broadcast and are only collected
+                if (cbtype == IPC_CB_INPUT_TRACE) {
+                    receiveInputTrace();
+                    continue;
+                }
 
                 switch (cbtype) {
                 case IPC_CB_HID_CONNECTED:
-                    String btAddress = receiveBtAddress();
-                    intent.putExtra(EXTRA_BTADDRESS, btAddress);
+                    btAddress = receiveBtAddress();
                     break;
                 case IPC_CB_HID_DISCONNECTED:
-                    errorCode = mInStream.readInt();
-                    if (errorCode != 0) {
-                        intent.putExtra(EXTRA_ERROR_CODE, errorCode);
-                    }
+                    value = mInStream.readInt();
                     break;
                 case IPC_CB_INFO_NO_SERVER:
                     break;
                 case IPC_CB_MOUSE_FEATURE:
-                    boolean smoothScrollY = mInStream.readBoolean();
-                    boolean smoothScrollX = mInStream.readBoolean();
-                    intent.putExtra(EXTRA_SMOOTH_SCROLL_Y, smoothScrollY);
-                    intent.putExtra(EXTRA_SMOOTH_SCROLL_X, smoothScrollX);
+                    if (mInStream.readBoolean()) {
+                        value |= SMOOTH_SCROLL_Y;
+                    }
+                    if (mInStream.readBoolean()) {
+                        value |= SMOOTH_SCROLL_X;
+                    }
+                    break;
+                case IPC_CB_KEY_SEQUENCE_PROGRESS:
+                case IPC_CB_REPORT_RING_ATTACHED:
+                    value = mInStream.readInt();
                     break;
                 case IPC_ECB_DISCOVERABLE_ON:
                 case IPC_ECB_DISCOVERABLE_OFF:
@@ -154,21 +284,20 @@ public class DaemonCallbackReceiver extends Thread {
                 case IPC_ECB_DEACTIVATE_OTHER_SERVICES:
                 case IPC_ECB_REACTIVATE_OTHER_SERVICES:
                 case IPC_ECB_HID_CONNECT:
-                    errorCode = mInStream.readInt();
-                    intent.putExtra(EXTRA_ERROR_CODE, errorCode);
+                    value = mInStream.readInt();
                     break;
                 default:
                     Log.w(TAG, String.format("unknown daemon IPC callback (%d)", cbtype));
                     break;
                 }
 
-                mContext.sendBroadcast(intent);
+                dispatchCallback(cbtype, btAddress, value);
             } catch (IOException e) {
                 // The Exception is expected and ignored if the Thread was interrupted because
                 // the daemon might stop faster than this thread
                 if (!interrupted()) {
                     Log.e(TAG, "receive daemon IPC callback failed", e);
-                    mContext.sendBroadcast(new Intent(ACTION_PREMATURE_TERMINATION));
+                    dispatchPrematureTermination();
                 }
                 break;
             }
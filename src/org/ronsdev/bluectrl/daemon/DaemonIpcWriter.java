@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.daemon;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background Thread that owns the IPC output stream and sends the queued IPC commands to the
+ * application daemon.
+ *
+ * The commands are queued in a lock-free ring buffer of fixed-size slots. Any number of threads
+ * can claim a slot, write the command into it and publish it. The writer thread sends all
+ * published commands at once and wraps multiple HID commands in a single batch command.
+ * Commands with additional data that is larger than a slot can attach the data to the slot.
+ * If a shared memory ring is attached, HID commands are passed through the ring instead of the
+ * IPC socket.
+ */
+public class DaemonIpcWriter extends Thread {
+
+    private static final String TAG = "DaemonIpcWriter";
+    private static final boolean V = false;
+
+
+    /** The number of slots in the ring buffer (has to be a power of two). */
+    private static final int SLOT_COUNT = 256;
+
+    /** The maximum size of a single IPC command including its additional data. */
+    public static final int SLOT_SIZE = 32;
+
+    /*
+     * Daemon IPC batch command. Documented in the "hidipc.h" file.
+     */
+    private static final int IPC_CMD_HID_SEND_BATCH = 170;
+    private static final int IPC_MAX_BATCH_SIZE = 4096;
+
+    /** The size of the batch command header (command and data size). */
+    private static final int IPC_BATCH_HEADER_SIZE = 8;
+
+    /*
+     * Daemon IPC doorbell command of the shared memory ring. Documented in the "hidipc.h" file.
+     */
+    private static final byte[] IPC_CMD_HID_RING_DOORBELL = new byte[] { 0, 0, 0, (byte)205 };
+
+
+    private OutputStream mOutStream;
+    private DaemonCallbackReceiver.OnCallbackListener mListener;
+    private Handler mHandler;
+    private volatile SharedReportRing mReportRing;
+
+    private final ByteBuffer mSlotBuffer = ByteBuffer.allocate(SLOT_COUNT * SLOT_SIZE);
+    private final int[] mSlotLengths = new int[SLOT_COUNT];
+    private final boolean[] mSlotHidReports = new boolean[SLOT_COUNT];
+    private final byte[][] mSlotData = new byte[SLOT_COUNT][];
+    private final int[] mSlotDataLengths = new int[SLOT_COUNT];
+    private final int[] mSlotTimestampOffsets = new int[SLOT_COUNT];
+
+    /* Contains the sequence number of the command that was published in the slot. */
+    private final AtomicLongArray mPublishedSequences = new AtomicLongArray(SLOT_COUNT);
+
+    /* The sequence number of the next slot that will be claimed by a producer. */
+    private final AtomicLong mClaimSequence = new AtomicLong(0);
+
+    /* The sequence number of the next slot that will be sent by the writer thread. */
+    private volatile long mReadSequence = 0;
+
+    private volatile boolean mIsWaiting = false;
+    private volatile boolean mIsStopped = false;
+
+    /*
+     * Producers that wait for a free slot sleep on this lock. The counter is only changed while
+     * the lock is held, so the writer thread only has to take the lock if a producer waits.
+     */
+    private final Object mFullLock = new Object();
+    private volatile int mBlockedProducers = 0;
+    private final AtomicInteger mBatchLevel = new AtomicInteger(0);
+
+    private final ByteBuffer mFrameBuffer =
+            ByteBuffer.allocate(IPC_BATCH_HEADER_SIZE + IPC_MAX_BATCH_SIZE);
+    private int mFrameCmdCount = 0;
+
+    private volatile int mMaxQueueDepth = 0;
+    private volatile long mWrittenFrameCount = 0;
+    private volatile long mWrittenCmdCount = 0;
+    private volatile long mRingCmdCount = 0;
+
+
+    /**
+     * Creates a writer that reports a failed write as premature termination to the listener.
+     * Has to be called on a thread with a Looper if a listener is given.
+     */
+    public DaemonIpcWriter(OutputStream outputstream,
+            DaemonCallbackReceiver.OnCallbackListener listener) {
+        mOutStream = outputstream;
+        mListener = listener;
+        if (listener != null) {
+            mHandler = new Handler();
+        }
+
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mPublishedSequences.set(i, -1);
+        }
+    }
+
+
+    private static int getSlotIndex(long sequence) {
+        return (int)(sequence & (SLOT_COUNT - 1));
+    }
+
+    private boolean isSlotPublished(long sequence) {
+        return (mPublishedSequences.get(getSlotIndex(sequence)) == sequence);
+    }
+
+    /**
+     * Passes the following HID commands through a shared memory ring. Must only be called after
+     * the daemon confirmed that the ring is attached.
+     */
+    public void setReportRing(SharedReportRing reportRing) {
+        mReportRing = reportRing;
+    }
+
+    /** Gets the number of queued commands that weren't sent yet. */
+    public int getQueueDepth() {
+        return (int)(mClaimSequence.get() - mReadSequence);
+    }
+
+    /** Gets the highest number of queued commands since the writer was started. */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** Gets the number of IPC frames (socket writes) since the writer was started. */
+    public long getWrittenFrameCount() {
+        return mWrittenFrameCount;
+    }
+
+    /** Gets the number of sent IPC commands since the writer was started. */
+    public long getWrittenCommandCount() {
+        return mWrittenCmdCount;
+    }
+
+    /** Gets the number of IPC commands that were passed through the shared memory ring. */
+    public long getRingCommandCount() {
+        return mRingCmdCount;
+    }
+
+    /**
+     * Claims a free slot for a new IPC command. Sleeps if the ring buffer is full until the
+     * writer thread has sent enough commands.
+     *
+     * @return the sequence number of the claimed slot or -1 if the writer is stopped.
+     */
+    public long claimSlot() {
+        final long sequence = mClaimSequence.getAndIncrement();
+
+        if (sequence - mReadSequence >= SLOT_COUNT) {
+            waitForFreeSlot(sequence);
+            if (sequence - mReadSequence >= SLOT_COUNT) {
+                return -1;
+            }
+        }
+
+        final int queueDepth = (int)(sequence - mReadSequence) + 1;
+        if (queueDepth > mMaxQueueDepth) {
+            mMaxQueueDepth = queueDepth;
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Gets the buffer that contains all slots. Only absolute put methods must be used to write
+     * into this buffer because it is shared between multiple threads.
+     */
+    public ByteBuffer getSlotBuffer() {
+        return mSlotBuffer;
+    }
+
+    /** Gets the offset of a claimed slot in the slot buffer. */
+    public int getSlotOffset(long sequence) {
+        return getSlotIndex(sequence) * SLOT_SIZE;
+    }
+
+    /**
+     * Publishes a claimed slot after the IPC command was written so that it will be sent by the
+     * writer thread.
+     *
+     * @param sequence the sequence number of the claimed slot.
+     * @param length the size of the IPC command including its additional data.
+     * @param isHidReport true if the command can be sent as part of a batch command.
+     */
+    public void publishSlot(long sequence, int length, boolean isHidReport) {
+        final int index = getSlotIndex(sequence);
+        mSlotLengths[index] = length;
+        mSlotHidReports[index] = isHidReport;
+
+        // The volatile write makes the slot content visible to the writer thread
+        mPublishedSequences.set(index, sequence);
+
+        if (!isHidReport || (mBatchLevel.get() == 0)) {
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Publishes a claimed slot of an IPC command whose additional data doesn't fit into the slot.
+     * The command is never sent as part of a batch command.
+     *
+     * @param sequence the sequence number of the claimed slot.
+     * @param length the size of the IPC command data in the slot.
+     * @param data the data that is sent after the slot content. The array must not be modified
+     *        after it was published.
+     * @param dataLength the size of the data.
+     */
+    public void publishSlot(long sequence, int length, byte[] data, int dataLength) {
+        final int index = getSlotIndex(sequence);
+        mSlotData[index] = data;
+        mSlotDataLengths[index] = dataLength;
+
+        publishSlot(sequence, length, false);
+    }
+
+    /**
+     * Publishes a claimed slot of a HID Report command that carries an input trace. The writer
+     * thread stores the time when the command is written (microseconds of System.nanoTime()
+     * truncated to 32 bits) at the given offset.
+     *
+     * @param sequence the sequence number of the claimed slot.
+     * @param length the size of the IPC command including its additional data.
+     * @param timestampOffset the offset of the write timestamp in the slot.
+     */
+    public void publishTracedSlot(long sequence, int length, int timestampOffset) {
+        mSlotTimestampOffsets[getSlotIndex(sequence)] = timestampOffset;
+
+        publishSlot(sequence, length, true);
+    }
+
+    /**
+     * Holds back HID Reports until endBatch() is called so that they will be sent with a single
+     * IPC frame. Batches can be nested.
+     */
+    public void beginBatch() {
+        mBatchLevel.incrementAndGet();
+    }
+
+    /** Sends all HID Reports that were held back since beginBatch() was called. */
+    public void endBatch() {
+        int level;
+        do {
+            level = mBatchLevel.get();
+            if (level < 1) {
+                return;
+            }
+        } while (!mBatchLevel.compareAndSet(level, level - 1));
+
+        if (level == 1) {
+            wakeWriter();
+        }
+    }
+
+    /**
+     * Waits until the slot of the sequence number is released or the writer is stopped. The
+     * ring buffer is usually full because the writer is blocked by the socket, so the producer
+     * sleeps instead of spinning. An interrupt doesn't abort the wait because the claimed slot
+     * must be published.
+     */
+    private void waitForFreeSlot(long sequence) {
+        boolean isInterrupted = false;
+
+        synchronized (mFullLock) {
+            mBlockedProducers++;
+            try {
+                // The writer might hold back the commands of a batch
+                wakeWriter();
+
+                while ((sequence - mReadSequence >= SLOT_COUNT) && !mIsStopped) {
+                    try {
+                        mFullLock.wait();
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    }
+                }
+            } finally {
+                mBlockedProducers--;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Wakes the producers that wait for a free slot. */
+    private void wakeBlockedProducers() {
+        if (mBlockedProducers > 0) {
+            synchronized (mFullLock) {
+                mFullLock.notifyAll();
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        if (mIsWaiting) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Stops the writer thread after all already published commands are sent.
+     *
+     * @param timeout the maximum time in milliseconds to wait for the writer thread.
+     */
+    public void stopWriting(long timeout) {
+        mIsStopped = true;
+        LockSupport.unpark(this);
+        wakeBlockedProducers();
+
+        if (Thread.currentThread() != this) {
+            try {
+                join(timeout);
+            } catch (InterruptedException e) {
+                // Ignore non critical InterruptedException
+            }
+        }
+    }
+
+    /** Sends the doorbell command if the daemon waits for new commands in the ring. */
+    private void ringDoorbell() throws IOException {
+        final SharedReportRing reportRing = mReportRing;
+        if ((reportRing != null) && reportRing.takeDoorbell()) {
+            mOutStream.write(IPC_CMD_HID_RING_DOORBELL);
+            mOutStream.flush();
+            mWrittenFrameCount++;
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        if (mFrameCmdCount < 1) {
+            return;
+        }
+
+        // The commands in the ring were published earlier and must be executed first
+        ringDoorbell();
+
+        int offset = IPC_BATCH_HEADER_SIZE;
+        if (mFrameCmdCount > 1) {
+            mFrameBuffer.putInt(0, IPC_CMD_HID_SEND_BATCH);
+            mFrameBuffer.putInt(4, mFrameBuffer.position() - IPC_BATCH_HEADER_SIZE);
+            offset = 0;
+        }
+
+        mOutStream.write(mFrameBuffer.array(), offset, mFrameBuffer.position() - offset);
+        mOutStream.flush();
+
+        mWrittenFrameCount++;
+        mWrittenCmdCount += mFrameCmdCount;
+
+        mFrameBuffer.position(IPC_BATCH_HEADER_SIZE);
+        mFrameCmdCount = 0;
+    }
+
+    private void writePublishedSlots() throws IOException {
+        final SharedReportRing reportRing = mReportRing;
+        long sequence = mReadSequence;
+
+        mFrameBuffer.clear();
+        mFrameBuffer.position(IPC_BATCH_HEADER_SIZE);
+        mFrameCmdCount = 0;
+
+        while (isSlotPublished(sequence)) {
+            final int index = getSlotIndex(sequence);
+            final int length = mSlotLengths[index];
+            final boolean isHidReport = mSlotHidReports[index];
+            final int timestampOffset = mSlotTimestampOffsets[index];
+            mSlotTimestampOffsets[index] = 0;
+
+            // A full ring falls back to the socket until the pending frame is written because
+            // the ring commands must not overtake the commands in the frame
+            if (isHidReport && (reportRing != null) && (mFrameCmdCount == 0) &&
+                    reportRing.offer(mSlotBuffer.array(), index * SLOT_SIZE, length,
+                            timestampOffset)) {
+                mRingCmdCount++;
+            } else {
+                // Commands that are no HID Reports can't be part of a batch command
+                if (!isHidReport || (mFrameBuffer.remaining() < length)) {
+                    writeFrame();
+                }
+
+                final int startPosition = mFrameBuffer.position();
+                mFrameBuffer.put(mSlotBuffer.array(), index * SLOT_SIZE, length);
+                mFrameCmdCount++;
+
+                // Written after the copy, otherwise the slot data overwrites the timestamp
+                if (timestampOffset > 0) {
+                    mFrameBuffer.putInt(startPosition + timestampOffset,
+                            (int)(System.nanoTime() / 1000));
+                }
+
+                if (!isHidReport) {
+                    writeFrame();
+
+                    final byte[] data = mSlotData[index];
+                    if (data != null) {
+                        mSlotData[index] = null;
+                        mOutStream.write(data, 0, mSlotDataLengths[index]);
+                        mOutStream.flush();
+                    }
+                }
+            }
+
+            // Release the slot so that it can be reused by the producers
+            sequence++;
+            mReadSequence = sequence;
+            wakeBlockedProducers();
+        }
+
+        writeFrame();
+        ringDoorbell();
+    }
+
+    private void dispatchPrematureTermination() {
+        if (mHandler != null) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mListener.onPrematureTermination();
+                }
+            });
+        }
+    }
+
+    public void run() {
+        if (V) Log.v(TAG, "DaemonIpcWriter thread begin");
+
+        while (true) {
+            if (isSlotPublished(mReadSequence)) {
+                try {
+                    writePublishedSlots();
+                } catch (IOException e) {
+                    // The Exception is expected and ignored if the writer was stopped because
+                    // the IPC connection might be closed faster than this thread
+                    if (!mIsStopped) {
+                        Log.e(TAG, "send daemon IPC commands failed", e);
+                        dispatchPrematureTermination();
+                    }
+                    break;
+                }
+            } else if (mIsStopped) {
+                break;
+            } else {
+                mIsWaiting = true;
+                if (!isSlotPublished(mReadSequence) && !mIsStopped) {
+                    LockSupport.park(this);
+                }
+                mIsWaiting = false;
+            }
+        }
+
+        mIsStopped = true;
+        wakeBlockedProducers();
+
+        try {
+            mOutStream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close IPC output stream failed", e);
+        }
+
+        if (V) Log.v(TAG, String.format("DaemonIpcWriter thread end (%d commands, %d ring commands, %d frames, max queue depth %d)",
+                mWrittenCmdCount, mRingCmdCount, mWrittenFrameCount, mMaxQueueDepth));
+    }
+}
@@ -29,13 +29,16 @@ import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Date;
 
@@ -153,6 +156,15 @@ public class DaemonService extends Service {
     /** Incompatible Android version */
     public static final int ERROR_INCOMPATIBLE = -150;
 
+    /**
+     * Key of the global preference that passes the HID Reports through a shared memory ring
+     * instead of the IPC socket. Applies when the daemon connection is opened.
+     */
+    public static final String PREF_KEY_REPORT_RING = "report_ring";
+
+    /** Default value of the shared memory ring preference (opt-in). */
+    public static final boolean DEFAULT_REPORT_RING = false;
+
 
     private static final String TAG = "DaemonService";
     private static final boolean V = false;
@@ -165,6 +177,9 @@ public class DaemonService extends Service {
     /** The abstract Unix Domain socket address for the IPC communication with the daemon. */
     private static final String IPC_UNIXDOMAIN_NAME = "org.ronsdev.bluectrld";
 
+    /** The maximum time in milliseconds to wait until all queued IPC commands are sent. */
+    private static final int IPC_WRITER_STOP_TIMEOUT = 1000;
+
 
     /*
      * Daemon IPC commands. Documented in the "hidipc.h" file.
@@ -186,6 +201,18 @@ public class DaemonService extends Service {
     private static final int IPC_CMD_HID_SEND_AC_KEYS = 145;
     private static final int IPC_CMD_HID_CHANGE_MOUSE_FEATURE = 150;
     private static final int IPC_CMD_HID_SEND_MOUSE_ABSOLUTE = 160;
+    private static final int IPC_CMD_HID_SEND_MOUSE_TRACED = 165;
+    private static final int IPC_CMD_HID_SEND_KEY_SEQUENCE = 180;
+    private static final int IPC_CMD_HID_CANCEL_KEY_SEQUENCE = 185;
+    private static final int IPC_CMD_HID_SET_MAX_REPORT_RATE = 190;
+    private static final int IPC_CMD_HID_ATTACH_REPORT_RING = 200;
+    private static final int IPC_MAX_KEY_SEQUENCE_SIZE = 512;
+
+    /** The number of Keyboard Reports that can be queued by the daemon (see "hidseq.h"). */
+    private static final int KEY_SEQUENCE_CAPACITY = 4096;
+
+    /** The size of a Keyboard Report in a key sequence command. */
+    private static final int KEY_SEQUENCE_REPORT_SIZE = 7;
 
 
     public class DaemonBinder extends Binder {
@@ -212,55 +239,66 @@ public class DaemonService extends Service {
                 } else {
                     shutdownDaemon(ERROR_BT_REQUIRED);
                 }
-            } else if (DaemonCallbackReceiver.ACTION_PREMATURE_TERMINATION.equals(action)) {
-                stopDaemon(ERROR_IPC);
-            } else if (DaemonCallbackReceiver.ACTION_CALLBACK.equals(action)) {
-                int cbType = intent.getIntExtra(DaemonCallbackReceiver.EXTRA_TYPE, 0);
-                String btAddress = intent.getStringExtra(DaemonCallbackReceiver.EXTRA_BTADDRESS);
-                int errorCode = intent.getIntExtra(DaemonCallbackReceiver.EXTRA_ERROR_CODE, 0);
-
-                switch (cbType) {
-                case DaemonCallbackReceiver.IPC_CB_HID_CONNECTED:
-                    if (!isHidConnectionCanceled()) {
-                        onHidConnected(btAddress);
-                    }
-                    break;
-                case DaemonCallbackReceiver.IPC_CB_HID_DISCONNECTED:
-                    onHidDisconnected(errorCode);
-                    break;
-                case DaemonCallbackReceiver.IPC_CB_INFO_NO_SERVER:
-                    mIsHidServerAvailable = false;
-                    sendBroadcast(new Intent(ACTION_HID_SERVER_AVAILABILITY_CHANGED));
-                    break;
-                case DaemonCallbackReceiver.IPC_CB_MOUSE_FEATURE:
-                    mIsSmoothScrollYOn = intent.getBooleanExtra(
-                            DaemonCallbackReceiver.EXTRA_SMOOTH_SCROLL_Y, false);
-                    mIsSmoothScrollXOn = intent.getBooleanExtra(
-                            DaemonCallbackReceiver.EXTRA_SMOOTH_SCROLL_X, false);
-                    sendBroadcast(new Intent(ACTION_HID_MOUSE_FEATURE_RECEIVED));
-                    break;
-                case DaemonCallbackReceiver.IPC_ECB_DISCOVERABLE_OFF:
-                case DaemonCallbackReceiver.IPC_ECB_DISCOVERABLE_ON:
-                case DaemonCallbackReceiver.IPC_ECB_SET_HID_DEVICE_CLASS:
-                case DaemonCallbackReceiver.IPC_ECB_RESET_DEVICE_CLASS:
-                case DaemonCallbackReceiver.IPC_ECB_DEACTIVATE_OTHER_SERVICES:
-                case DaemonCallbackReceiver.IPC_ECB_REACTIVATE_OTHER_SERVICES:
-                    if (errorCode == 0) {
-                        shutdownDaemon(ERROR_UNKNOWN);
-                    } else {
-                        shutdownDaemon(errorCode);
-                    }
-                    break;
-                case DaemonCallbackReceiver.IPC_ECB_HID_CONNECT:
-                    if (isHidConnectionCanceled()) {
-                        onHidDisconnected(0);
-                    } else {
-                        onHidDisconnected(errorCode);
-                    }
-                    break;
+            }
+        }
+    };
+
+    /*
+     * The daemon callbacks are passed directly to the Service instead of going through a
+     * broadcast because the broadcasts are dispatched by the system process.
+     */
+    private final DaemonCallbackReceiver.OnCallbackListener mCallbackListener =
+            new DaemonCallbackReceiver.OnCallbackListener() {
+        public void onCallback(int type, String btAddress, int value) {
+            switch (type) {
+            case DaemonCallbackReceiver.IPC_CB_HID_CONNECTED:
+                if (!isHidConnectionCanceled()) {
+                    onHidConnected(btAddress);
+                }
+                break;
+            case DaemonCallbackReceiver.IPC_CB_HID_DISCONNECTED:
+                onHidDisconnected(value);
+                break;
+            case DaemonCallbackReceiver.IPC_CB_INFO_NO_SERVER:
+                mIsHidServerAvailable = false;
+                sendBroadcast(new Intent(ACTION_HID_SERVER_AVAILABILITY_CHANGED));
+                break;
+            case DaemonCallbackReceiver.IPC_CB_MOUSE_FEATURE:
+                mIsSmoothScrollYOn = ((value & DaemonCallbackReceiver.SMOOTH_SCROLL_Y) != 0);
+                mIsSmoothScrollXOn = ((value & DaemonCallbackReceiver.SMOOTH_SCROLL_X) != 0);
+                sendBroadcast(new Intent(ACTION_HID_MOUSE_FEATURE_RECEIVED));
+                break;
+            case DaemonCallbackReceiver.IPC_CB_KEY_SEQUENCE_PROGRESS:
+                onKeySequenceProgress(value);
+                break;
+            case DaemonCallbackReceiver.IPC_CB_REPORT_RING_ATTACHED:
+                onReportRingAttached(value);
+                break;
+            case DaemonCallbackReceiver.IPC_ECB_DISCOVERABLE_OFF:
+            case DaemonCallbackReceiver.IPC_ECB_DISCOVERABLE_ON:
+            case DaemonCallbackReceiver.IPC_ECB_SET_HID_DEVICE_CLASS:
+            case DaemonCallbackReceiver.IPC_ECB_RESET_DEVICE_CLASS:
+            case DaemonCallbackReceiver.IPC_ECB_DEACTIVATE_OTHER_SERVICES:
+            case DaemonCallbackReceiver.IPC_ECB_REACTIVATE_OTHER_SERVICES:
+                if (value == 0) {
+                    shutdownDaemon(ERROR_UNKNOWN);
+                } else {
+                    shutdownDaemon(value);
+                }
+                break;
+            case DaemonCallbackReceiver.IPC_ECB_HID_CONNECT:
+                if (isHidConnectionCanceled()) {
+                    onHidDisconnected(0);
+                } else {
+                    onHidDisconnected(value);
                 }
+                break;
             }
         }
+
+        public void onPrematureTermination() {
+            stopDaemon(ERROR_IPC);
+        }
     };
 
     private BluetoothAdapter mBtAdapter;
@@ -273,9 +311,26 @@ public class DaemonService extends Service {
     private boolean mIsSmoothScrollYOn = false;
     private boolean mIsSmoothScrollXOn = false;
 
+    /*
+     * The number of submitted and processed key sequence reports since the daemon connection
+     * was opened. Guarded by mKeySequenceLock.
+     */
+    private final Object mKeySequenceLock = new Object();
+    private long mKeySequenceSubmitted = 0;
+    private long mKeySequenceProcessed = 0;
+
+    private final InputLatencyStats mInputLatencyStats = new InputLatencyStats();
+    private volatile boolean mIsInputTracingEnabled = false;
+
     private DaemonCallbackReceiver mCallbackReceiver;
+    private volatile DaemonIpcWriter mIpcWriter;
     private LocalSocket mLocalSocket;
-    private DataOutputStream mOutStream;
+
+    /*
+     * The shared memory ring that was passed to the daemon. It is only handed to the IPC writer
+     * after the daemon confirmed the attach, until then the HID Reports go over the socket.
+     */
+    private SharedReportRing mReportRing;
 
 
     @Override
@@ -288,10 +343,6 @@ public class DaemonService extends Service {
 
         this.registerReceiver(mReceiver,
                 new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
-        this.registerReceiver(mReceiver,
-                new IntentFilter(DaemonCallbackReceiver.ACTION_PREMATURE_TERMINATION));
-        this.registerReceiver(mReceiver,
-                new IntentFilter(DaemonCallbackReceiver.ACTION_CALLBACK));
 
         startDaemon();
     }
@@ -392,6 +443,18 @@ public class DaemonService extends Service {
         setConnectedDeviceFromAddress("");
 
         setHidState(HID_STATE_DISCONNECTED, errorCode);
+
+        // Wake up threads that wait for key sequence progress
+        synchronized (mKeySequenceLock) {
+            mKeySequenceLock.notifyAll();
+        }
+    }
+
+    private void onKeySequenceProgress(int processedCount) {
+        synchronized (mKeySequenceLock) {
+            mKeySequenceProcessed = processedCount;
+            mKeySequenceLock.notifyAll();
+        }
     }
 
     /**
@@ -551,6 +614,11 @@ public class DaemonService extends Service {
     }
 
     private int connectToDaemon() {
+        synchronized (mKeySequenceLock) {
+            mKeySequenceSubmitted = 0;
+            mKeySequenceProcessed = 0;
+        }
+
         mLocalSocket = new LocalSocket();
         LocalSocketAddress endpoint = new LocalSocketAddress(IPC_UNIXDOMAIN_NAME);
         try {
@@ -560,15 +628,22 @@ public class DaemonService extends Service {
             return ERROR_IPC;
         }
 
+        if (PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+                PREF_KEY_REPORT_RING, DEFAULT_REPORT_RING)) {
+            mReportRing = attachReportRing();
+        }
+
         try {
-            mOutStream = new DataOutputStream(mLocalSocket.getOutputStream());
+            mIpcWriter = new DaemonIpcWriter(mLocalSocket.getOutputStream(), mCallbackListener);
         } catch (IOException e) {
             Log.e(TAG, "get IPC output stream failed", e);
             return ERROR_IPC;
         }
+        mIpcWriter.start();
 
         try {
-            mCallbackReceiver = new DaemonCallbackReceiver(this, mLocalSocket.getInputStream());
+            mCallbackReceiver = new DaemonCallbackReceiver(this, mLocalSocket.getInputStream(),
+                    mInputLatencyStats, mCallbackListener);
         } catch (IOException e) {
             Log.e(TAG, "get IPC input stream failed", e);
             return ERROR_IPC;
@@ -578,6 +653,56 @@ public class DaemonService extends Service {
         return 0;
     }
 
+    /**
+     * Creates a shared memory ring for the HID Reports and passes it to the daemon.
+     *
+     * The daemon answers with a callback, see {@link #onReportRingAttached(int)}.
+     *
+     * @return the pending ring or null if the HID Reports have to be sent over the socket.
+     */
+    private SharedReportRing attachReportRing() {
+        final SharedReportRing ring = SharedReportRing.create();
+        if (ring == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(IPC_CMD_HID_ATTACH_REPORT_RING);
+        buffer.putInt(SharedReportRing.SLOT_COUNT);
+        buffer.putInt(SharedReportRing.SLOT_SIZE);
+
+        try {
+            mLocalSocket.setFileDescriptorsForSend(
+                    new FileDescriptor[] { ring.getFileDescriptor() });
+            final OutputStream outStream = mLocalSocket.getOutputStream();
+            outStream.write(buffer.array());
+            outStream.flush();
+            mLocalSocket.setFileDescriptorsForSend(null);
+        } catch (IOException e) {
+            Log.w(TAG, "attach shared report ring failed", e);
+            ring.close();
+            return null;
+        }
+
+        return ring;
+    }
+
+    private void onReportRingAttached(int errorCode) {
+        if (mReportRing == null) {
+            return;
+        }
+
+        final DaemonIpcWriter ipcWriter = mIpcWriter;
+        if ((errorCode == 0) && (ipcWriter != null)) {
+            if (V) Log.v(TAG, "shared report ring attached");
+            ipcWriter.setReportRing(mReportRing);
+        } else {
+            Log.w(TAG, String.format("daemon rejected the shared report ring (%d)", errorCode));
+            mReportRing.close();
+            mReportRing = null;
+        }
+    }
+
     private void stopCallbackReceiver() {
         if (mCallbackReceiver != null) {
             mCallbackReceiver.interrupt();
@@ -588,13 +713,15 @@ public class DaemonService extends Service {
     private void closeDaemonConnection() {
         stopCallbackReceiver();
 
-        if (mOutStream != null) {
-            try {
-                mOutStream.close();
-            } catch (IOException e) {
-                Log.w(TAG, "close IPC output stream failed", e);
-            }
-            mOutStream = null;
+        // The IPC writer sends all queued commands before it closes the output stream
+        if (mIpcWriter != null) {
+            mIpcWriter.stopWriting(IPC_WRITER_STOP_TIMEOUT);
+            mIpcWriter = null;
+        }
+
+        if (mReportRing != null) {
+            mReportRing.close();
+            mReportRing = null;
         }
 
         if (mLocalSocket != null) {
@@ -653,16 +780,32 @@ public class DaemonService extends Service {
         closeDaemonConnection();
     }
 
+    /** Gets the number of IPC commands that are queued but weren't sent yet. */
+    public int getIpcQueueDepth() {
+        final DaemonIpcWriter writer = mIpcWriter;
+        return (writer != null) ? writer.getQueueDepth() : 0;
+    }
+
+    /** Gets the highest number of queued IPC commands since the daemon connection was opened. */
+    public int getIpcMaxQueueDepth() {
+        final DaemonIpcWriter writer = mIpcWriter;
+        return (writer != null) ? writer.getMaxQueueDepth() : 0;
+    }
+
     private boolean sendSimpleIpcCmd(int cmd) {
-        try {
-            mOutStream.writeInt(cmd);
-            mOutStream.flush();
-        } catch (IOException e) {
-            Log.e(TAG, "send daemon IPC command failed", e);
-            stopDaemon(ERROR_IPC);
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (writer == null) {
             return false;
         }
 
+        final long sequence = writer.claimSlot();
+        if (sequence < 0) {
+            return false;
+        }
+
+        writer.getSlotBuffer().putInt(writer.getSlotOffset(sequence), cmd);
+        writer.publishSlot(sequence, 4, false);
+
         return true;
     }
 
@@ -726,16 +869,20 @@ public class DaemonService extends Service {
                 return;
             }
 
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_CONNECT);
-                mOutStream.write(asciiText);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID connect' failed", e);
-                stopDaemon(ERROR_IPC);
+            final DaemonIpcWriter writer = mIpcWriter;
+            final long sequence = (writer != null) ? writer.claimSlot() : -1;
+            if (sequence < 0) {
                 return;
             }
 
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            slots.putInt(offset, IPC_CMD_HID_CONNECT);
+            for (int i = 0; i < asciiText.length; i++) {
+                slots.put(offset + 4 + i, asciiText[i]);
+            }
+            writer.publishSlot(sequence, 4 + asciiText.length, false);
+
             onHidConnecting(btAddress);
         }
     }
@@ -751,41 +898,214 @@ public class DaemonService extends Service {
         }
     }
 
-    /** Sends a Keyboard HID Report to the host. */
-    public void sendKeyboardReport(int modifier, int keycodes[]) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_KEYS);
-                mOutStream.writeByte(modifier);
+    /**
+     * Starts a batch of HID Reports. All reports that are sent until the matching
+     * endReportBatch() call are collected and sent to the daemon with a single IPC frame.
+     * Batches can be nested.
+     */
+    public void beginReportBatch() {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (writer != null) {
+            writer.beginBatch();
+        }
+    }
 
-                if (keycodes == null) {
-                    for (int i = 0; i < 6; i++) {
-                        mOutStream.writeByte(0);
-                    }
-                } else if (keycodes.length <= 6) {
-                    for (int i = 0; i < keycodes.length; i++) {
-                        mOutStream.writeByte(keycodes[i]);
-                    }
-                    for (int i = 0; i < 6 - keycodes.length; i++) {
-                        mOutStream.writeByte(0);
+    /** Ends a batch of HID Reports and sends all collected reports to the daemon. */
+    public void endReportBatch() {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (writer != null) {
+            writer.endBatch();
+        }
+    }
+
+    /**
+     * Sends a Keyboard HID Report to the host.
+     *
+     * @param report the 8 byte Keyboard Report: the modifier bitmask, a reserved byte and the
+     *        key codes of up to 6 pressed keys.
+     */
+    public void sendKeyboardReport(byte[] report) {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            queueKeyboardReport(writer, report, 0);
+        }
+    }
+
+    /**
+     * Sends multiple Keyboard HID Reports to the host with as few IPC frames as possible.
+     *
+     * @param reports the consecutive Keyboard Reports in the same 8 byte format as in
+     *        sendKeyboardReport().
+     * @param count the number of Keyboard Reports.
+     */
+    public void sendKeyboardReports(byte[] reports, int count) {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            writer.beginBatch();
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (!queueKeyboardReport(writer, reports, i * 8)) {
+                        break;
                     }
                 }
-                else {
-                    // send ErrorRollOver
-                    for (int i = 0; i < 6; i++) {
-                        mOutStream.writeByte(1);
-                    }
+            } finally {
+                writer.endBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes a Keyboard Report command into a slot. Package-private for the off-device
+     * benchmarks.
+     *
+     * @return the size of the command.
+     */
+    static int putKeyboardReport(ByteBuffer slots, int offset, byte[] report, int reportOffset) {
+        slots.putInt(offset, IPC_CMD_HID_SEND_KEYS);
+        slots.put(offset + 4, report[reportOffset]);
+        System.arraycopy(report, reportOffset + 2, slots.array(), offset + 5, 6);
+        return 11;
+    }
+
+    private boolean queueKeyboardReport(DaemonIpcWriter writer, byte[] report, int reportOffset) {
+        final long sequence = writer.claimSlot();
+        if (sequence < 0) {
+            return false;
+        }
+
+        final int length = putKeyboardReport(writer.getSlotBuffer(),
+                writer.getSlotOffset(sequence), report, reportOffset);
+        writer.publishSlot(sequence, length, true);
+        return true;
+    }
+
+    private boolean isKeySequenceAvailable() {
+        return (isRunning() && (mHidState == HID_STATE_CONNECTED));
+    }
+
+    /**
+     * Queues a sequence of Keyboard HID Reports in the daemon which sends them to the host at
+     * its own pace. Blocks until the daemon has enough free space for the reports.
+     *
+     * @param reports the consecutive Keyboard Reports in the same 8 byte format as in
+     *        sendKeyboardReport().
+     * @param count the number of Keyboard Reports.
+     * @param interval the time in milliseconds between two reports or 0 to send the reports as
+     *        fast as possible.
+     * @return the number of submitted key sequence reports after the last report of this
+     *         sequence (can be compared with the value of waitForKeySequenceProgress()) or -1
+     *         if the sequence couldn't be sent.
+     */
+    public long sendKeySequence(byte[] reports, int count, int interval)
+            throws InterruptedException {
+        int reportIndex = 0;
+        while (reportIndex < count) {
+            final int cmdCount = Math.min(count - reportIndex, IPC_MAX_KEY_SEQUENCE_SIZE);
+
+            synchronized (mKeySequenceLock) {
+                while (isKeySequenceAvailable() && (mKeySequenceSubmitted + cmdCount -
+                        mKeySequenceProcessed > KEY_SEQUENCE_CAPACITY)) {
+                    mKeySequenceLock.wait();
                 }
 
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Keyboard Report' failed", e);
-                stopDaemon(ERROR_IPC);
+                final DaemonIpcWriter writer = mIpcWriter;
+                if (!isKeySequenceAvailable() || (writer == null)) {
+                    return -1;
+                }
+
+                byte[] data = new byte[cmdCount * KEY_SEQUENCE_REPORT_SIZE];
+                for (int i = 0; i < cmdCount; i++) {
+                    final int reportOffset = (reportIndex + i) * 8;
+                    final int dataOffset = i * KEY_SEQUENCE_REPORT_SIZE;
+                    data[dataOffset] = reports[reportOffset];
+                    System.arraycopy(reports, reportOffset + 2, data, dataOffset + 1, 6);
+                }
+
+                final long sequence = writer.claimSlot();
+                if (sequence < 0) {
+                    return -1;
+                }
+
+                final ByteBuffer slots = writer.getSlotBuffer();
+                final int offset = writer.getSlotOffset(sequence);
+                slots.putInt(offset, IPC_CMD_HID_SEND_KEY_SEQUENCE);
+                slots.putShort(offset + 4, (short)cmdCount);
+                slots.putShort(offset + 6, (short)limitIntValue(interval, 0, 0xffff));
+                writer.publishSlot(sequence, 8, data, data.length);
+
+                // The daemon processes the reports in the same order as they are submitted
+                mKeySequenceSubmitted += cmdCount;
+            }
+
+            reportIndex += cmdCount;
+        }
+
+        synchronized (mKeySequenceLock) {
+            return mKeySequenceSubmitted;
+        }
+    }
+
+    /**
+     * Waits until the daemon has processed more key sequence reports than the specified number
+     * or until key sequences can't be sent anymore.
+     *
+     * @return the number of sent or discarded key sequence reports since the daemon connection
+     *         was opened.
+     */
+    public long waitForKeySequenceProgress(long processedCount) throws InterruptedException {
+        synchronized (mKeySequenceLock) {
+            while (isKeySequenceAvailable() && (mKeySequenceProcessed <= processedCount)) {
+                mKeySequenceLock.wait();
             }
+            return mKeySequenceProcessed;
+        }
+    }
+
+    public boolean isInputTracingEnabled() {
+        return mIsInputTracingEnabled;
+    }
+
+    /**
+     * Enables the tracing of Mouse Reports that are sent with an event time. The collected
+     * latencies are available with getInputLatencyStats().
+     */
+    public void setInputTracingEnabled(boolean value) {
+        mIsInputTracingEnabled = value;
+    }
+
+    /** Gets the latency statistics of the traced input events. */
+    public InputLatencyStats getInputLatencyStats() {
+        return mInputLatencyStats;
+    }
+
+    /** Discards all key sequence reports that are queued in the daemon. */
+    public void cancelKeySequence() {
+        if (isRunning()) {
+            sendSimpleIpcCmd(IPC_CMD_HID_CANCEL_KEY_SEQUENCE);
         }
     }
 
-    private int limitIntValue(int value, int min, int max) {
+    /**
+     * Limits the number of HID Reports that the daemon sends per second (0 if unlimited).
+     * Reports above the limit are queued in the daemon and consecutive Mouse Reports are merged.
+     */
+    public void setMaxReportRate(int rate) {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            final long sequence = writer.claimSlot();
+            if (sequence < 0) {
+                return;
+            }
+
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            slots.putInt(offset, IPC_CMD_HID_SET_MAX_REPORT_RATE);
+            slots.putShort(offset + 4, (short)limitIntValue(rate, 0, 0xffff));
+            writer.publishSlot(sequence, 6, false);
+        }
+    }
+
+    private static int limitIntValue(int value, int min, int max) {
         if (value > max) {
             return max;
         } else if (value < min) {
@@ -795,108 +1115,137 @@ public class DaemonService extends Service {
         }
     }
 
+    private static int putMouseReport(ByteBuffer slots, int offset, int cmd, int buttons, int x,
+            int y, int scrollY, int scrollX) {
+        slots.putInt(offset, cmd);
+        slots.put(offset + 4, (byte)buttons);
+        slots.putShort(offset + 5, (short)limitIntValue(x, -2047, 2047));
+        slots.putShort(offset + 7, (short)limitIntValue(y, -2047, 2047));
+        slots.put(offset + 9, (byte)limitIntValue(scrollY, -127, 127));
+        slots.put(offset + 10, (byte)limitIntValue(scrollX, -127, 127));
+        return 11;
+    }
+
+    /**
+     * Writes a Mouse Report command into a slot. Package-private for the off-device benchmarks.
+     *
+     * @return the size of the command.
+     */
+    static int putMouseReport(ByteBuffer slots, int offset, int buttons, int x, int y,
+            int scrollY, int scrollX) {
+        return putMouseReport(slots, offset, IPC_CMD_HID_SEND_MOUSE, buttons, x, y, scrollY,
+                scrollX);
+    }
+
     /** Sends a Mouse HID Report to the host. */
     public void sendMouseReport(int buttons, int x, int y, int scrollY, int scrollX) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_MOUSE);
-                mOutStream.writeByte(buttons);
-                mOutStream.writeShort(limitIntValue(x, -2047, 2047));
-                mOutStream.writeShort(limitIntValue(y, -2047, 2047));
-                mOutStream.writeByte(limitIntValue(scrollY, -127, 127));
-                mOutStream.writeByte(limitIntValue(scrollX, -127, 127));
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Mouse Report' failed", e);
-                stopDaemon(ERROR_IPC);
+        sendMouseReport(buttons, x, y, scrollY, scrollX, 0);
+    }
+
+    /**
+     * Sends a Mouse HID Report to the host. If input tracing is enabled, the latency from the
+     * touch event until the daemon sent the report is added to the input latency statistics.
+     *
+     * @param eventTime the time of the touch event that caused the report (in the
+     *        SystemClock.uptimeMillis() time base) or 0 if the report shouldn't be traced.
+     */
+    public void sendMouseReport(int buttons, int x, int y, int scrollY, int scrollX,
+            long eventTime) {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            final long sequence = writer.claimSlot();
+            if (sequence < 0) {
+                return;
+            }
+
+            final boolean isTraced = mIsInputTracingEnabled && (eventTime > 0);
+            final int cmd = isTraced ? IPC_CMD_HID_SEND_MOUSE_TRACED : IPC_CMD_HID_SEND_MOUSE;
+
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            final int length = putMouseReport(slots, offset, cmd, buttons, x, y, scrollY,
+                    scrollX);
+            if (isTraced) {
+                // Both clocks are based on CLOCK_MONOTONIC like the timestamps of the daemon
+                slots.putInt(offset + 11, (int)(eventTime * 1000));
+                slots.putInt(offset + 15, (int)(System.nanoTime() / 1000));
+                writer.publishTracedSlot(sequence, 23, 19);
+            } else {
+                writer.publishSlot(sequence, length, true);
             }
         }
     }
 
-    /** Sends a System Keys HID Report to the host. */
-    public void sendSystemKeyReport(int keys) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_SYSTEM_KEYS);
-                mOutStream.writeByte(keys);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID System Key Report' failed", e);
-                stopDaemon(ERROR_IPC);
+    private void sendSingleByteReport(int cmd, int value) {
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            final long sequence = writer.claimSlot();
+            if (sequence < 0) {
+                return;
             }
+
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            slots.putInt(offset, cmd);
+            slots.put(offset + 4, (byte)value);
+            writer.publishSlot(sequence, 5, true);
         }
     }
 
+    /** Sends a System Keys HID Report to the host. */
+    public void sendSystemKeyReport(int keys) {
+        sendSingleByteReport(IPC_CMD_HID_SEND_SYSTEM_KEYS, keys);
+    }
+
     /** Sends a Hardware Keys HID Report to the host. */
     public void sendHardwareKeyReport(int keys) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_HW_KEYS);
-                mOutStream.writeByte(keys);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Hardware Key Report' failed", e);
-                stopDaemon(ERROR_IPC);
-            }
-        }
+        sendSingleByteReport(IPC_CMD_HID_SEND_HW_KEYS, keys);
     }
 
     /** Sends a Media Keys HID Report to the host. */
     public void sendMediaKeyReport(int keys) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_MEDIA_KEYS);
-                mOutStream.writeByte(keys);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Media Key Report' failed", e);
-                stopDaemon(ERROR_IPC);
-            }
-        }
+        sendSingleByteReport(IPC_CMD_HID_SEND_MEDIA_KEYS, keys);
     }
 
     /** Sends a Application Control Keys HID Report to the host. */
     public void sendAppCtrlKeyReport(int keys) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_AC_KEYS);
-                mOutStream.writeByte(keys);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Application Control Key Report' failed", e);
-                stopDaemon(ERROR_IPC);
-            }
-        }
+        sendSingleByteReport(IPC_CMD_HID_SEND_AC_KEYS, keys);
     }
 
     /** Change the Mouse Feature Report. */
     private void changeMouseFeature(boolean isSmoothScrollYOn, boolean isSmoothScrollXOn) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_CHANGE_MOUSE_FEATURE);
-                mOutStream.writeBoolean(isSmoothScrollYOn);
-                mOutStream.writeBoolean(isSmoothScrollXOn);
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'Change Mouse Feature Report' failed", e);
-                stopDaemon(ERROR_IPC);
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            final long sequence = writer.claimSlot();
+            if (sequence < 0) {
+                return;
             }
+
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            slots.putInt(offset, IPC_CMD_HID_CHANGE_MOUSE_FEATURE);
+            slots.put(offset + 4, (byte)(isSmoothScrollYOn ? 1 : 0));
+            slots.put(offset + 5, (byte)(isSmoothScrollXOn ? 1 : 0));
+            writer.publishSlot(sequence, 6, true);
         }
     }
 
     /** Sends a Mouse (Absolute) HID Report to the host. */
     public void sendMouseAbsoluteReport(int buttons, int x, int y) {
-        if (isRunning()) {
-            try {
-                mOutStream.writeInt(IPC_CMD_HID_SEND_MOUSE_ABSOLUTE);
-                mOutStream.writeByte(buttons);
-                mOutStream.writeShort(limitIntValue(x, 0, 2047));
-                mOutStream.writeShort(limitIntValue(y, 0, 2047));
-                mOutStream.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "send daemon IPC command 'HID Mouse (Absolute) Report' failed", e);
-                stopDaemon(ERROR_IPC);
+        final DaemonIpcWriter writer = mIpcWriter;
+        if (isRunning() && (writer != null)) {
+            final long sequence = writer.claimSlot();
+            if (sequence < 0) {
+                return;
             }
+
+            final ByteBuffer slots = writer.getSlotBuffer();
+            final int offset = writer.getSlotOffset(sequence);
+            slots.putInt(offset, IPC_CMD_HID_SEND_MOUSE_ABSOLUTE);
+            slots.put(offset + 4, (byte)buttons);
+            slots.putShort(offset + 5, (short)limitIntValue(x, 0, 2047));
+            slots.putShort(offset + 7, (short)limitIntValue(y, 0, 2047));
+            writer.publishSlot(sequence, 9, true);
         }
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.daemon;
+
+import java.util.Arrays;
+
+/**
+ * Latency histograms of traced input events. Every trace is split into the stages between the
+ * timestamps that were taken on the way from the touch event to the L2CAP socket of the daemon.
+ * All values are microseconds.
+ */
+public class InputLatencyStats {
+
+    /** From the touch event until the IPC command was queued. */
+    public static final int STAGE_ENQUEUE = 0;
+
+    /** From the queued until the written IPC command. */
+    public static final int STAGE_IPC_WRITE = 1;
+
+    /** From the written IPC command until the daemon received it. */
+    public static final int STAGE_DAEMON_RECEIVE = 2;
+
+    /** From the received IPC command until the daemon sent the HID Report. */
+    public static final int STAGE_L2CAP_SEND = 3;
+
+    /** From the touch event until the daemon sent the HID Report. */
+    public static final int STAGE_TOTAL = 4;
+
+    public static final int STAGE_COUNT = 5;
+
+
+    /** The upper bound of the first histogram bucket. Every further bucket doubles the bound. */
+    private static final int FIRST_BUCKET_BOUND = 250;
+
+    /** The number of histogram buckets. The last bucket has no upper bound. */
+    public static final int BUCKET_COUNT = 12;
+
+
+    private final int[][] mHistograms = new int[STAGE_COUNT][BUCKET_COUNT];
+    private final long[] mSums = new long[STAGE_COUNT];
+    private final int[] mMaximums = new int[STAGE_COUNT];
+    private int mSampleCount = 0;
+
+
+    /**
+     * Gets the exclusive upper bound of a histogram bucket in microseconds or
+     * Integer.MAX_VALUE for the last bucket.
+     */
+    public static int getBucketBound(int bucket) {
+        if (bucket >= BUCKET_COUNT - 1) {
+            return Integer.MAX_VALUE;
+        }
+        return FIRST_BUCKET_BOUND << bucket;
+    }
+
+    private static int getBucket(int latency) {
+        int bucket = 0;
+        while ((bucket < BUCKET_COUNT - 1) && (latency >= getBucketBound(bucket))) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private void addLatency(int stage, int latency) {
+        // The timestamps are truncated to 32 bits, so only the difference is meaningful
+        if (latency < 0) {
+            latency = 0;
+        }
+
+        mHistograms[stage][getBucket(latency)]++;
+        mSums[stage] += latency;
+        if (latency > mMaximums[stage]) {
+            mMaximums[stage] = latency;
+        }
+    }
+
+    /** Adds the timestamps (microseconds truncated to 32 bits) of a traced input event. */
+    public synchronized void addSample(int eventTime, int enqueueTime, int ipcWriteTime,
+            int receiveTime, int sendTime) {
+        addLatency(STAGE_ENQUEUE, enqueueTime - eventTime);
+        addLatency(STAGE_IPC_WRITE, ipcWriteTime - enqueueTime);
+        addLatency(STAGE_DAEMON_RECEIVE, receiveTime - ipcWriteTime);
+        addLatency(STAGE_L2CAP_SEND, sendTime - receiveTime);
+        addLatency(STAGE_TOTAL, sendTime - eventTime);
+        mSampleCount++;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            Arrays.fill(mHistograms[i], 0);
+        }
+        Arrays.fill(mSums, 0);
+        Arrays.fill(mMaximums, 0);
+        mSampleCount = 0;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** Gets a copy of the histogram of a stage (see getBucketBound() for the bucket bounds). */
+    public synchronized int[] getHistogram(int stage) {
+        return Arrays.copyOf(mHistograms[stage], BUCKET_COUNT);
+    }
+
+    /** Gets the average latency of a stage in microseconds. */
+    public synchronized int getAverage(int stage) {
+        return (mSampleCount > 0) ? (int)(mSums[stage] / mSampleCount) : 0;
+    }
+
+    /** Gets the highest latency of a stage in microseconds. */
+    public synchronized int getMaximum(int stage) {
+        return mMaximums[stage];
+    }
+
+    /**
+     * Gets the upper bound of the histogram bucket that contains the given percentile of a
+     * stage in microseconds. The result is never higher than the highest latency.
+     *
+     * @param percentile a value between 0 and 100.
+     */
+    public synchronized int getPercentile(int stage, int percentile) {
+        if (mSampleCount < 1) {
+            return 0;
+        }
+
+        final int threshold = Math.max(1, (mSampleCount * percentile + 99) / 100);
+        final int[] histogram = mHistograms[stage];
+        int count = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            count += histogram[i];
+            if (count >= threshold) {
+                return Math.min(getBucketBound(i), mMaximums[stage]);
+            }
+        }
+        return mMaximums[stage];
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.daemon;
+
+import android.os.MemoryFile;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Single-producer/single-consumer ring buffer of HID Report commands in shared memory (ashmem)
+ * that is read by the daemon without a socket write per command. The layout is documented at
+ * HIDC_IPC_CMD_HID_ATTACH_REPORT_RING in the "hidipc.h" file.
+ *
+ * Every slot carries the sequence number of its command (plus one) which is written after the
+ * command data, and the daemon writes the same number into the slot after it has executed the
+ * command. A stamp can only match the expected value after it was written completely, so the
+ * 32-bit values are safe although MemoryFile copies them without atomic instructions. The daemon
+ * sets the waiting flag when it has consumed all commands, the producer then has to send a
+ * doorbell command over the IPC socket.
+ */
+public class SharedReportRing {
+
+    private static final String TAG = "SharedReportRing";
+    private static final boolean V = false;
+
+
+    /** The number of slots in the ring (has to be a power of two). */
+    public static final int SLOT_COUNT = 256;
+
+    /** The size of a slot. */
+    public static final int SLOT_SIZE = 32;
+
+    /** The size of the header in front of the slots. */
+    private static final int HEADER_SIZE = 32;
+
+    /** The offset of the consumer waiting flag (1 byte) in the header. */
+    private static final int HEADER_WAITING_OFFSET = 0;
+
+    /** The offset of the publish stamp (written by the producer) in a slot. */
+    private static final int SLOT_PUBLISH_OFFSET = 0;
+
+    /** The offset of the consume stamp (written by the daemon) in a slot. */
+    private static final int SLOT_CONSUME_OFFSET = 4;
+
+    /** The offset of the command length (1 byte) in a slot. */
+    private static final int SLOT_LENGTH_OFFSET = 8;
+
+    /** The maximum size of a command in a slot. */
+    public static final int MAX_COMMAND_SIZE = SLOT_SIZE - SLOT_LENGTH_OFFSET - 1;
+
+    /** The total size of the shared memory. */
+    public static final int MEMORY_SIZE = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE;
+
+
+    private final MemoryFile mMemoryFile;
+    private final FileDescriptor mFileDescriptor;
+
+    private final byte[] mSlotBuffer = new byte[SLOT_SIZE];
+    private final byte[] mStampBuffer = new byte[4];
+    private final byte[] mFlagBuffer = new byte[1];
+
+    private long mSequence = 0;
+
+    /*
+     * A volatile write is a full memory barrier on multiprocessor systems. It orders the plain
+     * memory accesses of MemoryFile against the accesses of the daemon.
+     */
+    private volatile int mBarrier = 0;
+
+
+    private SharedReportRing(MemoryFile memoryFile, FileDescriptor fd) {
+        mMemoryFile = memoryFile;
+        mFileDescriptor = fd;
+    }
+
+
+    /**
+     * Creates the shared memory of a ring.
+     *
+     * @return the ring or null if the shared memory isn't available on this device.
+     */
+    public static SharedReportRing create() {
+        MemoryFile memoryFile = null;
+        try {
+            memoryFile = new MemoryFile("bluectrl_reports", MEMORY_SIZE);
+
+            // The file descriptor is needed to pass the memory to the daemon
+            final Method getFd = MemoryFile.class.getDeclaredMethod("getFileDescriptor");
+            getFd.setAccessible(true);
+            final FileDescriptor fd = (FileDescriptor)getFd.invoke(memoryFile);
+            if (fd == null) {
+                memoryFile.close();
+                return null;
+            }
+
+            return new SharedReportRing(memoryFile, fd);
+        } catch (Exception e) {
+            Log.w(TAG, "create shared report ring failed", e);
+            if (memoryFile != null) {
+                memoryFile.close();
+            }
+            return null;
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) |
+                ((buffer[offset + 1] & 0xff) << 16) |
+                ((buffer[offset + 2] & 0xff) << 8) |
+                (buffer[offset + 3] & 0xff);
+    }
+
+    private static int getSlotOffset(long sequence) {
+        return HEADER_SIZE + (int)(sequence & (SLOT_COUNT - 1)) * SLOT_SIZE;
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        return mFileDescriptor;
+    }
+
+    /** Checks whether the daemon has executed the previous command in the next slot. */
+    private boolean isNextSlotFree() throws IOException {
+        if (mSequence < SLOT_COUNT) {
+            return true;
+        }
+
+        mMemoryFile.readBytes(mStampBuffer, getSlotOffset(mSequence) + SLOT_CONSUME_OFFSET,
+                0, 4);
+        return (getInt(mStampBuffer, 0) == (int)(mSequence - SLOT_COUNT + 1));
+    }
+
+    /**
+     * Appends a HID Report command to the ring.
+     *
+     * @param data the array that contains the command.
+     * @param offset the offset of the command in the array.
+     * @param length the size of the command.
+     * @param timestampOffset the offset of an input trace write timestamp in the command or 0.
+     * @return true if the command was appended or false if the ring is full or the command is
+     *         too large.
+     */
+    public boolean offer(byte[] data, int offset, int length, int timestampOffset)
+            throws IOException {
+        if ((length > MAX_COMMAND_SIZE) || !isNextSlotFree()) {
+            return false;
+        }
+
+        final byte[] slot = mSlotBuffer;
+        slot[SLOT_LENGTH_OFFSET] = (byte)length;
+        System.arraycopy(data, offset, slot, SLOT_LENGTH_OFFSET + 1, length);
+
+        if (timestampOffset > 0) {
+            putInt(slot, SLOT_LENGTH_OFFSET + 1 + timestampOffset,
+                    (int)(System.nanoTime() / 1000));
+        }
+
+        final int slotOffset = getSlotOffset(mSequence);
+        mMemoryFile.writeBytes(slot, SLOT_LENGTH_OFFSET, slotOffset + SLOT_LENGTH_OFFSET,
+                length + 1);
+
+        // The command must be visible before the publish stamp
+        mBarrier = 0;
+
+        putInt(mStampBuffer, 0, (int)(mSequence + 1));
+        mMemoryFile.writeBytes(mStampBuffer, 0, slotOffset + SLOT_PUBLISH_OFFSET, 4);
+
+        mSequence++;
+        return true;
+    }
+
+    /**
+     * Checks whether the daemon waits for a doorbell command. The waiting flag is reset, so the
+     * caller has to send the doorbell command if the result is true.
+     */
+    public boolean takeDoorbell() throws IOException {
+        // The publish stamps must be visible before the flag is read
+        mBarrier = 0;
+
+        mMemoryFile.readBytes(mFlagBuffer, HEADER_WAITING_OFFSET, 0, 1);
+        if (mFlagBuffer[0] == 0) {
+            return false;
+        }
+
+        mFlagBuffer[0] = 0;
+        mMemoryFile.writeBytes(mFlagBuffer, 0, HEADER_WAITING_OFFSET, 1);
+        return true;
+    }
+
+    public void close() {
+        mMemoryFile.close();
+
+        if (V) Log.v(TAG, String.format("shared report ring closed (%d commands)", mSequence));
+    }
+}
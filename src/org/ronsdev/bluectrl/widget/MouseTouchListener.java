@@ -22,8 +22,12 @@ import org.ronsdev.bluectrl.HidMouse;
 import org.ronsdev.bluectrl.IntArrayList;
 
 import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.MotionEvent.PointerCoords;
 import android.view.View.OnTouchListener;
@@ -97,6 +101,9 @@ public class MouseTouchListener implements OnTouchListener {
      */
     private static final float MAX_TOUCH_END_PREDICT_DISTANCE_DP = 5.0f;
 
+    /** Maximum distance the pointer can be moved ahead of the touched point by the prediction. */
+    private static final float MAX_MOTION_PREDICT_DISTANCE_DP = 24.0f;
+
 
     /** Intermediate step count of the Smooth Scroll feature. */
     private static final int SMOOTH_SCROLL_STEPS = 16;
@@ -105,34 +112,46 @@ public class MouseTouchListener implements OnTouchListener {
     private static final float CHANGE_SCROLL_MODE_THRESHOLD_DP = 0.3f;
 
 
-    /** Repeat time (in ms) for the fling scroll loop. */
-    private static final int FLING_SCROLL_LOOP_TIME = 20;
+    /** Frame time (in ms) of the fling scroll loop. */
+    private static final int FLING_SCROLL_FRAME_TIME = 16;
+
+    /** Time constant (in ms) of the exponential fling scroll velocity decay. */
+    private static final float FLING_SCROLL_DECAY_TIME = 400.0f;
 
-    /** Minimum scroll distance that is required to start a fling scroll action. */
-    private static final float FLING_SCROLL_THRESHOLD_DP = 6.0f;
+    /** Minimum scroll velocity (per ms) that is required to start a fling scroll action. */
+    private static final float MIN_FLING_SCROLL_VELOCITY_DP = 0.3f;
 
-    /** Minimum scroll distance that is required to retain the previous fling scroll speed. */
-    private static final float MULTIPLE_FLING_SCROLL_THRESHOLD_DP = 24.0f;
+    /** Minimum scroll velocity (per ms) that is required to retain the previous fling scroll. */
+    private static final float MIN_MULTIPLE_FLING_SCROLL_VELOCITY_DP = 1.2f;
 
-    /** The amount of friction applied to the fling scroll movement. */
-    private static final float FLING_SCROLL_MOVE_FRICTION_DP = 0.8f;
+    /** Scroll velocity (per ms) below which a fling scroll action stops. */
+    private static final float FLING_SCROLL_STOP_VELOCITY_DP = 0.04f;
 
 
+    /*
+     * The settings are changed by the UI thread while the touch events may be processed by the
+     * touch processing Thread.
+     */
     private TouchpadView mTouchpadView;
-    private HidMouse mHidMouse;
-    private HidKeyboard mHidKeyboard;
+    private volatile HidMouse mHidMouse;
+    private volatile HidKeyboard mHidKeyboard;
 
-    private Rect mTouchpadAreaRect;
-    private float mMouseSensitivity;
-    private float mSmoothScrollSensitivity;
-    private float mStepScrollSensitivity;
-    private float mPinchZoomSensitivity;
-    private boolean mInvertScroll;
-    private boolean mFlingScroll;
+    private volatile Rect mTouchpadAreaRect;
+    private volatile float mSmoothScrollSensitivity;
+    private volatile float mStepScrollSensitivity;
+    private volatile float mPinchZoomSensitivity;
+    private volatile boolean mInvertScroll;
+    private volatile boolean mFlingScroll;
+    private volatile int mMotionPredictTime;
 
 
+    /** Runs the deferred actions on the Thread that processes the touch events. */
+    private final Handler mHandler;
+
     private final float mDisplayDensity;
 
+    private final PointerAcceleration mPointerAcceleration;
+
     private final float mMaxGestureEdgeThreshold;
     private final float mPointerEdgeMoveThreshold;
     private final float mMinGestureDistance;
@@ -141,10 +160,11 @@ public class MouseTouchListener implements OnTouchListener {
     private final float mMaxTapDistanceSquare;
     private final float mMaxMultitouchTapDistanceSquare;
     private final float mMaxTouchEndPredictDistanceSquare;
+    private final float mMaxMotionPredictDistance;
     private final float mChangeScrollModeThreshold;
-    private final float mFlingScrollThreshold;
-    private final float mMultipleFlingScrollThreshold;
-    private final float mFlingScrollMoveFriction;
+    private final float mMinFlingScrollVelocity;
+    private final float mMinMultipleFlingScrollVelocity;
+    private final float mFlingScrollStopVelocity;
 
     private IdleSubListener mIdleSubListener = new IdleSubListener();
     private GestureSubListener mGestureSubListener = new GestureSubListener();
@@ -154,7 +174,7 @@ public class MouseTouchListener implements OnTouchListener {
     private PinchZoomSubListener mPinchZoomSubListener = new PinchZoomSubListener();
 
     /** The current internal touch event listener that handles the touch events. */
-    private SubListener mSubListener;
+    private volatile SubListener mSubListener;
 
     /** A list with the currently tracked pointer IDs. */
     private IntArrayList mPointerIdList = new IntArrayList(10);
@@ -171,8 +191,8 @@ public class MouseTouchListener implements OnTouchListener {
     /** The previous touched point from the controlling pointer. */
     private PointerCoords mPreviousPoint = new PointerCoords();
 
-    /** The event time of the previous touched point. */
-    private long mPreviousEventTime = 0;
+    /** Tracks the velocity of the pointers including the historical samples of the events. */
+    private final VelocityTracker mVelocityTracker = VelocityTracker.obtain();
 
 
     private OnScrollModeChangedListener mOnScrollModeChangedListener;
@@ -180,10 +200,22 @@ public class MouseTouchListener implements OnTouchListener {
 
 
     public MouseTouchListener(TouchpadView touchpadView) {
+        this(touchpadView, Looper.myLooper());
+    }
+
+    /**
+     * Creates a listener whose touch events are delivered on the Thread of the given Looper.
+     */
+    public MouseTouchListener(TouchpadView touchpadView, Looper looper) {
         mTouchpadView = touchpadView;
+        mHandler = new Handler(looper);
 
         mSubListener = mIdleSubListener;
 
+        mDisplayDensity = mTouchpadView.getResources().getDisplayMetrics().density;
+
+        mPointerAcceleration = new PointerAcceleration(mDisplayDensity);
+
         setTouchpadAreaRect(new Rect(mTouchpadView.getLeft(),
                 mTouchpadView.getTop(),
                 mTouchpadView.getRight(),
@@ -193,8 +225,7 @@ public class MouseTouchListener implements OnTouchListener {
         setPinchZoomSensitivity(DeviceSettings.DEFAULT_PINCH_ZOOM_SENSITIVITY);
         setInvertScroll(DeviceSettings.DEFAULT_INVERT_SCROLL);
         setFlingScroll(DeviceSettings.DEFAULT_FLING_SCROLL);
-
-        mDisplayDensity = mTouchpadView.getResources().getDisplayMetrics().density;
+        setMotionPredictTime(DeviceSettings.DEFAULT_MOTION_PREDICT_TIME);
 
         mMaxGestureEdgeThreshold = (MAX_GESTURE_EDGE_THRESHOLD_DP * mDisplayDensity);
 
@@ -217,10 +248,11 @@ public class MouseTouchListener implements OnTouchListener {
         final float touchEndDistance = (MAX_TOUCH_END_PREDICT_DISTANCE_DP * mDisplayDensity);
         mMaxTouchEndPredictDistanceSquare = touchEndDistance * touchEndDistance;
 
+        mMaxMotionPredictDistance = MAX_MOTION_PREDICT_DISTANCE_DP * mDisplayDensity;
         mChangeScrollModeThreshold = CHANGE_SCROLL_MODE_THRESHOLD_DP * mDisplayDensity;
-        mFlingScrollThreshold = FLING_SCROLL_THRESHOLD_DP * mDisplayDensity;
-        mMultipleFlingScrollThreshold = MULTIPLE_FLING_SCROLL_THRESHOLD_DP * mDisplayDensity;
-        mFlingScrollMoveFriction = FLING_SCROLL_MOVE_FRICTION_DP * mDisplayDensity;
+        mMinFlingScrollVelocity = MIN_FLING_SCROLL_VELOCITY_DP * mDisplayDensity;
+        mMinMultipleFlingScrollVelocity = MIN_MULTIPLE_FLING_SCROLL_VELOCITY_DP * mDisplayDensity;
+        mFlingScrollStopVelocity = FLING_SCROLL_STOP_VELOCITY_DP * mDisplayDensity;
     }
 
 
@@ -298,10 +330,18 @@ public class MouseTouchListener implements OnTouchListener {
     }
 
     public float getMouseSensitivity() {
-        return mMouseSensitivity;
+        return mPointerAcceleration.getSensitivity();
     }
     public void setMouseSensitivity(float value) {
-        mMouseSensitivity = value;
+        mPointerAcceleration.setSensitivity(value);
+    }
+
+    /** Gets the pointer acceleration profile (DeviceSettings.POINTER_ACCELERATION_*). */
+    public String getPointerAcceleration() {
+        return mPointerAcceleration.getProfile();
+    }
+    public void setPointerAcceleration(String value) {
+        mPointerAcceleration.setProfile(value);
     }
 
     public float getScrollSensitivity() {
@@ -333,6 +373,14 @@ public class MouseTouchListener implements OnTouchListener {
         mFlingScroll = value;
     }
 
+    /** Gets the time in ms the pointer movement is predicted ahead (0 if disabled). */
+    public int getMotionPredictTime() {
+        return mMotionPredictTime;
+    }
+    public void setMotionPredictTime(int value) {
+        mMotionPredictTime = value;
+    }
+
     public int getScrollMode() {
         if (mSubListener instanceof ScrollSubListener) {
             return ((ScrollSubListener)mSubListener).getScrollMode();
@@ -355,6 +403,15 @@ public class MouseTouchListener implements OnTouchListener {
         mScrollSubListener.setScrollMode(scrollMode);
     }
 
+    /**
+     * Cancels the pending timers and frees the velocity tracker. The listener must not be used
+     * anymore afterwards. Has to be called on the Thread of the listener.
+     */
+    public void release() {
+        mHandler.removeCallbacksAndMessages(null);
+        mVelocityTracker.recycle();
+    }
+
     /**
      * Changes the currently used touch listener mode and immediately redirects the touch event.
      */
@@ -382,7 +439,6 @@ public class MouseTouchListener implements OnTouchListener {
 
     private void setPreviousEventData(MotionEvent event, int pointerIndex) {
         event.getPointerCoords(pointerIndex, mPreviousPoint);
-        mPreviousEventTime = event.getEventTime();
     }
 
     private int getMainPointerIndex(MotionEvent event) {
@@ -423,6 +479,11 @@ public class MouseTouchListener implements OnTouchListener {
             return false;
         }
 
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            mVelocityTracker.clear();
+        }
+        mVelocityTracker.addMovement(event);
+
         switch (event.getActionMasked()) {
         case MotionEvent.ACTION_DOWN:
         case MotionEvent.ACTION_POINTER_DOWN:
@@ -869,11 +930,11 @@ public class MouseTouchListener implements OnTouchListener {
         }
 
         private void startDeferredClick() {
-            mTouchpadView.postDelayed(mDeferredClickRunnable, MAX_TAP_GAP_TIME);
+            mHandler.postDelayed(mDeferredClickRunnable, MAX_TAP_GAP_TIME);
         }
 
         private void stopDeferredClick() {
-            mTouchpadView.removeCallbacks(mDeferredClickRunnable);
+            mHandler.removeCallbacks(mDeferredClickRunnable);
         }
 
         private void executeDoubleClick() {
@@ -901,12 +962,6 @@ public class MouseTouchListener implements OnTouchListener {
         /** {@code true} if the edge movement should be faster than normal. */
         private boolean mUseFastEdgeMovement;
 
-        /** Stores the next movement on the X-axis. */
-        private float mMoveX;
-
-        /** Stores the next movement on the Y-axis. */
-        private float mMoveY;
-
         /** See {@link PointerTouchListener#isTouchEndPredicted} */
         private boolean mIsTouchEndPredicted;
 
@@ -916,21 +971,30 @@ public class MouseTouchListener implements OnTouchListener {
         /** The touched point when a touch end was predicted. */
         private PointerCoords mTouchEndPredictPoint = new PointerCoords();
 
+        /** The predicted movement on the X-axis that has been reported ahead of the touch. */
+        private int mPredictedMoveX;
+
+        /** The predicted movement on the Y-axis that has been reported ahead of the touch. */
+        private int mPredictedMoveY;
+
 
         @Override
         protected void resetMembers() {
             mDragButton = 0;
             mUseFastEdgeMovement = false;
-            mMoveX = 0f;
-            mMoveY = 0f;
+            mPointerAcceleration.reset();
             mIsTouchEndPredicted = false;
             mTouchEndPredictTime = 0;
+            mPredictedMoveX = 0;
+            mPredictedMoveY = 0;
         }
 
         @Override
         protected void stop() {
             super.stop();
 
+            retractPredictedMovement();
+
             if ((mHidMouse != null) && (mDragButton > 0)) {
                 mHidMouse.releaseButton(mDragButton);
                 mDragButton = 0;
@@ -945,6 +1009,9 @@ public class MouseTouchListener implements OnTouchListener {
         @Override
         protected void onTouchPointerUp(View view, MotionEvent event) {
             if (mPointerIdList.isEmpty()) {
+                // The pointer has to stop at the real touch end, e.g. to drop a dragged object
+                retractPredictedMovement();
+
                 if ((mHidMouse != null) && (mDragButton > 0)) {
                     mHidMouse.releaseButton(mDragButton);
                     mDragButton = 0;
@@ -961,26 +1028,85 @@ public class MouseTouchListener implements OnTouchListener {
                 return;
             }
 
-            mMoveX += event.getX(pointerIndex) - mPreviousPoint.x;
-            mMoveY += event.getY(pointerIndex) - mPreviousPoint.y;
+            // Every sample is passed to the acceleration for an accurate velocity
+            float previousX = mPreviousPoint.x;
+            float previousY = mPreviousPoint.y;
+            final int historySize = event.getHistorySize();
+            for (int pos = 0; pos < historySize; pos++) {
+                final float x = event.getHistoricalX(pointerIndex, pos);
+                final float y = event.getHistoricalY(pointerIndex, pos);
+                mPointerAcceleration.addMovement(x - previousX, y - previousY,
+                        event.getHistoricalEventTime(pos));
+                previousX = x;
+                previousY = y;
+            }
+            mPointerAcceleration.addMovement(event.getX(pointerIndex) - previousX,
+                    event.getY(pointerIndex) - previousY,
+                    event.getEventTime());
+
+            if (mHidMouse == null) {
+                return;
+            }
 
-            if ((mHidMouse != null) && !isTouchEndPredicted(event, pointerIndex)) {
+            if (isTouchEndPredicted(event, pointerIndex)) {
+                // A predicted movement would overshoot when the finger is lifted
+                retractPredictedMovement();
+            } else {
                 if (mDragButton > 0) {
                     addPointerEdgeMovement(view, event, pointerIndex);
                 }
 
-                final int reportMoveX = convertTouchDeltaValue(mMoveX);
-                final int reportMoveY = convertTouchDeltaValue(mMoveY);
+                // The fraction of a pointer unit stays accumulated for the next movement
+                int reportMoveX = mPointerAcceleration.takeMoveX();
+                int reportMoveY = mPointerAcceleration.takeMoveY();
+
+                // Only the change of the prediction is reported, which also corrects the
+                // previous prediction with the new sample
+                if (mMotionPredictTime > 0) {
+                    final int pointerId = event.getPointerId(pointerIndex);
+                    mVelocityTracker.computeCurrentVelocity(1);
+                    final int predictedMoveX = getPredictedMove(
+                            mVelocityTracker.getXVelocity(pointerId));
+                    final int predictedMoveY = getPredictedMove(
+                            mVelocityTracker.getYVelocity(pointerId));
+                    reportMoveX += predictedMoveX - mPredictedMoveX;
+                    reportMoveY += predictedMoveY - mPredictedMoveY;
+                    mPredictedMoveX = predictedMoveX;
+                    mPredictedMoveY = predictedMoveY;
+                }
+
                 if ((reportMoveX != 0) || (reportMoveY != 0)) {
                     mHidMouse.movePointer(reportMoveX, reportMoveY);
-
-                    // Subtract only the actually moved value
-                    mMoveX -= convertReportDeltaValue(reportMoveX);
-                    mMoveY -= convertReportDeltaValue(reportMoveY);
                 }
             }
         }
 
+        /**
+         * Gets the pointer movement that is expected within the prediction time by extrapolating
+         * the touch velocity (pixels per ms). The distance is accelerated like the actual
+         * movement, otherwise the prediction falls short on fast movements.
+         */
+        private int getPredictedMove(float velocity) {
+            float distance = velocity * mMotionPredictTime;
+            if (distance > mMaxMotionPredictDistance) {
+                distance = mMaxMotionPredictDistance;
+            } else if (distance < -mMaxMotionPredictDistance) {
+                distance = -mMaxMotionPredictDistance;
+            }
+
+            return Math.round(distance / mDisplayDensity * mPointerAcceleration.getSensitivity() *
+                    mPointerAcceleration.getCurrentGain());
+        }
+
+        /** Moves the pointer back by the predicted movement that has been reported. */
+        private void retractPredictedMovement() {
+            if ((mHidMouse != null) && ((mPredictedMoveX != 0) || (mPredictedMoveY != 0))) {
+                mHidMouse.movePointer(-mPredictedMoveX, -mPredictedMoveY);
+            }
+            mPredictedMoveX = 0;
+            mPredictedMoveY = 0;
+        }
+
         public void setDragButton(int dragButton) {
             setDragButton(dragButton, false);
         }
@@ -1002,20 +1128,6 @@ public class MouseTouchListener implements OnTouchListener {
             mUseFastEdgeMovement = useFastEdgeMovement;
         }
 
-        /** Converts the touch move value to the HID Report pointer move value. */
-        private int convertTouchDeltaValue(float value) {
-            return (int)(value / mDisplayDensity * mMouseSensitivity);
-        }
-
-        /** Converts the HID Report pointer move value to the touch move value. */
-        private float convertReportDeltaValue(int value) {
-            if (mMouseSensitivity != 0) {
-                return (value * mDisplayDensity / mMouseSensitivity);
-            } else {
-                return 0.0f;
-            }
-        }
-
         /**
          * Adds a constant movement if the touch event is at an edge of the view.
          * This is especially useful if a drag action is active and the target hasn't been reached
@@ -1027,17 +1139,22 @@ public class MouseTouchListener implements OnTouchListener {
             final float edgeMoveStep = (mUseFastEdgeMovement ? FAST_POINTER_EDGE_MOVE_STEP :
                 POINTER_EDGE_MOVE_STEP);
 
+            float moveX = 0f;
+            float moveY = 0f;
+
             if (isTopEdge(rect, event, pointerIndex, threshold)) {
-                mMoveY -= edgeMoveStep;
+                moveY = -edgeMoveStep;
             } else if (isBottomEdge(rect, event, pointerIndex, threshold)) {
-                mMoveY += edgeMoveStep;
+                moveY = edgeMoveStep;
             }
 
             if (isLeftEdge(rect, event, pointerIndex, threshold)) {
-                mMoveX -= edgeMoveStep;
+                moveX = -edgeMoveStep;
             } else if (isRightEdge(rect, event, pointerIndex, threshold)) {
-                mMoveX += edgeMoveStep;
+                moveX = edgeMoveStep;
             }
+
+            mPointerAcceleration.addConstantMovement(moveX, moveY);
         }
 
         /**
@@ -1100,17 +1217,23 @@ public class MouseTouchListener implements OnTouchListener {
         /** Stores the next movement on the X-axis. */
         private float mMoveX;
 
-        /** The current fling scroll movement on the Y-axis. */
-        private float mFlingScrollMoveY;
+        /** The current fling scroll velocity (pixels per ms) on the Y-axis. */
+        private float mFlingScrollVelocityY;
+
+        /** The current fling scroll velocity (pixels per ms) on the X-axis. */
+        private float mFlingScrollVelocityX;
 
-        /** The current fling scroll movement on the X-axis. */
-        private float mFlingScrollMoveX;
+        /** The retained fling scroll velocity on the Y-axis from the previous fling scroll. */
+        private float mRetainedFlingScrollVelocityY;
 
-        /** The retained fling scroll movement on the Y-axis from the previous fling scroll. */
-        private float mRetainedFlingScrollMoveY;
+        /** The retained fling scroll velocity on the X-axis from the previous fling scroll. */
+        private float mRetainedFlingScrollVelocityX;
 
-        /** The retained fling scroll movement on the X-axis from the previous fling scroll. */
-        private float mRetainedFlingScrollMoveX;
+        /** The uptime of the previous fling scroll frame. */
+        private long mLastFlingScrollTime;
+
+        /** The scheduled uptime of the next fling scroll frame. */
+        private long mNextFlingScrollTime;
 
 
         private final Runnable mFlingScrollRunnable = new Runnable()
@@ -1118,13 +1241,21 @@ public class MouseTouchListener implements OnTouchListener {
              @Override
              public void run() {
                  if (mTouchpadView.isShown() && isActive() &&
-                         checkFlingScrollMoveThreshold(0)) {
-                     mFlingScrollMoveY = subtractFlingScrollMoveFriction(mFlingScrollMoveY);
-                     mFlingScrollMoveX = subtractFlingScrollMoveFriction(mFlingScrollMoveX);
-
-                     scrollWheel(mFlingScrollMoveY, mFlingScrollMoveX);
-
-                     mTouchpadView.postDelayed(mFlingScrollRunnable, FLING_SCROLL_LOOP_TIME);
+                         checkFlingScrollVelocity(mFlingScrollStopVelocity)) {
+                     final long now = SystemClock.uptimeMillis();
+                     final long elapsed = now - mLastFlingScrollTime;
+                     mLastFlingScrollTime = now;
+
+                     // The scrolled distance is the integral of the decaying velocity over the
+                     // real elapsed time, so a late frame doesn't slow down the fling scroll
+                     final float decay = (float)Math.exp(-elapsed / FLING_SCROLL_DECAY_TIME);
+                     final float distanceFactor = FLING_SCROLL_DECAY_TIME * (1.0f - decay);
+                     scrollWheel(mFlingScrollVelocityY * distanceFactor,
+                             mFlingScrollVelocityX * distanceFactor);
+                     mFlingScrollVelocityY *= decay;
+                     mFlingScrollVelocityX *= decay;
+
+                     scheduleFlingScrollFrame(now);
                  } else {
                      changeSubListener(mIdleSubListener, null);
                  }
@@ -1135,16 +1266,16 @@ public class MouseTouchListener implements OnTouchListener {
         @Override
         protected void resetMembers() {
             mScrollMode = TouchpadView.SCROLL_MODE_VERTICAL;
-            mRetainedFlingScrollMoveY = 0.0f;
-            mRetainedFlingScrollMoveX = 0.0f;
+            mRetainedFlingScrollVelocityY = 0.0f;
+            mRetainedFlingScrollVelocityX = 0.0f;
             resetMoveValues();
         }
 
         private void resetMoveValues() {
             mMoveY = 0.0f;
             mMoveX = 0.0f;
-            mFlingScrollMoveY = 0.0f;
-            mFlingScrollMoveX = 0.0f;
+            mFlingScrollVelocityY = 0.0f;
+            mFlingScrollVelocityX = 0.0f;
         }
 
         @Override
@@ -1173,8 +1304,8 @@ public class MouseTouchListener implements OnTouchListener {
         @Override
         protected void onTouchPointerDown(View view, MotionEvent event) {
             if (mPointerIdList.size() == 1) {
-                mRetainedFlingScrollMoveY = mFlingScrollMoveY;
-                mRetainedFlingScrollMoveX = mFlingScrollMoveX;
+                mRetainedFlingScrollVelocityY = mFlingScrollVelocityY;
+                mRetainedFlingScrollVelocityX = mFlingScrollVelocityX;
                 resetMoveValues();
             }
         }
@@ -1182,7 +1313,13 @@ public class MouseTouchListener implements OnTouchListener {
         @Override
         protected void onTouchPointerUp(View view, MotionEvent event) {
             if (mPointerIdList.isEmpty()) {
-                if (mFlingScroll && checkFlingScrollMoveThreshold(mFlingScrollThreshold)) {
+                // The up event can contain samples after the last move event
+                mVelocityTracker.computeCurrentVelocity(1);
+                final int pointerId = event.getPointerId(event.getActionIndex());
+                mFlingScrollVelocityY = mVelocityTracker.getYVelocity(pointerId);
+                mFlingScrollVelocityX = mVelocityTracker.getXVelocity(pointerId);
+
+                if (mFlingScroll && checkFlingScrollVelocity(mMinFlingScrollVelocity)) {
                     startFlingScroll();
                 } else {
                     changeSubListener(mIdleSubListener, event);
@@ -1198,14 +1335,18 @@ public class MouseTouchListener implements OnTouchListener {
             }
 
             final float deltaY = event.getY(pointerIndex) - mPreviousPoint.y;
-            final float deltaYPerMs = getDeltaPerMs(event, deltaY);
             final float deltaX = event.getX(pointerIndex) - mPreviousPoint.x;
-            final float deltaXPerMs = getDeltaPerMs(event, deltaX);
+
+            // The velocity tracker also considers the historical samples of the event
+            mVelocityTracker.computeCurrentVelocity(1);
+            final int pointerId = event.getPointerId(pointerIndex);
+            final float deltaYPerMs = mVelocityTracker.getYVelocity(pointerId);
+            final float deltaXPerMs = mVelocityTracker.getXVelocity(pointerId);
 
             reconsiderScrollMode(deltaYPerMs, deltaXPerMs);
 
-            mFlingScrollMoveY = deltaYPerMs * FLING_SCROLL_LOOP_TIME;
-            mFlingScrollMoveX = deltaXPerMs * FLING_SCROLL_LOOP_TIME;
+            mFlingScrollVelocityY = deltaYPerMs;
+            mFlingScrollVelocityX = deltaXPerMs;
 
             scrollWheel(deltaY, deltaX);
         }
@@ -1248,17 +1389,6 @@ public class MouseTouchListener implements OnTouchListener {
                     (mScrollMode == TouchpadView.SCROLL_MODE_ALL));
         }
 
-        /** Gets a movement delta per millisecond value. */
-        private float getDeltaPerMs(MotionEvent event, float deltaValue) {
-            if (mPreviousEventTime > 0) {
-                final long timespan = event.getEventTime() - mPreviousEventTime;
-                if (timespan > 0) {
-                    return deltaValue / timespan;
-                }
-            }
-            return 0.0f;
-        }
-
         private float getSensitivity(boolean smooth) {
             if (smooth) {
                 return mSmoothScrollSensitivity;
@@ -1314,39 +1444,44 @@ public class MouseTouchListener implements OnTouchListener {
             }
         }
 
-        /** Returns true if one of the fling scroll move values is bigger than the threshold. */
-        private boolean checkFlingScrollMoveThreshold(float threshold) {
-            return ((isVerticalScrollActive() && (Math.abs(mFlingScrollMoveY) > threshold)) ||
-                    (isHorizontalScrollActive() && (Math.abs(mFlingScrollMoveX) > threshold)));
+        /** Returns true if one of the fling scroll velocities is bigger than the threshold. */
+        private boolean checkFlingScrollVelocity(float threshold) {
+            return ((isVerticalScrollActive() && (Math.abs(mFlingScrollVelocityY) > threshold)) ||
+                    (isHorizontalScrollActive() && (Math.abs(mFlingScrollVelocityX) > threshold)));
         }
 
         private void startFlingScroll() {
-            if (checkFlingScrollMoveThreshold(mMultipleFlingScrollThreshold)) {
-                if (((mFlingScrollMoveY > 0) && (mRetainedFlingScrollMoveY > 0)) ||
-                        ((mFlingScrollMoveY < 0) && (mRetainedFlingScrollMoveY < 0))) {
-                    mFlingScrollMoveY += mRetainedFlingScrollMoveY;
+            if (checkFlingScrollVelocity(mMinMultipleFlingScrollVelocity)) {
+                if (((mFlingScrollVelocityY > 0) && (mRetainedFlingScrollVelocityY > 0)) ||
+                        ((mFlingScrollVelocityY < 0) && (mRetainedFlingScrollVelocityY < 0))) {
+                    mFlingScrollVelocityY += mRetainedFlingScrollVelocityY;
                 }
-                if (((mFlingScrollMoveX > 0) && (mRetainedFlingScrollMoveX > 0)) ||
-                        ((mFlingScrollMoveX < 0) && (mRetainedFlingScrollMoveX < 0))) {
-                    mFlingScrollMoveX += mRetainedFlingScrollMoveX;
+                if (((mFlingScrollVelocityX > 0) && (mRetainedFlingScrollVelocityX > 0)) ||
+                        ((mFlingScrollVelocityX < 0) && (mRetainedFlingScrollVelocityX < 0))) {
+                    mFlingScrollVelocityX += mRetainedFlingScrollVelocityX;
                 }
             }
 
-            mTouchpadView.postDelayed(mFlingScrollRunnable, FLING_SCROLL_LOOP_TIME);
+            final long now = SystemClock.uptimeMillis();
+            mLastFlingScrollTime = now;
+            mNextFlingScrollTime = now;
+            scheduleFlingScrollFrame(now);
         }
 
-        private void stopFlingScroll() {
-            mTouchpadView.removeCallbacks(mFlingScrollRunnable);
+        /**
+         * Schedules the next fling scroll frame on a fixed time grid so the delay of a frame
+         * doesn't add up.
+         */
+        private void scheduleFlingScrollFrame(long now) {
+            do {
+                mNextFlingScrollTime += FLING_SCROLL_FRAME_TIME;
+            } while (mNextFlingScrollTime <= now);
+
+            mHandler.postDelayed(mFlingScrollRunnable, mNextFlingScrollTime - now);
         }
 
-        private float subtractFlingScrollMoveFriction(float moveValue) {
-            if (Math.abs(moveValue) <= mFlingScrollMoveFriction) {
-                return 0.0f;
-            } else if (moveValue < 0) {
-                return (moveValue + mFlingScrollMoveFriction);
-            } else {
-                return (moveValue - mFlingScrollMoveFriction);
-            }
+        private void stopFlingScroll() {
+            mHandler.removeCallbacks(mFlingScrollRunnable);
         }
     }
 
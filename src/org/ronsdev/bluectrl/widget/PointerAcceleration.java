@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.widget;
+
+import org.ronsdev.bluectrl.DeviceSettings;
+
+/**
+ * Converts touch movements to Mouse pointer movements.
+ *
+ * The touch movement is scaled by the sensitivity and a velocity dependent gain of the selected
+ * acceleration profile. The result is accumulated as a fixed-point value with 8 fractional bits,
+ * so movements that are smaller than a pointer unit aren't lost and the rounding errors don't
+ * add up over a long movement.
+ */
+public class PointerAcceleration {
+
+    /** The number of fractional bits of the accumulated movement. */
+    private static final int FRACTION_BITS = 8;
+
+    /** The fixed-point value of a single pointer unit. */
+    private static final int ONE = 1 << FRACTION_BITS;
+
+    /** The weight of a new velocity sample in the smoothed velocity. */
+    private static final float VELOCITY_SMOOTHING = 0.4f;
+
+    /** A pause in milliseconds after which the previous velocity is discarded. */
+    private static final long VELOCITY_RESET_TIME = 100;
+
+    /*
+     * The gain curve of the Windows profile as pairs of velocity (dp per ms) and gain. The gain
+     * is interpolated linearly between the points and constant after the last point like the
+     * "Enhance pointer precision" curve.
+     */
+    private static final float[] WINDOWS_CURVE_VELOCITY = new float[] { 0.0f, 0.2f, 0.6f, 1.5f };
+    private static final float[] WINDOWS_CURVE_GAIN = new float[] { 0.5f, 1.0f, 1.6f, 2.2f };
+
+    /*
+     * The parameters of the adaptive profile that follows the libinput touchpad acceleration:
+     * slow movements are decelerated, the gain is constant up to the threshold and increases
+     * linearly up to the maximum gain above it.
+     */
+    private static final float ADAPTIVE_DECELERATION_VELOCITY = 0.1f;
+    private static final float ADAPTIVE_MIN_GAIN = 0.4f;
+    private static final float ADAPTIVE_THRESHOLD_VELOCITY = 0.4f;
+    private static final float ADAPTIVE_INCLINE = 1.1f;
+    private static final float ADAPTIVE_MAX_GAIN = 3.0f;
+
+
+    private final float mDisplayDensity;
+
+    /* The settings may be changed by another Thread than the one that adds the movements. */
+    private volatile float mSensitivity = DeviceSettings.DEFAULT_MOUSE_SENSITIVITY;
+    private volatile String mProfile = DeviceSettings.DEFAULT_POINTER_ACCELERATION;
+
+    /** The accumulated movement on the X-axis as a fixed-point value. */
+    private int mAccumulatedX;
+
+    /** The accumulated movement on the Y-axis as a fixed-point value. */
+    private int mAccumulatedY;
+
+    /** The smoothed touch velocity in dp per ms. */
+    private float mVelocity;
+
+    /** The time of the previous movement or -1 if there is none. */
+    private long mLastTime;
+
+
+    public PointerAcceleration(float displayDensity) {
+        mDisplayDensity = displayDensity;
+        reset();
+    }
+
+
+    public float getSensitivity() {
+        return mSensitivity;
+    }
+    public void setSensitivity(float value) {
+        mSensitivity = value;
+    }
+
+    /** Gets the acceleration profile (one of the DeviceSettings.POINTER_ACCELERATION_* values). */
+    public String getProfile() {
+        return mProfile;
+    }
+    public void setProfile(String value) {
+        mProfile = value;
+    }
+
+    /** Discards the accumulated movement and the velocity. */
+    public void reset() {
+        mAccumulatedX = 0;
+        mAccumulatedY = 0;
+        mVelocity = 0f;
+        mLastTime = -1;
+    }
+
+    private static float interpolate(float[] xValues, float[] yValues, float x) {
+        final int last = xValues.length - 1;
+        if (x >= xValues[last]) {
+            return yValues[last];
+        }
+
+        for (int i = 1; i <= last; i++) {
+            if (x < xValues[i]) {
+                final float ratio = (x - xValues[i - 1]) / (xValues[i] - xValues[i - 1]);
+                return yValues[i - 1] + ratio * (yValues[i] - yValues[i - 1]);
+            }
+        }
+
+        return yValues[last];
+    }
+
+    /** Gets the gain of the current profile for the given velocity in dp per ms. */
+    private float getGain(float velocity) {
+        if (DeviceSettings.POINTER_ACCELERATION_WINDOWS.equals(mProfile)) {
+            return interpolate(WINDOWS_CURVE_VELOCITY, WINDOWS_CURVE_GAIN, velocity);
+        } else if (DeviceSettings.POINTER_ACCELERATION_ADAPTIVE.equals(mProfile)) {
+            if (velocity < ADAPTIVE_DECELERATION_VELOCITY) {
+                return ADAPTIVE_MIN_GAIN + (1.0f - ADAPTIVE_MIN_GAIN) *
+                        (velocity / ADAPTIVE_DECELERATION_VELOCITY);
+            } else if (velocity < ADAPTIVE_THRESHOLD_VELOCITY) {
+                return 1.0f;
+            } else {
+                return Math.min(ADAPTIVE_MAX_GAIN,
+                        1.0f + ADAPTIVE_INCLINE * (velocity - ADAPTIVE_THRESHOLD_VELOCITY));
+            }
+        } else {
+            return 1.0f;
+        }
+    }
+
+    /**
+     * Gets the gain of the current profile for the velocity of the previous movements. Has to be
+     * called on the Thread that adds the movements.
+     */
+    public float getCurrentGain() {
+        return getGain(mVelocity);
+    }
+
+    private void updateVelocity(float deltaX, float deltaY, long time) {
+        if ((mLastTime < 0) || ((time - mLastTime) > VELOCITY_RESET_TIME)) {
+            mVelocity = 0f;
+        } else if (time > mLastTime) {
+            final float distance = (float)Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+            final float velocity = distance / mDisplayDensity / (time - mLastTime);
+            mVelocity += VELOCITY_SMOOTHING * (velocity - mVelocity);
+        }
+
+        // Samples with the same time keep the previous velocity
+        if (time > mLastTime) {
+            mLastTime = time;
+        }
+    }
+
+    /**
+     * Adds an accelerated touch movement.
+     *
+     * @param deltaX the touch movement on the X-axis in pixels.
+     * @param deltaY the touch movement on the Y-axis in pixels.
+     * @param time the time of the touch sample in ms.
+     */
+    public void addMovement(float deltaX, float deltaY, long time) {
+        updateVelocity(deltaX, deltaY, time);
+
+        final float factor = getGain(mVelocity) * mSensitivity / mDisplayDensity * ONE;
+        mAccumulatedX += Math.round(deltaX * factor);
+        mAccumulatedY += Math.round(deltaY * factor);
+    }
+
+    /**
+     * Adds a touch movement in pixels without acceleration (e.g. a constant edge movement).
+     */
+    public void addConstantMovement(float deltaX, float deltaY) {
+        final float factor = mSensitivity / mDisplayDensity * ONE;
+        mAccumulatedX += Math.round(deltaX * factor);
+        mAccumulatedY += Math.round(deltaY * factor);
+    }
+
+    /** Removes and returns the whole pointer units of the accumulated movement on the X-axis. */
+    public int takeMoveX() {
+        final int result = mAccumulatedX / ONE;
+        mAccumulatedX -= result * ONE;
+        return result;
+    }
+
+    /** Removes and returns the whole pointer units of the accumulated movement on the Y-axis. */
+    public int takeMoveY() {
+        final int result = mAccumulatedY / ONE;
+        mAccumulatedY -= result * ONE;
+        return result;
+    }
+}
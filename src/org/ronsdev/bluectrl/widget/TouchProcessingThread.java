@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.widget;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Background Thread that recognizes the touchpad gestures and generates the Mouse Reports, so
+ * that the pointer movement doesn't depend on the load of the UI thread.
+ *
+ * The Thread is shared by all touchpads and runs as long as the process.
+ */
+public class TouchProcessingThread extends HandlerThread {
+
+    private static final String TAG = "TouchProcessingThread";
+    private static final boolean V = false;
+
+
+    private static TouchProcessingThread sThread = null;
+
+
+    private TouchProcessingThread() {
+        super("TouchProcessing");
+    }
+
+
+    /** Gets the Looper of the Thread and starts the Thread if necessary. */
+    public static synchronized Looper getProcessingLooper() {
+        if (sThread == null) {
+            sThread = new TouchProcessingThread();
+            sThread.start();
+        }
+
+        return sThread.getLooper();
+    }
+
+    /** Checks whether the calling thread is the touch processing Thread. */
+    public static boolean isProcessingThread() {
+        final Looper looper = Looper.myLooper();
+        return ((looper != null) && (looper == getProcessingLooper()));
+    }
+
+    @Override
+    protected void onLooperPrepared() {
+        // A higher priority than the UI thread isn't allowed on every device
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        } catch (SecurityException e) {
+            Log.w(TAG, "raise touch processing thread priority failed", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "raise touch processing thread priority failed", e);
+        }
+
+        if (V) Log.v(TAG, "TouchProcessingThread started");
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.widget;
+
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.MotionEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the touch events of a TouchpadView into a compact binary trace that can be replayed
+ * with the TouchTraceReplayer.
+ *
+ * Trace format (big-endian):
+ * Header: magic, version, touchpad area rect (4 ints), mouse, scroll and pinch-to-zoom
+ * sensitivity (3 floats), invert scroll and fling scroll (2 booleans), pointer acceleration
+ * profile (UTF string, since version 2).
+ * Every event: action (short), event and down time in ms since the first event (2 ints),
+ * pointer count (byte), history size (byte), the historical samples (time as int and the
+ * pointer values) followed by the current sample. A sample contains the ID (byte), x, y,
+ * pressure and size (4 floats) of every pointer.
+ */
+public class TouchTraceRecorder {
+
+    private static final String TAG = "TouchTraceRecorder";
+    private static final boolean V = false;
+
+
+    /** The magic number at the start of a trace ("BCTT"). */
+    static final int TRACE_MAGIC = 0x42435454;
+
+    /** The version of the trace format. */
+    static final int TRACE_VERSION = 2;
+
+    /** The maximum number of historical samples that are recorded per event. */
+    static final int MAX_HISTORY_SIZE = 255;
+
+
+    private DataOutputStream mOutStream;
+    private long mStartTime = -1;
+    private int mEventCount = 0;
+
+
+    /**
+     * Creates a recorder and writes the trace header with the current settings of the touchpad.
+     */
+    public TouchTraceRecorder(OutputStream outputStream, TouchpadView touchpadView)
+            throws IOException {
+        mOutStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+
+        final Rect rect = touchpadView.getTouchpadAreaRect();
+
+        mOutStream.writeInt(TRACE_MAGIC);
+        mOutStream.writeShort(TRACE_VERSION);
+        mOutStream.writeInt(rect.left);
+        mOutStream.writeInt(rect.top);
+        mOutStream.writeInt(rect.right);
+        mOutStream.writeInt(rect.bottom);
+        mOutStream.writeFloat(touchpadView.getMouseSensitivity());
+        mOutStream.writeFloat(touchpadView.getScrollSensitivity());
+        mOutStream.writeFloat(touchpadView.getPinchZoomSensitivity());
+        mOutStream.writeBoolean(touchpadView.getInvertScroll());
+        mOutStream.writeBoolean(touchpadView.getFlingScroll());
+        mOutStream.writeUTF(touchpadView.getPointerAcceleration());
+    }
+
+
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    private void writePointers(MotionEvent event, int pos) throws IOException {
+        final int pointerCount = event.getPointerCount();
+        final boolean isHistorical = (pos < event.getHistorySize());
+
+        for (int i = 0; i < pointerCount; i++) {
+            mOutStream.writeByte(event.getPointerId(i));
+            if (isHistorical) {
+                mOutStream.writeFloat(event.getHistoricalX(i, pos));
+                mOutStream.writeFloat(event.getHistoricalY(i, pos));
+                mOutStream.writeFloat(event.getHistoricalPressure(i, pos));
+                mOutStream.writeFloat(event.getHistoricalSize(i, pos));
+            } else {
+                mOutStream.writeFloat(event.getX(i));
+                mOutStream.writeFloat(event.getY(i));
+                mOutStream.writeFloat(event.getPressure(i));
+                mOutStream.writeFloat(event.getSize(i));
+            }
+        }
+    }
+
+    /**
+     * Appends a touch event to the trace. The TouchpadView calls this method on the touch
+     * processing Thread, so the trace is locked against a concurrent close().
+     */
+    public synchronized void record(MotionEvent event) {
+        if (mOutStream == null) {
+            return;
+        }
+
+        if (mStartTime < 0) {
+            mStartTime = event.getDownTime();
+        }
+
+        final int historySize = Math.min(event.getHistorySize(), MAX_HISTORY_SIZE);
+        final int historyOffset = event.getHistorySize() - historySize;
+
+        try {
+            mOutStream.writeShort(event.getAction());
+            mOutStream.writeInt((int)(event.getEventTime() - mStartTime));
+            mOutStream.writeInt((int)(event.getDownTime() - mStartTime));
+            mOutStream.writeByte(event.getPointerCount());
+            mOutStream.writeByte(historySize);
+
+            for (int h = historyOffset; h < event.getHistorySize(); h++) {
+                mOutStream.writeInt((int)(event.getHistoricalEventTime(h) - mStartTime));
+                writePointers(event, h);
+            }
+            writePointers(event, event.getHistorySize());
+
+            mEventCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "write touch trace failed", e);
+            close();
+        }
+    }
+
+    /** Writes the buffered events and closes the trace. */
+    public synchronized void close() {
+        if (mOutStream == null) {
+            return;
+        }
+
+        try {
+            mOutStream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close touch trace failed", e);
+        }
+        mOutStream = null;
+
+        if (V) Log.v(TAG, String.format("touch trace closed (%d events)", mEventCount));
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2012
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ronsdev.bluectrl.widget;
+
+import org.ronsdev.bluectrl.DeviceSettings;
+import org.ronsdev.bluectrl.HidKeyboard;
+import org.ronsdev.bluectrl.HidMouse;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Replays a trace of the TouchTraceRecorder into a separate MouseTouchListener. The HID Reports
+ * of the listener are written into a text log instead of being sent to the daemon, so that the
+ * output of the gesture engine can be compared between two versions. The replayer also measures
+ * the processing time of every touch event.
+ *
+ * The MouseTouchListener depends on the Android MotionEvent and View classes, so the replay must
+ * run on the UI thread of a device or emulator.
+ */
+public class TouchTraceReplayer {
+
+    private static final String TAG = "TouchTraceReplayer";
+    private static final boolean V = false;
+
+
+    /** Time (in ms) to wait after the last event for deferred clicks and fling scrolling. */
+    private static final int FINISH_DELAY = 1000;
+
+
+    /**
+     * Interface definition for a callback to be invoked when the replay is finished.
+     */
+    public interface OnReplayFinishedListener {
+        void onReplayFinished(TouchTraceReplayer replayer);
+    }
+
+
+    /**
+     * A recorded touch event. The last sample is the current sample of the event, all other
+     * samples are historical samples.
+     */
+    private static class TraceEvent {
+        public int action;
+        public int eventTime;
+        public int downTime;
+        public int[] pointerIds;
+        public int[] sampleTimes;
+        public PointerCoords[][] samples;
+    }
+
+
+    /** A HID Mouse that logs the Mouse actions instead of sending Mouse Reports. */
+    private class RecordingHidMouse extends HidMouse {
+        private int mButtons = 0;
+
+        public RecordingHidMouse() {
+            super(null);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void beginReportBatch() {
+        }
+
+        @Override
+        public void endReportBatch() {
+        }
+
+        @Override
+        public void setInputEventTime(long eventTime) {
+        }
+
+        @Override
+        public int getPressedButtons() {
+            return mButtons;
+        }
+
+        @Override
+        public boolean isButtonPressed(int button) {
+            return ((button & mButtons) > 0);
+        }
+
+        @Override
+        public void pressButton(int button) {
+            if ((mButtons | button) != mButtons) {
+                mButtons |= button;
+                logReport("press", button, 0);
+            }
+        }
+
+        @Override
+        public void releaseButton(int button) {
+            if ((mButtons & ~button) != mButtons) {
+                mButtons &= ~button;
+                logReport("release", button, 0);
+            }
+        }
+
+        @Override
+        public void clickButton(int button) {
+            if ((mButtons | button) != mButtons) {
+                logReport("click", button, 0);
+            }
+        }
+
+        @Override
+        public void movePointer(int x, int y) {
+            logReport("move", x, y);
+        }
+
+        @Override
+        public void movePointerAbsolute(int x, int y) {
+            logReport("move_abs", x, y);
+        }
+
+        @Override
+        public boolean isSmoothScrollYOn() {
+            return false;
+        }
+
+        @Override
+        public boolean isSmoothScrollXOn() {
+            return false;
+        }
+
+        @Override
+        public void scrollWheel(int y, int x) {
+            logReport("scroll", y, x);
+        }
+    }
+
+    /** A HID Keyboard that logs the modifier key changes instead of sending Keyboard Reports. */
+    private class RecordingHidKeyboard extends HidKeyboard {
+        public RecordingHidKeyboard() {
+            super(null);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void pressModifierKey(int hidModifier) {
+            logReport("modifier_press", hidModifier, 0);
+        }
+
+        @Override
+        public void releaseModifierKey(int hidModifier) {
+            logReport("modifier_release", hidModifier, 0);
+        }
+    }
+
+
+    private final TouchpadView mTouchpadView;
+    private final Handler mHandler = new Handler();
+
+    private Rect mTouchpadAreaRect;
+    private float mMouseSensitivity;
+    private String mPointerAcceleration;
+    private float mScrollSensitivity;
+    private float mPinchZoomSensitivity;
+    private boolean mInvertScroll;
+    private boolean mFlingScroll;
+    private int mMotionPredictTime = 0;
+    private final ArrayList<TraceEvent> mEvents = new ArrayList<TraceEvent>();
+
+    private MouseTouchListener mMouseTouchListener;
+    private boolean mIsRealTime = false;
+    private boolean mIsRunning = false;
+    private long mBaseTime = 0;
+    private int mNextEvent = 0;
+
+    private final StringBuilder mReportLog = new StringBuilder();
+    private int mReportCount = 0;
+    private long mTotalProcessingTime = 0;
+    private long mMaxProcessingTime = 0;
+
+    private OnReplayFinishedListener mOnReplayFinishedListener;
+
+    private final Runnable mReplayRunnable = new Runnable() {
+        public void run() {
+            replayNextEvents();
+        }
+    };
+
+    private final Runnable mFinishRunnable = new Runnable() {
+        public void run() {
+            finish();
+        }
+    };
+
+
+    /**
+     * Reads a trace that should be replayed with the given TouchpadView. The view is only used
+     * for the resources and the feedback of the MouseTouchListener, its own touch handling isn't
+     * affected. The timers of the listener run on the Thread that starts the replay.
+     */
+    public TouchTraceReplayer(TouchpadView touchpadView, InputStream inputStream)
+            throws IOException {
+        mTouchpadView = touchpadView;
+
+        readTrace(new DataInputStream(new BufferedInputStream(inputStream)));
+    }
+
+
+    private void readTrace(DataInputStream in) throws IOException {
+        if (in.readInt() != TouchTraceRecorder.TRACE_MAGIC) {
+            throw new IOException("Not a touch trace");
+        }
+        final int version = in.readShort();
+        if ((version < 1) || (version > TouchTraceRecorder.TRACE_VERSION)) {
+            throw new IOException("Unsupported touch trace version " + version);
+        }
+
+        mTouchpadAreaRect = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        mMouseSensitivity = in.readFloat();
+        mScrollSensitivity = in.readFloat();
+        mPinchZoomSensitivity = in.readFloat();
+        mInvertScroll = in.readBoolean();
+        mFlingScroll = in.readBoolean();
+
+        // Version 1 traces were recorded without pointer acceleration
+        if (version >= 2) {
+            mPointerAcceleration = in.readUTF();
+        } else {
+            mPointerAcceleration = DeviceSettings.POINTER_ACCELERATION_LINEAR;
+        }
+
+        while (true) {
+            final int action;
+            try {
+                action = in.readShort();
+            } catch (EOFException e) {
+                break;
+            }
+
+            final TraceEvent event = new TraceEvent();
+            event.action = action;
+            event.eventTime = in.readInt();
+            event.downTime = in.readInt();
+
+            final int pointerCount = in.readUnsignedByte();
+            final int sampleCount = in.readUnsignedByte() + 1;
+            event.pointerIds = new int[pointerCount];
+            event.sampleTimes = new int[sampleCount];
+            event.samples = new PointerCoords[sampleCount][];
+
+            for (int s = 0; s < sampleCount; s++) {
+                event.sampleTimes[s] = (s < sampleCount - 1) ? in.readInt() : event.eventTime;
+                event.samples[s] = new PointerCoords[pointerCount];
+                for (int i = 0; i < pointerCount; i++) {
+                    final PointerCoords coords = new PointerCoords();
+                    event.pointerIds[i] = in.readUnsignedByte();
+                    coords.x = in.readFloat();
+                    coords.y = in.readFloat();
+                    coords.pressure = in.readFloat();
+                    coords.size = in.readFloat();
+                    event.samples[s][i] = coords;
+                }
+            }
+
+            mEvents.add(event);
+        }
+
+        in.close();
+
+        if (V) Log.v(TAG, String.format("touch trace loaded (%d events)", mEvents.size()));
+    }
+
+    private void logReport(String type, int a, int b) {
+        final long time = SystemClock.uptimeMillis() - mBaseTime;
+        mReportLog.append(time).append(' ').append(type).append(' ')
+                .append(a).append(' ').append(b).append('\n');
+        mReportCount++;
+    }
+
+    private MotionEvent obtainMotionEvent(TraceEvent traceEvent) {
+        final int lastSample = traceEvent.samples.length - 1;
+
+        final MotionEvent event = MotionEvent.obtain(mBaseTime + traceEvent.downTime,
+                mBaseTime + traceEvent.sampleTimes[0],
+                traceEvent.action,
+                traceEvent.pointerIds.length,
+                traceEvent.pointerIds,
+                traceEvent.samples[0],
+                0, 1.0f, 1.0f, 0, 0, 0, 0);
+        for (int s = 1; s <= lastSample; s++) {
+            event.addBatch(mBaseTime + traceEvent.sampleTimes[s], traceEvent.samples[s], 0);
+        }
+
+        return event;
+    }
+
+    private void replayEvent(TraceEvent traceEvent) {
+        final MotionEvent event = obtainMotionEvent(traceEvent);
+
+        final long startTime = System.nanoTime();
+        mMouseTouchListener.onTouch(mTouchpadView, event);
+        final long processingTime = System.nanoTime() - startTime;
+
+        event.recycle();
+
+        mTotalProcessingTime += processingTime;
+        if (processingTime > mMaxProcessingTime) {
+            mMaxProcessingTime = processingTime;
+        }
+    }
+
+    private void replayNextEvents() {
+        if (!mIsRunning) {
+            return;
+        }
+
+        while (mNextEvent < mEvents.size()) {
+            final TraceEvent traceEvent = mEvents.get(mNextEvent);
+            final long dueTime = mBaseTime + traceEvent.eventTime;
+
+            if (mIsRealTime && (dueTime > SystemClock.uptimeMillis())) {
+                mHandler.postAtTime(mReplayRunnable, dueTime);
+                return;
+            }
+
+            replayEvent(traceEvent);
+            mNextEvent++;
+        }
+
+        mHandler.postDelayed(mFinishRunnable, FINISH_DELAY);
+    }
+
+    private void finish() {
+        mIsRunning = false;
+
+        if (V) Log.v(TAG, String.format("touch trace replayed (%d reports)", mReportCount));
+
+        if (mOnReplayFinishedListener != null) {
+            mOnReplayFinishedListener.onReplayFinished(this);
+        }
+    }
+
+    /**
+     * Starts the replay. Must be called on the UI thread.
+     *
+     * @param realTime true to replay the events with their recorded timing or false to replay
+     * them as fast as possible. The event times are the recorded ones in both cases, but timers
+     * of the MouseTouchListener (deferred clicks and fling scrolling) only behave like on the
+     * device with the recorded timing.
+     */
+    public void start(boolean realTime) {
+        stop();
+
+        mMouseTouchListener = new MouseTouchListener(mTouchpadView);
+        mMouseTouchListener.setHidMouse(new RecordingHidMouse());
+        mMouseTouchListener.setHidKeyboard(new RecordingHidKeyboard());
+        mMouseTouchListener.setTouchpadAreaRect(mTouchpadAreaRect);
+        mMouseTouchListener.setMouseSensitivity(mMouseSensitivity);
+        mMouseTouchListener.setPointerAcceleration(mPointerAcceleration);
+        mMouseTouchListener.setScrollSensitivity(mScrollSensitivity);
+        mMouseTouchListener.setPinchZoomSensitivity(mPinchZoomSensitivity);
+        mMouseTouchListener.setInvertScroll(mInvertScroll);
+        mMouseTouchListener.setFlingScroll(mFlingScroll);
+        mMouseTouchListener.setMotionPredictTime(mMotionPredictTime);
+        mMouseTouchListener.setOnTouchpadGestureListener(new OnTouchpadGestureListener() {
+            public boolean onTouchpadGesture(int gesture, int direction) {
+                logReport("gesture", gesture, direction);
+                return true;
+            }
+        });
+
+        mReportLog.setLength(0);
+        mReportCount = 0;
+        mTotalProcessingTime = 0;
+        mMaxProcessingTime = 0;
+
+        mIsRealTime = realTime;
+        mIsRunning = true;
+        mBaseTime = SystemClock.uptimeMillis();
+        mNextEvent = 0;
+
+        replayNextEvents();
+    }
+
+    /** Stops a running replay without calling the OnReplayFinishedListener. */
+    public void stop() {
+        mHandler.removeCallbacks(mReplayRunnable);
+        mHandler.removeCallbacks(mFinishRunnable);
+        mIsRunning = false;
+
+        // Every replay uses a new listener, so the old one has to release its velocity tracker
+        if (mMouseTouchListener != null) {
+            mMouseTouchListener.release();
+            mMouseTouchListener = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Gets the motion prediction time in ms for the next replay. It isn't part of the trace, so
+     * the same trace can be compared with different values.
+     */
+    public int getMotionPredictTime() {
+        return mMotionPredictTime;
+    }
+    public void setMotionPredictTime(int value) {
+        mMotionPredictTime = value;
+    }
+
+    public void setOnReplayFinishedListener(OnReplayFinishedListener listener) {
+        mOnReplayFinishedListener = listener;
+    }
+
+    public int getEventCount() {
+        return mEvents.size();
+    }
+
+    /** Gets the number of logged HID actions of the last replay. */
+    public int getReportCount() {
+        return mReportCount;
+    }
+
+    /**
+     * Gets the logged HID actions of the last replay. Every line contains the time in ms since
+     * the start of the replay, the action type and two values.
+     */
+    public String getReportLog() {
+        return mReportLog.toString();
+    }
+
+    /** Gets the total processing time of all replayed events in nanoseconds. */
+    public long getTotalProcessingTime() {
+        return mTotalProcessingTime;
+    }
+
+    /** Gets the average processing time of a replayed event in nanoseconds. */
+    public long getAverageProcessingTime() {
+        return (mNextEvent > 0) ? (mTotalProcessingTime / mNextEvent) : 0;
+    }
+
+    /** Gets the highest processing time of a replayed event in nanoseconds. */
+    public long getMaxProcessingTime() {
+        return mMaxProcessingTime;
+    }
+}
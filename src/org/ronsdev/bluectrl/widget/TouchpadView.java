@@ -21,13 +21,19 @@ import org.ronsdev.bluectrl.HidMouse;
 import org.ronsdev.bluectrl.IntArrayList;
 import org.ronsdev.bluectrl.OnMouseButtonClickListener;
 import org.ronsdev.bluectrl.R;
+import org.ronsdev.bluectrl.daemon.InputLatencyStats;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.util.AttributeSet;
 import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
@@ -36,6 +42,10 @@ import android.view.View;
 
 /**
  * A touchpad that handles touch events and redirects them to a HID Mouse.
+ *
+ * Only the buttons are handled on the UI thread. The other touch events are copied and processed
+ * by the MouseTouchListener on the TouchProcessingThread, so a busy UI thread doesn't delay the
+ * pointer movement.
  */
 public class TouchpadView extends View
         implements OnMouseButtonClickListener, OnScrollModeChangedListener {
@@ -102,8 +112,22 @@ public class TouchpadView extends View
     private static final int BUTTON_INDEX_MIDDLE = 2;
     private static final int BUTTON_COUNT = 3;
 
+    private static final float LATENCY_OVERLAY_TEXT_SIZE_DP = 12.0f;
+    private static final int LATENCY_OVERLAY_COLOR = Color.argb(192, 255, 255, 255);
+    private static final int LATENCY_OVERLAY_REFRESH_INTERVAL = 500;
+
+    /** The labels of the input latency stages in the debug overlay. */
+    private static final String[] LATENCY_STAGE_LABELS = new String[] {
+        "event>queue", "queue>ipc", "ipc>daemon", "daemon>l2cap", "total" };
+
+    private static final int MSG_TOUCH_EVENT = 1;
+    private static final int MSG_ACTIVATE_POINTER_MODE = 2;
+    private static final int MSG_ACTIVATE_DRAG_MODE = 3;
+    private static final int MSG_ACTIVATE_SCROLL_MODE = 4;
+
 
     private Paint mButtonBarPaint = new Paint();
+    private Paint mLatencyOverlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 
     private Drawable mBackgroundDrawable = null;
     private Drawable mButtonDrawable = null;
@@ -114,14 +138,104 @@ public class TouchpadView extends View
     private TouchpadViewGestureListener mGestureListener = null;
     private MouseTouchListener mMouseTouchListener = null;
 
-    private HidMouse mHidMouse = null;
-    private HidKeyboard mHidKeyboard = null;
+    /* Accessed by the UI thread and the touch processing Thread. */
+    private volatile HidMouse mHidMouse = null;
+    private volatile HidKeyboard mHidKeyboard = null;
+
+    /** Delivers the touch events and mode changes to the touch processing Thread. */
+    private Handler mTouchHandler = null;
+
+    /** Runs the feedback of the touch processing Thread on the UI thread. */
+    private Handler mUiHandler = null;
+
+    private final Handler.Callback mTouchHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+            case MSG_TOUCH_EVENT:
+                final MotionEvent event = (MotionEvent)msg.obj;
+                try {
+                    processTouchEvent(event);
+                } finally {
+                    event.recycle();
+                }
+                return true;
+            case MSG_ACTIVATE_POINTER_MODE:
+                mMouseTouchListener.activatePointerMode();
+                return true;
+            case MSG_ACTIVATE_DRAG_MODE:
+                mMouseTouchListener.activateDragMode(msg.arg1, (msg.arg2 != 0));
+                return true;
+            case MSG_ACTIVATE_SCROLL_MODE:
+                mMouseTouchListener.activateScrollMode(msg.arg1);
+                return true;
+            default:
+                return false;
+            }
+        }
+    };
+
+    private final Runnable mButtonFeedbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+            playSoundEffect(SoundEffectConstants.CLICK);
+        }
+    };
+
+    private final Runnable mButtonClickFeedbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
+            playSoundEffect(SoundEffectConstants.CLICK);
+        }
+    };
+
+    private final Runnable mGestureFeedbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        }
+    };
+
+    private final Runnable mLatencyOverlayRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mLatencyOverlayRefreshPending = false;
+            if (mInputLatencyStats != null) {
+                if (mTouchpadAreaRect != null) {
+                    invalidate(mTouchpadAreaRect);
+                }
+                scheduleLatencyOverlayRefresh();
+            }
+        }
+    };
 
     private boolean mShowButtons = true;
     private boolean mShowInfoGraphics = true;
 
+    /** The statistics that are shown in the debug overlay or null if it is hidden. */
+    private InputLatencyStats mInputLatencyStats = null;
+
+    /** True if the next refresh of the debug overlay is already scheduled. */
+    private boolean mLatencyOverlayRefreshPending = false;
+
+    /**
+     * Records the touch events on the touch processing Thread (debug feature) or null if they
+     * aren't recorded.
+     */
+    private volatile TouchTraceRecorder mTouchTraceRecorder = null;
+
     private Rect mInnerRect = null;
     private Rect mTouchpadAreaRect = null;
+    private Rect mButtonBarRect = new Rect();
+
+    /** The area of the largest info graphic that is drawn in the center of the touchpad. */
+    private Rect mInfoGraphicsRect = new Rect();
+
+    /** Temporary rectangles that are reused while drawing. */
+    private Rect mClipRect = new Rect();
+    private Rect mDrawableRect = new Rect();
 
     private int mDefaultTouchpadAreaPadding;
     private int mTouchpadAreaPadding;
@@ -151,6 +265,13 @@ public class TouchpadView extends View
      */
     private boolean[] mClickedButtons = new boolean[BUTTON_COUNT];
 
+    /**
+     * The cached renderings of the first and second button (see 'BUTTON_INDEX_*' constants for
+     * the first index, the second index is 1 for the pressed state). A null entry is rendered
+     * the next time it's drawn.
+     */
+    private Bitmap[][] mButtonBitmaps = new Bitmap[2][2];
+
 
     public TouchpadView(Context context) {
         super(context);
@@ -193,9 +314,16 @@ public class TouchpadView extends View
         mButtonSepMargin = (int)(BUTTON_SEP_MARGIN_DP * displayDensity + 0.5f);
         mMiddleButtonWidth = (int)(MIDDLE_BUTTON_WIDTH_DP * displayDensity + 0.5f);
 
+        mLatencyOverlayPaint.setColor(LATENCY_OVERLAY_COLOR);
+        mLatencyOverlayPaint.setTextSize(LATENCY_OVERLAY_TEXT_SIZE_DP * displayDensity);
+
         mGestureListener = new TouchpadViewGestureListener(this);
 
-        mMouseTouchListener = new MouseTouchListener(this);
+        final Looper touchLooper = TouchProcessingThread.getProcessingLooper();
+        mTouchHandler = new Handler(touchLooper, mTouchHandlerCallback);
+        mUiHandler = new Handler(Looper.getMainLooper());
+
+        mMouseTouchListener = new MouseTouchListener(this, touchLooper);
         mMouseTouchListener.setOnTouchpadGestureListener(mGestureListener);
         mMouseTouchListener.setOnScrollModeChangedListener(this);
 
@@ -229,6 +357,34 @@ public class TouchpadView extends View
 
         mButtonRects[BUTTON_INDEX_MIDDLE] =
                 new Rect(middleButtonLeft, buttonBarTop, middleButtonRight, innerBottom);
+
+        // The button bar line is drawn above the buttons
+        mButtonBarRect.set(innerLeft, buttonBarTop - mButtonBarStrokeWidth,
+                innerRight, innerBottom);
+
+        recycleButtonBitmaps();
+        recalculateInfoGraphicsRect();
+    }
+
+    private void recalculateInfoGraphicsRect() {
+        mInfoGraphicsRect.setEmpty();
+        getInfoDrawableBounds(mScrollVerticalDrawable, mDrawableRect);
+        mInfoGraphicsRect.union(mDrawableRect);
+        getInfoDrawableBounds(mScrollHorizontalDrawable, mDrawableRect);
+        mInfoGraphicsRect.union(mDrawableRect);
+        getInfoDrawableBounds(mScrollAllDrawable, mDrawableRect);
+        mInfoGraphicsRect.union(mDrawableRect);
+    }
+
+    private void recycleButtonBitmaps() {
+        for (int i = 0; i < mButtonBitmaps.length; i++) {
+            for (int j = 0; j < mButtonBitmaps[i].length; j++) {
+                if (mButtonBitmaps[i][j] != null) {
+                    mButtonBitmaps[i][j].recycle();
+                    mButtonBitmaps[i][j] = null;
+                }
+            }
+        }
     }
 
     public boolean isActive() {
@@ -272,6 +428,26 @@ public class TouchpadView extends View
         }
     }
 
+    public TouchTraceRecorder getTouchTraceRecorder() {
+        return mTouchTraceRecorder;
+    }
+    /** Records all following touch events with the given recorder or stops it if it's null. */
+    public void setTouchTraceRecorder(TouchTraceRecorder value) {
+        mTouchTraceRecorder = value;
+    }
+
+    public InputLatencyStats getInputLatencyStats() {
+        return mInputLatencyStats;
+    }
+    /** Shows the input latency statistics in a debug overlay or hides it if the value is null. */
+    public void setInputLatencyStats(InputLatencyStats value) {
+        if (value != mInputLatencyStats) {
+            mInputLatencyStats = value;
+            invalidate();
+            scheduleLatencyOverlayRefresh();
+        }
+    }
+
     public String getGestureMode() {
         return mGestureListener.getGestureMode();
     }
@@ -279,6 +455,10 @@ public class TouchpadView extends View
         mGestureListener.setGestureMode(value);
     }
 
+    public Rect getTouchpadAreaRect() {
+        return mMouseTouchListener.getTouchpadAreaRect();
+    }
+
     public float getMouseSensitivity() {
         return mMouseTouchListener.getMouseSensitivity();
     }
@@ -286,6 +466,20 @@ public class TouchpadView extends View
         mMouseTouchListener.setMouseSensitivity(value);
     }
 
+    public int getMotionPredictTime() {
+        return mMouseTouchListener.getMotionPredictTime();
+    }
+    public void setMotionPredictTime(int value) {
+        mMouseTouchListener.setMotionPredictTime(value);
+    }
+
+    public String getPointerAcceleration() {
+        return mMouseTouchListener.getPointerAcceleration();
+    }
+    public void setPointerAcceleration(String value) {
+        mMouseTouchListener.setPointerAcceleration(value);
+    }
+
     public float getScrollSensitivity() {
         return mMouseTouchListener.getScrollSensitivity();
     }
@@ -319,9 +513,10 @@ public class TouchpadView extends View
     }
     public void setTouchpadAreaPadding(int value) {
         mTouchpadAreaPadding = value;
+        recalculateInfoGraphicsRect();
     }
     public void resetTouchpadAreaPadding() {
-        mTouchpadAreaPadding = mDefaultTouchpadAreaPadding;
+        setTouchpadAreaPadding(mDefaultTouchpadAreaPadding);
     }
 
     public int getVisibleButtonBarHeight() {
@@ -329,38 +524,61 @@ public class TouchpadView extends View
     }
 
     public void activatePointerMode() {
-        mMouseTouchListener.activatePointerMode();
+        if (TouchProcessingThread.isProcessingThread()) {
+            mMouseTouchListener.activatePointerMode();
+        } else {
+            mTouchHandler.sendEmptyMessage(MSG_ACTIVATE_POINTER_MODE);
+        }
     }
 
     public void activateDragMode(int dragButton, boolean useFastEdgeMovement) {
-        mMouseTouchListener.activateDragMode(dragButton, useFastEdgeMovement);
+        if (TouchProcessingThread.isProcessingThread()) {
+            mMouseTouchListener.activateDragMode(dragButton, useFastEdgeMovement);
+        } else {
+            mTouchHandler.obtainMessage(MSG_ACTIVATE_DRAG_MODE,
+                    dragButton, (useFastEdgeMovement ? 1 : 0)).sendToTarget();
+        }
     }
 
     public void activateScrollMode(int scrollMode) {
-        mMouseTouchListener.activateScrollMode(scrollMode);
+        if (TouchProcessingThread.isProcessingThread()) {
+            mMouseTouchListener.activateScrollMode(scrollMode);
+        } else {
+            mTouchHandler.obtainMessage(MSG_ACTIVATE_SCROLL_MODE, scrollMode, 0).sendToTarget();
+        }
+    }
+
+    private static boolean isUiThread() {
+        return (Looper.myLooper() == Looper.getMainLooper());
+    }
+
+    /** Runs a feedback immediately on the UI thread or posts it from another Thread. */
+    private void performFeedback(Runnable feedback) {
+        if (isUiThread()) {
+            feedback.run();
+        } else {
+            mUiHandler.post(feedback);
+        }
     }
 
     public void performButtonPressFeedback() {
-        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
-        playSoundEffect(SoundEffectConstants.CLICK);
+        performFeedback(mButtonFeedbackRunnable);
     }
 
     public void performButtonReleaseFeedback() {
-        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
-        playSoundEffect(SoundEffectConstants.CLICK);
+        performFeedback(mButtonFeedbackRunnable);
     }
 
     public void performButtonClickFeedback() {
-        performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
-        playSoundEffect(SoundEffectConstants.CLICK);
+        performFeedback(mButtonClickFeedbackRunnable);
     }
 
     public void performGestureDetectedFeedback() {
-        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        performFeedback(mGestureFeedbackRunnable);
     }
 
     public void performModeChangedFeedback() {
-        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        performFeedback(mGestureFeedbackRunnable);
     }
 
     @Override
@@ -370,27 +588,86 @@ public class TouchpadView extends View
         recalculateRects();
     }
 
-    public void onMouseButtonClick(int clickType, int button) {
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        scheduleLatencyOverlayRefresh();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        removeCallbacks(mLatencyOverlayRefreshRunnable);
+        mLatencyOverlayRefreshPending = false;
+
+        recycleButtonBitmaps();
+    }
+
+    /** Redraws the debug overlay periodically while it's shown. */
+    private void scheduleLatencyOverlayRefresh() {
+        if (!mLatencyOverlayRefreshPending && (mInputLatencyStats != null)) {
+            mLatencyOverlayRefreshPending = postDelayed(mLatencyOverlayRefreshRunnable,
+                    LATENCY_OVERLAY_REFRESH_INTERVAL);
+        }
+    }
+
+    /** Redraws only the part of the button bar that shows the given button. */
+    private void invalidateButton(int btIndex) {
+        if (!mShowButtons) {
+            return;
+        }
+
+        switch (btIndex) {
+        case BUTTON_INDEX_FIRST:
+        case BUTTON_INDEX_SECOND:
+            invalidate(mButtonRects[btIndex]);
+            break;
+        default:
+            // The middle button is shown by pressing both halves of the button bar
+            invalidate(mButtonBarRect);
+            break;
+        }
+    }
+
+    public void onMouseButtonClick(final int clickType, final int button) {
+        if (!isUiThread()) {
+            mUiHandler.post(new Runnable()
+            {
+                 @Override
+                 public void run() {
+                     onMouseButtonClick(clickType, button);
+                 }
+            });
+            return;
+        }
+
+        final int buttonIndex = convertHidMouseBtToBtIndex(button);
+        if (buttonIndex < 0) {
+            return;
+        }
+
         if (clickType == HidMouse.CLICK_TYPE_CLICK) {
-            final int buttonIndex = convertHidMouseBtToBtIndex(button);
-            if (buttonIndex > -1) {
-                mClickedButtons[buttonIndex] = true;
-                postDelayed(new Runnable()
-                {
-                     @Override
-                     public void run() {
-                         mClickedButtons[buttonIndex] = false;
-                         invalidate();
-                     }
-                }, BUTTON_CLICK_DURATION);
-            }
+            mClickedButtons[buttonIndex] = true;
+            postDelayed(new Runnable()
+            {
+                 @Override
+                 public void run() {
+                     mClickedButtons[buttonIndex] = false;
+                     invalidateButton(buttonIndex);
+                 }
+            }, BUTTON_CLICK_DURATION);
         }
 
-        invalidate();
+        invalidateButton(buttonIndex);
     }
 
     public void onScrollModeChanged(int newMode, int oldMode) {
-        invalidate();
+        if (mShowInfoGraphics) {
+            postInvalidate(mInfoGraphicsRect.left, mInfoGraphicsRect.top,
+                    mInfoGraphicsRect.right, mInfoGraphicsRect.bottom);
+        }
     }
 
     @Override
@@ -399,7 +676,35 @@ public class TouchpadView extends View
             return true;
         }
 
-        return mMouseTouchListener.onTouch(this, event);
+        // The event is recycled by the framework after this call, so a copy is processed
+        mTouchHandler.obtainMessage(MSG_TOUCH_EVENT, MotionEvent.obtain(event)).sendToTarget();
+
+        return (isActive() && (event.getActionMasked() != MotionEvent.ACTION_CANCEL));
+    }
+
+    /** Processes a touch event on the touch processing Thread. */
+    private void processTouchEvent(MotionEvent event) {
+        final HidMouse hidMouse = mHidMouse;
+        if (hidMouse == null) {
+            mMouseTouchListener.onTouch(this, event);
+        } else {
+            // Send all HID Reports that are caused by the same touch event with a single IPC
+            // frame
+            hidMouse.beginReportBatch();
+            hidMouse.setInputEventTime(event.getEventTime());
+            try {
+                mMouseTouchListener.onTouch(this, event);
+            } finally {
+                hidMouse.setInputEventTime(0);
+                hidMouse.endReportBatch();
+            }
+        }
+
+        // Recorded after the HID Reports are sent so that the trace doesn't delay them
+        final TouchTraceRecorder recorder = mTouchTraceRecorder;
+        if (recorder != null) {
+            recorder.record(event);
+        }
     }
 
     private boolean handleButtonsTouchEvent(MotionEvent event) {
@@ -500,10 +805,13 @@ public class TouchpadView extends View
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        // Only the invalidated region has to be drawn
+        canvas.getClipBounds(mClipRect);
+
         mBackgroundDrawable.setBounds(mInnerRect);
         mBackgroundDrawable.draw(canvas);
 
-        if (mShowInfoGraphics) {
+        if (mShowInfoGraphics && Rect.intersects(mClipRect, mInfoGraphicsRect)) {
             switch (mMouseTouchListener.getScrollMode()) {
             case SCROLL_MODE_VERTICAL:
                 drawInfoDrawable(canvas, mScrollVerticalDrawable);
@@ -517,12 +825,42 @@ public class TouchpadView extends View
             }
         }
 
-        if (mShowButtons) {
+        if (mShowButtons && Rect.intersects(mClipRect, mButtonBarRect)) {
             drawButtons(canvas);
         }
+
+        if (mInputLatencyStats != null) {
+            drawLatencyOverlay(canvas);
+        }
+    }
+
+    private void drawLatencyOverlay(Canvas canvas) {
+        final InputLatencyStats stats = mInputLatencyStats;
+        final float lineHeight = mLatencyOverlayPaint.getFontSpacing();
+        final float x = mTouchpadAreaRect.left + mTouchpadAreaPadding;
+        float y = mTouchpadAreaRect.top + mTouchpadAreaPadding + lineHeight;
+
+        canvas.drawText(String.format("%d samples (p50 / p95 / max ms)",
+                stats.getSampleCount()), x, y, mLatencyOverlayPaint);
+
+        for (int i = 0; i < InputLatencyStats.STAGE_COUNT; i++) {
+            y += lineHeight;
+            canvas.drawText(String.format("%s: %.1f / %.1f / %.1f",
+                    LATENCY_STAGE_LABELS[i],
+                    stats.getPercentile(i, 50) / 1000.0f,
+                    stats.getPercentile(i, 95) / 1000.0f,
+                    stats.getMaximum(i) / 1000.0f), x, y, mLatencyOverlayPaint);
+        }
     }
 
     private void drawInfoDrawable(Canvas canvas, Drawable drawable) {
+        getInfoDrawableBounds(drawable, mDrawableRect);
+        drawable.setBounds(mDrawableRect);
+        drawable.draw(canvas);
+    }
+
+    /** Calculates the bounds of an info graphic in the center of the touchpad. */
+    private void getInfoDrawableBounds(Drawable drawable, Rect outRect) {
         final int maxWidth = mTouchpadAreaRect.width() - (mTouchpadAreaPadding * 2);
         final int maxHeight = mTouchpadAreaRect.height() - (mTouchpadAreaPadding * 2);
 
@@ -543,29 +881,64 @@ public class TouchpadView extends View
         final int left = touchpadCenterX - (drawableWidth / 2);
         final int top = touchpadCenterY - (drawableHeight / 2);
 
-        drawable.setBounds(left, top, left + drawableWidth, top + drawableHeight);
-        drawable.draw(canvas);
+        outRect.set(left, top, left + drawableWidth, top + drawableHeight);
     }
 
-    private void drawButtons(Canvas canvas) {
-        final Rect firstButtonRect = mButtonRects[BUTTON_INDEX_FIRST];
-        final Rect secondButtonRect = mButtonRects[BUTTON_INDEX_SECOND];
+    /**
+     * Gets the cached rendering of the first or second button or renders it if necessary.
+     *
+     * @return the Bitmap or null if there isn't enough memory for it.
+     */
+    private Bitmap getButtonBitmap(int btIndex, boolean pressed) {
+        final int stateIndex = (pressed ? 1 : 0);
+        Bitmap bitmap = mButtonBitmaps[btIndex][stateIndex];
+        if (bitmap == null) {
+            final Rect buttonRect = mButtonRects[btIndex];
+            if (buttonRect.isEmpty()) {
+                return null;
+            }
 
-        mButtonDrawable.setBounds(firstButtonRect);
-        if (isButtonPressed(BUTTON_INDEX_FIRST) || isButtonPressed(BUTTON_INDEX_MIDDLE)) {
-            mButtonDrawable.setState(PRESSED_ENABLED_STATE_SET);
-        } else {
-            mButtonDrawable.setState(EMPTY_STATE_SET);
+            try {
+                bitmap = Bitmap.createBitmap(buttonRect.width(), buttonRect.height(),
+                        Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+
+            mButtonDrawable.setBounds(0, 0, buttonRect.width(), buttonRect.height());
+            mButtonDrawable.setState(pressed ? PRESSED_ENABLED_STATE_SET : EMPTY_STATE_SET);
+            mButtonDrawable.draw(new Canvas(bitmap));
+
+            mButtonBitmaps[btIndex][stateIndex] = bitmap;
+        }
+        return bitmap;
+    }
+
+    private void drawButton(Canvas canvas, int btIndex, boolean pressed) {
+        final Rect buttonRect = mButtonRects[btIndex];
+        if (!Rect.intersects(mClipRect, buttonRect)) {
+            return;
         }
-        mButtonDrawable.draw(canvas);
 
-        mButtonDrawable.setBounds(secondButtonRect);
-        if (isButtonPressed(BUTTON_INDEX_SECOND) || isButtonPressed(BUTTON_INDEX_MIDDLE)) {
-            mButtonDrawable.setState(PRESSED_ENABLED_STATE_SET);
+        final Bitmap bitmap = getButtonBitmap(btIndex, pressed);
+        if (bitmap != null) {
+            canvas.drawBitmap(bitmap, buttonRect.left, buttonRect.top, null);
         } else {
-            mButtonDrawable.setState(EMPTY_STATE_SET);
+            mButtonDrawable.setBounds(buttonRect);
+            mButtonDrawable.setState(pressed ? PRESSED_ENABLED_STATE_SET : EMPTY_STATE_SET);
+            mButtonDrawable.draw(canvas);
         }
-        mButtonDrawable.draw(canvas);
+    }
+
+    private void drawButtons(Canvas canvas) {
+        final Rect firstButtonRect = mButtonRects[BUTTON_INDEX_FIRST];
+        final Rect secondButtonRect = mButtonRects[BUTTON_INDEX_SECOND];
+
+        final boolean isMiddlePressed = isButtonPressed(BUTTON_INDEX_MIDDLE);
+        drawButton(canvas, BUTTON_INDEX_FIRST,
+                (isButtonPressed(BUTTON_INDEX_FIRST) || isMiddlePressed));
+        drawButton(canvas, BUTTON_INDEX_SECOND,
+                (isButtonPressed(BUTTON_INDEX_SECOND) || isMiddlePressed));
 
 
         final int buttonBarY = firstButtonRect.top - (mButtonBarStrokeWidth / 2);